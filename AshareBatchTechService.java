@@ -0,0 +1,1204 @@
+package com.wnbt.calc.tech.service;
+
+import cn.huoqiu.base.db.Query;
+import com.wnbt.base.utils.WindUtils;
+import com.wnbt.db.KeysetQuery;
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.metrics.MetricsRegistry;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Description:在单只股票计算calcStock的基础上，增加全市场并发计算的能力
+ * <p>
+ * 1.calcUniverse把股票代码分发到线程池中并发计算，每只股票单独捕获异常并按配置重试，互不影响
+ * 2.子类读infoDB时使用read，写指标时使用write，这样可以分别限制两个库的并发数
+ * 3.全市场计算时，write的行先暂存，calcStock成功后才交给AshareTechRowWriter写入，重试不会重复写；
+ * crossStockBatch为true时多只股票共用批次，全部股票算完后再写入剩余的行
+ * 4.一只股票calcStock结束后如果没有写入任何数据，则记为跳过
+ * <p>
+ * 并发限制和暂存的行放在线程上下文里，所以同一个线程里调用的其他指标service（比如合并计算时）也受同样的限制
+ * <p>
+ * calc.tech.fastMode为true时，指标使用AshareTechFastMath放大成long的快速计算（结果与精确模式逐位一致），否则使用BigDecimal精确计算
+ * <p>
+ * calc.tech.fused为true时由AshareTechFusedService统一读行情、计算所有指标，各指标service自己的计算入口
+ * （calcStock、calcUniverse、calcRange、recompute）直接跳过；为false时反过来跳过AshareTechFusedService。
+ * 这样遍历所有指标service的任务不会把同一个指标算两遍、写两遍
+ * <p>
+ * 指标续算的状态缓存在AshareTechStateCache里：write的回调在行真正交给writer之后才更新缓存，
+ * 写入失败的股票从缓存中移除，每次全市场计算结束后保存缓存快照
+ * <p>
+ * 配置了本地行情AshareEodPriceStore时，readPrices先从infoDB补齐本地缺少的最新行情，再从本地读取
+ * <p>
+ * writeBehind为true时，calcStock成功后的行交给AshareTechWriteBehind异步写入，写入确认后才更新状态缓存，写入失败的股票记为失败；
+ * 每次运行结束前等待全部写完
+ * <p>
+ * 埋点：读取（tech.fetch）、写入（tech.write）的耗时，每只股票的耗时（tech.stock）、计算耗时（tech.compute，只算成功的那一次）、
+ * 重试耗时（tech.retry，失败的尝试加上重试前的等待）、
+ * 查询次数、读取行数、分配字节数，记到容器中的MetricsRegistry，同时汇总到AshareTechRunSummary
+ * <p>
+ * 行情修正后用recompute按日期区间重算：以区间之前库里最后一条记录为起点续算，写入时先删除区间内的旧记录再同步写入，
+ * 写入失败时恢复旧记录，可以重复执行
+ * <p>
+ * 全市场的大查询（状态预热、最后交易日）用readPaged、queryPaged按键分页边读边处理，每页calc.tech.pageSize条，
+ * 内存只随股票数增长，不随历史长度增长；读取一只股票全部历史行情时也按页查询
+ */
+public abstract class AshareBatchTechService extends AshareBaseTechService {
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static final ThreadLocal<RunContext> RUN_CONTEXT = new ThreadLocal<>();
+
+    // 按键分页读取AShareEODPrices用的键
+    static final KeysetQuery.Key<AshareEodPrices> PRICE_WIND_CODE_KEY = new KeysetQuery.Key<AshareEodPrices>() {
+        @Override
+        public Object of(AshareEodPrices row) {
+            return row.getsInfoWindcode();
+        }
+    };
+
+    static final KeysetQuery.Key<AshareEodPrices> PRICE_TRADE_DT_KEY = new KeysetQuery.Key<AshareEodPrices>() {
+        @Override
+        public Object of(AshareEodPrices row) {
+            return row.getTradeDt();
+        }
+    };
+
+    @Value("${calc.tech.fastMode:false}")
+    private boolean fastMode;
+
+    @Value("${calc.tech.fused:false}")
+    private boolean fused;
+
+    @Value("${calc.tech.pageSize:5000}")
+    private int pageSize = KeysetQuery.DEFAULT_PAGE_SIZE;
+
+    @Autowired(required = false)
+    private AshareTechStateCache stateCache;
+
+    @Autowired(required = false)
+    private AshareEodPriceStore priceStore;
+
+    @Autowired(required = false)
+    private MetricsRegistry metricsRegistry = MetricsRegistry.NOOP;
+
+    @Autowired(required = false)
+    private AshareTechWriteBehind writeBehind;
+
+    /**
+     * 全市场并发计算
+     *
+     * @param stockCodes
+     * @param config
+     * @return
+     */
+    public AshareTechRunSummary calcUniverse(Collection<String> stockCodes, AshareTechRunConfig config) {
+        AshareTechRunSummary summary = new AshareTechRunSummary();
+        if (isSkipped()) {
+            getLogger().info("calc.tech.fused={}，跳过全市场计算", fused);
+            return summary;
+        }
+        long start = System.currentTimeMillis();
+        validateState(getCalculators());
+        Run run = new Run(config, stateCache, summary, null, config.isWriteBehind() ? writeBehind : null);
+        ExecutorService executor = newExecutor(config);
+        try {
+            List<StockFuture> futures = new ArrayList<>(stockCodes.size());
+            for (String stockCode : stockCodes) {
+                futures.add(submit(executor, stockCode, run, summary, new StockTask() {
+                    @Override
+                    public void calc(String stockCode) {
+                        calcStock(stockCode);
+                    }
+                }));
+            }
+            await(futures, summary);
+        } finally {
+            executor.shutdownNow();
+            run.flush(summary);
+            saveStateSnapshot();
+        }
+        summary.setElapsedMillis(System.currentTimeMillis() - start);
+        getLogger().info("全市场计算完成：{}", summary);
+        return summary;
+    }
+
+    /**
+     * 按日期区间批量计算：按股票代码分段，每段一次查询取出区间内所有股票的行情，在内存中按股票分组后交给各指标计算器
+     * <p>
+     * 1.先批量取出每个计算器在区间开始前若干天以来已经计算到的交易日
+     * 2.行情从startDt往前推lookback对应的天数开始取，保证续算需要的前几条行情也在里面
+     * 3.需要初始化的股票，或者已经计算到的交易日比取出的行情还早的股票，改用calcStock单独计算
+     *
+     * @param stockCodes
+     * @param startDt    yyyyMMdd
+     * @param endDt      yyyyMMdd，为空表示到最新
+     * @param config
+     * @return
+     */
+    public AshareTechRunSummary calcRange(Collection<String> stockCodes, String startDt, String endDt, AshareTechRunConfig config) {
+        AshareTechRunSummary summary = new AshareTechRunSummary();
+        if (isSkipped()) {
+            getLogger().info("calc.tech.fused={}，跳过区间计算", fused);
+            return summary;
+        }
+        long start = System.currentTimeMillis();
+        final List<AshareTechCalculator> calculators = getCalculators();
+        validateState(calculators);
+        int lookback = 0;
+        for (AshareTechCalculator calculator : calculators) {
+            lookback = Math.max(lookback, calculator.getLookback());
+        }
+        final String floorDt = minusDays(startDt, lookback * 3);
+        final List<Map<String, String>> lastTradeDts = new ArrayList<>(calculators.size());
+        for (AshareTechCalculator calculator : calculators) {
+            lastTradeDts.add(calculator.getLastTradeDts(floorDt));
+        }
+
+        List<String> windCodes = new ArrayList<>(stockCodes.size());
+        for (String stockCode : stockCodes) {
+            windCodes.add(WindUtils.transToWindStockCode(stockCode));
+        }
+        Collections.sort(windCodes);
+
+        Run run = new Run(config, stateCache, summary, null, config.isWriteBehind() ? writeBehind : null);
+        ExecutorService executor = newExecutor(config);
+        try {
+            List<StockFuture> previousFutures = Collections.emptyList();
+            for (int from = 0; from < windCodes.size(); from += config.getBulkChunkSize()) {
+                int to = Math.min(from + config.getBulkChunkSize(), windCodes.size());
+                Query query = getInfoDB().from("AShareEODPrices")
+                        .greatOrEquals("S_INFO_WINDCODE", windCodes.get(from))
+                        .not("S_DQ_TRADESTATUS", "停牌")
+                        .greatOrEquals("TRADE_DT", floorDt);
+                if (to < windCodes.size()) {
+                    query.less("S_INFO_WINDCODE", windCodes.get(to));
+                }
+                if (endDt != null) {
+                    query.less("TRADE_DT", plusDays(endDt, 1));
+                }
+                final Map<String, List<AshareEodPrices>> pricesMap = groupByStock(read(query.orderBy("S_INFO_WINDCODE ASC, TRADE_DT ASC"), AshareEodPrices.class));
+
+                // 上一段算完之前不再读下一段，内存中最多保留两段行情
+                await(previousFutures, summary);
+                List<StockFuture> futures = new ArrayList<>(to - from);
+                for (String windCode : windCodes.subList(from, to)) {
+                    futures.add(submit(executor, windCode.substring(0, 6), run, summary, new StockTask() {
+                        @Override
+                        public void calc(String stockCode) {
+                            calcBulkStock(stockCode, calculators, lastTradeDts, floorDt, pricesMap.get(stockCode));
+                        }
+                    }));
+                }
+                previousFutures = futures;
+            }
+            await(previousFutures, summary);
+        } finally {
+            executor.shutdownNow();
+            run.flush(summary);
+            saveStateSnapshot();
+        }
+        summary.setElapsedMillis(System.currentTimeMillis() - start);
+        getLogger().info("区间批量计算完成：{}-{}，{}", startDt, endDt, summary);
+        return summary;
+    }
+
+    /**
+     * 按日期区间重算指标，用于行情修正后的修复，股票之间并发
+     * <p>
+     * 1.每只股票先丢弃状态缓存和本地行情，保证用的是修正后的行情
+     * 2.每个计算器以库里startDt之前最后一条记录为起点，从那里续算到endDt；区间之前没有记录时从头初始化
+     * 3.dryRun为false时，一只股票算完后每个计算器先删除区间内的旧记录再同步写入新记录，重复执行结果相同；
+     * 写入失败时删掉写了一半的记录、恢复原来的记录，这只股票记为失败，不经过crossStockBatch和writeBehind的缓存；
+     * dryRun为true时不写库，只与区间内已有的记录逐行比较
+     * <p>
+     * endDt之后的记录也依赖区间内的行情：CCI之后13天、MTM之后mtm周期加移动平均周期减1天、RSI的平均值是递推的，之后的全部记录，
+     * endDt不为空时这些记录不会更新，所以行情修正后endDt应为空（重算到最新），只有dryRun核对时才指定endDt
+     *
+     * @param stockCodes
+     * @param startDt    yyyyMMdd
+     * @param endDt      yyyyMMdd，为空表示到最新
+     * @param dryRun
+     * @param config
+     * @return
+     */
+    public AshareTechRecomputeResult recompute(Collection<String> stockCodes, final String startDt, final String endDt, boolean dryRun,
+                                               AshareTechRunConfig config) {
+        AshareTechRecomputeResult result = new AshareTechRecomputeResult(startDt, endDt, dryRun);
+        if (isSkipped()) {
+            getLogger().info("calc.tech.fused={}，跳过区间重算", fused);
+            return result;
+        }
+        AshareTechRunSummary summary = result.getSummary();
+        long start = System.currentTimeMillis();
+        final List<AshareTechCalculator> calculators = getCalculators();
+        // 重算写入后要丢弃状态缓存，不能等异步写入后再更新缓存，所以不使用writeBehind
+        Run run = new Run(config, stateCache, summary, new Recompute(calculators, result), null);
+        ExecutorService executor = newExecutor(config);
+        try {
+            List<StockFuture> futures = new ArrayList<>(stockCodes.size());
+            for (String stockCode : stockCodes) {
+                futures.add(submit(executor, stockCode, run, summary, new StockTask() {
+                    @Override
+                    public void calc(String stockCode) {
+                        recomputeStock(stockCode, calculators, startDt, endDt);
+                    }
+                }));
+            }
+            await(futures, summary);
+        } finally {
+            executor.shutdownNow();
+            run.flush(summary);
+            saveStateSnapshot();
+        }
+        summary.setElapsedMillis(System.currentTimeMillis() - start);
+        getLogger().info("区间重算完成：{}", result);
+        return result;
+    }
+
+    private void recomputeStock(String stockCode, List<AshareTechCalculator> calculators, String startDt, String endDt) {
+        if (stateCache != null) {
+            stateCache.evict(stockCode); // 缓存里的状态可能是用修正前的行情算出来的
+        }
+        rebuildPrices(stockCode);
+
+        String[] seedDts = new String[calculators.size()];
+        String fromDt = null;
+        boolean init = false;
+        int lookback = 0;
+        for (int i = 0; i < calculators.size(); i++) {
+            seedDts[i] = calculators.get(i).getLastTradeDtBefore(stockCode, startDt);
+            lookback = Math.max(lookback, calculators.get(i).getLookback());
+            if (seedDts[i] == null) {
+                init = true;
+            } else if (fromDt == null || seedDts[i].compareTo(fromDt) < 0) {
+                fromDt = seedDts[i];
+            }
+        }
+        List<AshareEodPrices> prices = readPrices(stockCode, init ? null : minusDays(fromDt, lookback * 3), true);
+        if (prices == null || prices.isEmpty()) {
+            return;
+        }
+        if (endDt != null) {
+            prices = prices.subList(0, indexAfter(prices, endDt, false));
+        }
+        calcPrices(stockCode, calculators, seedDts, prices);
+    }
+
+    private void calcBulkStock(String stockCode, List<AshareTechCalculator> calculators, List<Map<String, String>> lastTradeDts,
+                               String floorDt, List<AshareEodPrices> prices) {
+        String[] stockLastTradeDts = new String[calculators.size()];
+        for (int i = 0; i < calculators.size(); i++) {
+            stockLastTradeDts[i] = lastTradeDts.get(i).get(stockCode);
+            if (stockLastTradeDts[i] == null || stockLastTradeDts[i].compareTo(floorDt) < 0) {
+                calcStock(stockCode); // 需要初始化或者断档太久，单独计算
+                return;
+            }
+        }
+        if (prices == null || prices.isEmpty()) {
+            return;
+        }
+        calcPrices(stockCode, calculators, stockLastTradeDts, prices);
+    }
+
+    /**
+     * 把同一份行情依次交给各个计算器，单个计算器出错不影响其他计算器，全部跑完后再抛出第一个异常，以便外层重试
+     *
+     * @param stockCode
+     * @param calculators
+     * @param lastTradeDts
+     * @param prices
+     */
+    protected void calcPrices(String stockCode, List<AshareTechCalculator> calculators, String[] lastTradeDts, List<AshareEodPrices> prices) {
+        RuntimeException firstException = null;
+        for (int i = 0; i < calculators.size(); i++) {
+            try {
+                calculators.get(i).calcPrices(stockCode, lastTradeDts[i], prices);
+            } catch (RuntimeException e) {
+                getLogger().error("股票" + stockCode + "指标计算失败：" + calculators.get(i).getClass().getSimpleName(), e);
+                if (firstException == null) {
+                    firstException = e;
+                }
+            }
+        }
+        if (firstException != null) {
+            throw firstException;
+        }
+    }
+
+    /**
+     * 校验状态缓存中从文件恢复的状态，单个计算器失败只记录日志，它的这些状态继续不被使用
+     *
+     * @param calculators
+     */
+    private void validateState(List<AshareTechCalculator> calculators) {
+        if (stateCache == null) {
+            return;
+        }
+        for (AshareTechCalculator calculator : calculators) {
+            try {
+                calculator.validateState();
+            } catch (RuntimeException e) {
+                getLogger().error("指标状态校验失败：" + calculator.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    /**
+     * 批量计算时使用的指标计算器，指标service自己就是计算器，合并计算的service返回所有计算器
+     *
+     * @return
+     */
+    protected List<AshareTechCalculator> getCalculators() {
+        if (this instanceof AshareTechCalculator) {
+            return Collections.singletonList((AshareTechCalculator) this);
+        }
+        return Collections.emptyList();
+    }
+
+    private static Map<String, List<AshareEodPrices>> groupByStock(List<AshareEodPrices> prices) {
+        Map<String, List<AshareEodPrices>> pricesMap = new HashMap<>();
+        if (prices == null) {
+            return pricesMap;
+        }
+        for (AshareEodPrices price : prices) {
+            String stockCode = price.getsInfoWindcode().substring(0, 6);
+            List<AshareEodPrices> stockPrices = pricesMap.get(stockCode);
+            if (stockPrices == null) {
+                stockPrices = new ArrayList<>();
+                pricesMap.put(stockCode, stockPrices);
+            }
+            stockPrices.add(price);
+        }
+        return pricesMap;
+    }
+
+    private ExecutorService newExecutor(AshareTechRunConfig config) {
+        return config.isForkJoin() ? new ForkJoinPool(config.getThreads()) : Executors.newFixedThreadPool(config.getThreads());
+    }
+
+    private StockFuture submit(ExecutorService executor, final String stockCode, final Run run, final AshareTechRunSummary summary, final StockTask task) {
+        return new StockFuture(stockCode, executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    calcWithRetry(stockCode, run, summary, task);
+                } catch (Throwable e) { // Error等没有被calcWithRetry处理的异常，只影响这一只股票
+                    getLogger().error("股票" + stockCode + "计算失败", e);
+                    summary.markFailed(stockCode);
+                }
+            }
+        }));
+    }
+
+    /**
+     * 等待所有股票算完，每只股票单独等待，一只出错不影响等待其他股票；
+     * 被中断时取消还没有算完的股票并记为失败，保证每只提交的股票都记为成功、跳过或失败之一
+     *
+     * @param futures
+     * @param summary
+     */
+    private void await(List<StockFuture> futures, AshareTechRunSummary summary) {
+        for (int i = 0; i < futures.size(); i++) {
+            StockFuture stockFuture = futures.get(i);
+            try {
+                stockFuture.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (StockFuture remaining : futures.subList(i, futures.size())) {
+                    if (remaining.future.cancel(true)) {
+                        summary.markFailed(remaining.stockCode);
+                    }
+                }
+                getLogger().warn("计算被中断：{}", summary);
+                return;
+            } catch (ExecutionException | CancellationException e) {
+                getLogger().error("股票" + stockFuture.stockCode + "计算异常", e);
+                summary.markFailed(stockFuture.stockCode);
+            }
+        }
+    }
+
+    private void calcWithRetry(String stockCode, Run run, AshareTechRunSummary summary, StockTask task) {
+        RunContext context = null;
+        long start = System.nanoTime();
+        long startBytes = AshareTechRunSummary.allocatedBytes();
+        long attemptStart = start;
+        int queries = 0;
+        int fetchedRows = 0;
+        for (int attempt = 0; context == null; attempt++) {
+            attemptStart = System.nanoTime();
+            RunContext attemptContext = new RunContext(run);
+            RUN_CONTEXT.set(attemptContext);
+            try {
+                task.calc(stockCode);
+                context = attemptContext;
+            } catch (Exception e) {
+                if (attempt >= run.config.getMaxRetries()) {
+                    getLogger().error("股票" + stockCode + "计算失败", e);
+                    summary.markFailed(stockCode);
+                    return;
+                }
+                getLogger().warn("股票{}第{}次计算失败，准备重试：{}", stockCode, attempt + 1, e.getMessage());
+                summary.markRetried();
+                try {
+                    Thread.sleep(run.config.getRetryIntervalMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    summary.markFailed(stockCode);
+                    return;
+                }
+            } finally {
+                RUN_CONTEXT.remove();
+                queries += attemptContext.queries;
+                fetchedRows += attemptContext.fetchedRows;
+            }
+        }
+        long computed = System.nanoTime();
+        long fetchNanos = context.fetchNanos; // 失败的尝试（包括其中的查询）和等待都算在retryNanos里
+        long retryNanos = attemptStart - start;
+        long allocatedBytes = AshareTechRunSummary.allocatedBytes() - startBytes;
+        summary.markStock(stockCode, computed - start, fetchNanos, retryNanos, queries, fetchedRows, allocatedBytes);
+        String service = getClass().getSimpleName();
+        metricsRegistry.timer("tech.stock", "service", service).record(computed - start, TimeUnit.NANOSECONDS);
+        metricsRegistry.timer("tech.compute", "service", service).record(computed - attemptStart - fetchNanos, TimeUnit.NANOSECONDS);
+        if (retryNanos > 0) {
+            metricsRegistry.timer("tech.retry", "service", service).record(retryNanos, TimeUnit.NANOSECONDS);
+        }
+        metricsRegistry.summary("tech.stock.queries", "service", service).record(queries);
+        metricsRegistry.summary("tech.stock.fetchedRows", "service", service).record(fetchedRows);
+        metricsRegistry.summary("tech.stock.writtenRows", "service", service).record(context.writtenRows);
+        metricsRegistry.counter("tech.allocatedBytes", "service", service).increment(allocatedBytes);
+
+        try {
+            if (run.recompute != null) {
+                run.recompute.commit(stockCode, context.pendingRows, run);
+            } else {
+                for (PendingRows<?> pendingRows : context.pendingRows) {
+                    pendingRows.commit(run);
+                }
+            }
+            if (context.writtenRows > 0) {
+                summary.markProcessed(stockCode);
+            } else {
+                summary.markSkipped();
+            }
+        } catch (RuntimeException e) {
+            getLogger().error("股票" + stockCode + "写入失败", e);
+            summary.markFailed(stockCode);
+            if (stateCache != null) {
+                stateCache.evict(stockCode);
+            }
+        }
+    }
+
+    private void saveStateSnapshot() {
+        if (stateCache != null) {
+            stateCache.saveSnapshot();
+        }
+    }
+
+    /**
+     * 查询infoDB，全市场计算时受maxConcurrentReads限制
+     *
+     * @param query
+     * @param clazz
+     * @return
+     */
+    protected <T> List<T> read(Query query, Class<T> clazz) {
+        RunContext context = RUN_CONTEXT.get();
+        if (context != null && context.run.readPermits != null) {
+            context.run.readPermits.acquireUninterruptibly();
+        }
+        long start = System.nanoTime();
+        try {
+            List<T> rows = query.all(clazz);
+            markFetch(context, "infoDB", System.nanoTime() - start, rows == null ? 0 : rows.size(), 1);
+            return rows;
+        } finally {
+            if (context != null && context.run.readPermits != null) {
+                context.run.readPermits.release();
+            }
+        }
+    }
+
+    /**
+     * 按键分页查询infoDB，每一页都经过read，受maxConcurrentReads限制并计入读取统计
+     *
+     * @param source      只带where条件的查询
+     * @param clazz
+     * @param groupColumn 为空时只按orderColumn分页
+     * @param groupKey
+     * @param orderColumn
+     * @param orderKey
+     * @return 遍历时才查询
+     */
+    protected <T> KeysetQuery<T> readPaged(KeysetQuery.Source source, Class<T> clazz, String groupColumn, KeysetQuery.Key<T> groupKey,
+                                           String orderColumn, KeysetQuery.Key<T> orderKey) {
+        KeysetQuery<T> query = new KeysetQuery<T>(source, clazz, groupColumn, groupKey, orderColumn, orderKey) {
+            @Override
+            protected List<T> fetch(Query query, Class<T> clazz) {
+                return read(query, clazz);
+            }
+        };
+        query.setPageSize(pageSize);
+        return query;
+    }
+
+    /**
+     * 按键分页查询firericeDB等其他库
+     *
+     * @param source      只带where条件的查询
+     * @param clazz
+     * @param groupColumn 为空时只按orderColumn分页
+     * @param groupKey
+     * @param orderColumn
+     * @param orderKey
+     * @return 遍历时才查询
+     */
+    protected <T> KeysetQuery<T> queryPaged(KeysetQuery.Source source, Class<T> clazz, String groupColumn, KeysetQuery.Key<T> groupKey,
+                                            String orderColumn, KeysetQuery.Key<T> orderKey) {
+        KeysetQuery<T> query = new KeysetQuery<>(source, clazz, groupColumn, groupKey, orderColumn, orderKey);
+        query.setPageSize(pageSize);
+        return query;
+    }
+
+    /**
+     * firericeDB中一张指标表交易日不早于sinceDt的记录，按(stock_code, trade_dt)分页，用于状态预热和取最后交易日
+     *
+     * @param clazz
+     * @param columns      需要包含stock_code、trade_dt，为空时取所有列
+     * @param sinceDt
+     * @param stockCodeKey
+     * @param tradeDtKey
+     * @return 遍历时才查询
+     */
+    protected <T> KeysetQuery<T> queryPagedSince(final Class<T> clazz, final String columns, final String sinceDt,
+                                                 KeysetQuery.Key<T> stockCodeKey, KeysetQuery.Key<T> tradeDtKey) {
+        return queryPaged(new KeysetQuery.Source() {
+            @Override
+            public Query create() {
+                Query query = getFirericeDB().from(clazz).greatOrEquals("trade_dt", sinceDt);
+                return columns == null ? query : query.select(columns);
+            }
+        }, clazz, "stock_code", stockCodeKey, "trade_dt", tradeDtKey);
+    }
+
+    /**
+     * 记录一次读取，在calcUniverse等批量计算中同时累加到当前股票
+     *
+     * @param context
+     * @param source
+     * @param nanos
+     * @param rows
+     * @param queries
+     */
+    private void markFetch(RunContext context, String source, long nanos, int rows, int queries) {
+        if (context != null) {
+            context.fetchNanos += nanos;
+            context.fetchedRows += rows;
+            context.queries += queries;
+        }
+        metricsRegistry.timer("tech.fetch", "service", getClass().getSimpleName(), "source", source).record(nanos, TimeUnit.NANOSECONDS);
+        metricsRegistry.counter("tech.fetchedRows", "service", getClass().getSimpleName(), "source", source).increment(rows);
+    }
+
+    /**
+     * 读取一只股票交易日在fromDt之后（inclusive为true时含fromDt）、未停牌的行情，按TRADE_DT升序，fromDt为空时读取全部历史
+     * <p>
+     * 启用本地行情时只查询本地最后交易日之后的行情并追加到本地，再从本地读取
+     *
+     * @param stockCode
+     * @param fromDt
+     * @param inclusive
+     * @return
+     */
+    protected List<AshareEodPrices> readPrices(String stockCode, String fromDt, boolean inclusive) {
+        String windCode = WindUtils.transToWindStockCode(stockCode);
+        if (priceStore == null || !priceStore.isEnabled()) {
+            if (fromDt == null) { // 全部历史按页读取，避免单次查询的结果集过大
+                List<AshareEodPrices> prices = new ArrayList<>();
+                for (AshareEodPrices price : readPaged(pricesSource(windCode), AshareEodPrices.class, null, null, "TRADE_DT", PRICE_TRADE_DT_KEY)) {
+                    prices.add(price);
+                }
+                return prices;
+            }
+            Query query = pricesSource(windCode).create();
+            if (inclusive) {
+                query.greatOrEquals("TRADE_DT", fromDt);
+            } else {
+                query.great("TRADE_DT", fromDt);
+            }
+            return read(query.orderBy("TRADE_DT ASC"), AshareEodPrices.class);
+        }
+        refreshPrices(windCode);
+        long start = System.nanoTime();
+        List<AshareEodPrices> prices = priceStore.getPrices(windCode, fromDt, inclusive);
+        markFetch(RUN_CONTEXT.get(), "store", System.nanoTime() - start, prices.size(), 0);
+        return prices;
+    }
+
+    private KeysetQuery.Source pricesSource(final String windCode) {
+        return new KeysetQuery.Source() {
+            @Override
+            public Query create() {
+                return getInfoDB().from("AShareEODPrices")
+                        .where("S_INFO_WINDCODE", windCode)
+                        .not("S_DQ_TRADESTATUS", "停牌");
+            }
+        };
+    }
+
+    /**
+     * 从infoDB补齐本地行情，包括停牌的行
+     *
+     * @param windCode
+     */
+    private void refreshPrices(String windCode) {
+        String lastTradeDt = priceStore.getLastTradeDt(windCode);
+        Query query = getInfoDB().from("AShareEODPrices")
+                .select("S_INFO_WINDCODE, TRADE_DT, S_DQ_ADJHIGH, S_DQ_ADJLOW, S_DQ_ADJCLOSE, S_DQ_TRADESTATUS")
+                .where("S_INFO_WINDCODE", windCode);
+        if (lastTradeDt != null) {
+            query.great("TRADE_DT", lastTradeDt);
+        }
+        priceStore.append(windCode, read(query.orderBy("TRADE_DT ASC"), AshareEodPrices.class));
+    }
+
+    /**
+     * 复权因子变化后，丢弃一只股票的本地行情并从infoDB重新读取全部历史
+     *
+     * @param stockCode
+     */
+    public void rebuildPrices(String stockCode) {
+        if (priceStore == null || !priceStore.isEnabled()) {
+            return;
+        }
+        String windCode = WindUtils.transToWindStockCode(stockCode);
+        priceStore.delete(windCode);
+        refreshPrices(windCode);
+    }
+
+    /**
+     * 指标表中一只股票交易日在[startDt, endDt]内的记录，用于实现AshareTechCalculator.getRows、deleteRows
+     *
+     * @param clazz
+     * @param stockCode
+     * @param startDt
+     * @param endDt     为空表示到最新
+     * @return
+     */
+    protected Query rangeQuery(Class<?> clazz, String stockCode, String startDt, String endDt) {
+        Query query = getFirericeDB().from(clazz)
+                .where("stock_code", stockCode)
+                .greatOrEquals("trade_dt", startDt);
+        if (endDt != null) {
+            query.less("trade_dt", plusDays(endDt, 1));
+        }
+        return query;
+    }
+
+    /**
+     * 写入一只股票按交易日升序的指标，不要求各行的空值情况相同
+     * <p>
+     * 全市场计算时先暂存，calcStock成功后再写；单独调用calcStock时直接按batchSize分批写入
+     *
+     * @param stockCode
+     * @param rows
+     * @param nullMask
+     */
+    protected <T> void write(String stockCode, List<T> rows, AshareTechRowWriter.NullMask<T> nullMask) {
+        write(stockCode, rows, nullMask, null);
+    }
+
+    /**
+     * 同write，行写入成功之后执行afterWrite，用于更新状态缓存
+     * <p>
+     * crossStockBatch为true时行先放在writer的缓存里，afterWrite等这只股票所在的批次都写入后才执行，
+     * 写入失败时不执行，所以状态缓存不会超前于表里的记录
+     *
+     * @param stockCode
+     * @param rows
+     * @param nullMask
+     * @param afterWrite 可以为空
+     */
+    protected <T> void write(String stockCode, List<T> rows, AshareTechRowWriter.NullMask<T> nullMask, Runnable afterWrite) {
+        if (rows == null || rows.isEmpty()) {
+            return;
+        }
+        RunContext context = RUN_CONTEXT.get();
+        if (context == null) {
+            AshareTechRowWriter<T> writer = new AshareTechRowWriter<>(DEFAULT_BATCH_SIZE, nullMask, newSink(null, null));
+            writer.add(stockCode, rows);
+            writer.flush();
+            if (afterWrite != null) {
+                afterWrite.run();
+            }
+            return;
+        }
+        context.pendingRows.add(new PendingRows<>(this, stockCode, rows, nullMask, afterWrite));
+        context.writtenRows += rows.size();
+    }
+
+    protected AshareTechStateCache getStateCache() {
+        return stateCache;
+    }
+
+    /**
+     * @param writePermits 为空表示不限制
+     * @param summary      为空表示不汇总写入耗时
+     * @return
+     */
+    private AshareTechRowWriter.Sink newSink(final Semaphore writePermits, final AshareTechRunSummary summary) {
+        return new AshareTechRowWriter.Sink() {
+            @Override
+            public void insert(List<?> rows) {
+                if (writePermits != null) {
+                    writePermits.acquireUninterruptibly();
+                }
+                long start = System.nanoTime();
+                try {
+                    getFirericeDB().batchInsert(rows);
+                } finally {
+                    if (writePermits != null) {
+                        writePermits.release();
+                    }
+                    markWrite(summary, System.nanoTime() - start, rows.size());
+                }
+            }
+        };
+    }
+
+    private void markWrite(AshareTechRunSummary summary, long nanos, int rows) {
+        if (summary != null) {
+            summary.markWrite(nanos);
+        }
+        metricsRegistry.timer("tech.write", "service", getClass().getSimpleName()).record(nanos, TimeUnit.NANOSECONDS);
+        metricsRegistry.counter("tech.writtenRows", "service", getClass().getSimpleName()).increment(rows);
+    }
+
+    /**
+     * 返回升序行情中第一条交易日大于（inclusive为true时大于等于）tradeDt的下标，tradeDt为空时返回0
+     *
+     * @param prices
+     * @param tradeDt
+     * @param inclusive
+     * @return
+     */
+    protected static int indexAfter(List<AshareEodPrices> prices, String tradeDt, boolean inclusive) {
+        if (tradeDt == null) {
+            return 0;
+        }
+        for (int i = 0; i < prices.size(); i++) {
+            int compare = prices.get(i).getTradeDt().compareTo(tradeDt);
+            if (compare > 0 || (inclusive && compare == 0)) {
+                return i;
+            }
+        }
+        return prices.size();
+    }
+
+    /**
+     * yyyyMMdd格式的日期往前推days个自然日
+     *
+     * @param tradeDt
+     * @param days
+     * @return
+     */
+    protected static String minusDays(String tradeDt, int days) {
+        return plusDays(tradeDt, -days);
+    }
+
+    /**
+     * yyyyMMdd格式的日期往后推days个自然日
+     *
+     * @param tradeDt
+     * @param days
+     * @return
+     */
+    protected static String plusDays(String tradeDt, int days) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+        try {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(format.parse(tradeDt));
+            calendar.add(Calendar.DATE, days);
+            return format.format(calendar.getTime());
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("日期格式错误：" + tradeDt, e);
+        }
+    }
+
+    /**
+     * 把一条记录的交易日合并到每只股票最大交易日的map里，用于实现AshareTechCalculator.getLastTradeDts
+     *
+     * @param lastTradeDts
+     * @param stockCode
+     * @param tradeDt
+     */
+    protected static void putLastTradeDt(Map<String, String> lastTradeDts, String stockCode, String tradeDt) {
+        String lastTradeDt = lastTradeDts.get(stockCode);
+        if (lastTradeDt == null || lastTradeDt.compareTo(tradeDt) < 0) {
+            lastTradeDts.put(stockCode, tradeDt);
+        }
+    }
+
+    /**
+     * 计算入口是否跳过：calc.tech.fused为true时跳过各指标计算器自己的入口，由AshareTechFusedService覆盖
+     *
+     * @return
+     */
+    protected boolean isSkipped() {
+        return fused && this instanceof AshareTechCalculator;
+    }
+
+    public boolean isFused() {
+        return fused;
+    }
+
+    public void setFused(boolean fused) {
+        this.fused = fused;
+    }
+
+    public boolean isFastMode() {
+        return fastMode;
+    }
+
+    public void setFastMode(boolean fastMode) {
+        this.fastMode = fastMode;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * 一次calcUniverse共享的状态
+     */
+    private static class Run {
+
+        private final AshareTechRunConfig config;
+
+        private final Semaphore readPermits;
+
+        private final Semaphore writePermits;
+
+        private final AshareTechStateCache stateCache;
+
+        private final AshareTechRunSummary summary;
+
+        // 按区间重算时不为空
+        private final Recompute recompute;
+
+        // 为空表示同步写入
+        private final AshareTechWriteBehind writeBehind;
+
+        // 每个指标service一个writer，多只股票共用
+        private final Map<AshareBatchTechService, AshareTechRowWriter<?>> writers = new LinkedHashMap<>();
+
+        // writeBehind时每个指标service一个sink，同一个sink的行在写入线程里合并
+        private final Map<AshareBatchTechService, AshareTechRowWriter.Sink> sinks = new HashMap<>();
+
+        Run(AshareTechRunConfig config, AshareTechStateCache stateCache, AshareTechRunSummary summary, Recompute recompute,
+            AshareTechWriteBehind writeBehind) {
+            this.config = config;
+            this.stateCache = stateCache;
+            this.summary = summary;
+            this.recompute = recompute;
+            this.writeBehind = writeBehind;
+            this.readPermits = config.getMaxConcurrentReads() > 0 ? new Semaphore(config.getMaxConcurrentReads(), true) : null;
+            this.writePermits = config.getMaxConcurrentWrites() > 0 ? new Semaphore(config.getMaxConcurrentWrites(), true) : null;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> AshareTechRowWriter<T> writer(AshareBatchTechService service, AshareTechRowWriter.NullMask<T> nullMask) {
+            synchronized (writers) {
+                AshareTechRowWriter<T> writer = (AshareTechRowWriter<T>) writers.get(service);
+                if (writer == null) {
+                    writer = new AshareTechRowWriter<>(config.getBatchSize(), nullMask, service.newSink(writePermits, summary));
+                    writers.put(service, writer);
+                }
+                return writer;
+            }
+        }
+
+        AshareTechRowWriter.Sink sink(AshareBatchTechService service) {
+            synchronized (sinks) {
+                AshareTechRowWriter.Sink sink = sinks.get(service);
+                if (sink == null) {
+                    sink = service.newSink(writePermits, summary);
+                    sinks.put(service, sink);
+                }
+                return sink;
+            }
+        }
+
+        /**
+         * 交给writeBehind异步写入，写入失败时把股票记为失败并移出状态缓存
+         *
+         * @param stockCode
+         * @param future
+         */
+        void track(final String stockCode, CompletableFuture<Void> future) {
+            future.whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void v, Throwable e) {
+                    if (e == null) {
+                        return;
+                    }
+                    LoggerFactory.getLogger(AshareBatchTechService.class).error("股票" + stockCode + "写入失败：" + e.getMessage());
+                    summary.markFailed(stockCode);
+                    if (stateCache != null) {
+                        stateCache.evict(stockCode);
+                    }
+                }
+            });
+        }
+
+        /**
+         * 写入所有writer里剩余的行，等待writeBehind写完，并把写入失败的股票记到summary里
+         *
+         * @param summary
+         */
+        void flush(AshareTechRunSummary summary) {
+            List<AshareTechRowWriter<?>> writerList;
+            synchronized (writers) {
+                writerList = new ArrayList<>(writers.values());
+            }
+            for (AshareTechRowWriter<?> writer : writerList) {
+                try {
+                    writer.flush();
+                } catch (RuntimeException e) {
+                    LoggerFactory.getLogger(AshareBatchTechService.class).error("指标写入失败", e);
+                }
+                for (String stockCode : writer.drainFailedStockCodes()) {
+                    summary.markFailed(stockCode);
+                    if (stateCache != null) {
+                        stateCache.evict(stockCode);
+                    }
+                }
+            }
+            if (writeBehind != null) {
+                writeBehind.flush();
+            }
+        }
+    }
+
+    /**
+     * 一次recompute共享的状态，代替PendingRows.commit完成一只股票
+     */
+    private static class Recompute {
+
+        private final List<AshareTechCalculator> calculators;
+
+        private final AshareTechRecomputeResult result;
+
+        Recompute(List<AshareTechCalculator> calculators, AshareTechRecomputeResult result) {
+            this.calculators = calculators;
+            this.result = result;
+        }
+
+        /**
+         * 按计算器分别处理：dryRun时与库里区间内的记录比较，否则先删除区间内的记录再同步写入，
+         * 写入失败时恢复原来的记录后抛出异常；写入后的状态只到endDt，所以最后再丢弃这只股票的状态缓存
+         *
+         * @param stockCode
+         * @param pendingRows
+         * @param run
+         */
+        void commit(String stockCode, List<PendingRows<?>> pendingRows, Run run) {
+            for (AshareTechCalculator calculator : calculators) {
+                List<PendingRows<?>> calculatorRows = new ArrayList<>();
+                for (PendingRows<?> rows : pendingRows) {
+                    if (rows.service == calculator) {
+                        calculatorRows.add(rows);
+                    }
+                }
+                if (result.isDryRun()) {
+                    List<Object> rows = new ArrayList<>();
+                    for (PendingRows<?> calculatorRow : calculatorRows) {
+                        rows.addAll(calculatorRow.rows);
+                    }
+                    result.diff(calculator.getClass().getSimpleName(), stockCode,
+                            calculator.getRows(stockCode, result.getStartDt(), result.getEndDt()), rows);
+                    continue;
+                }
+
+                List<?> oldRows = calculatorRows.isEmpty() ? null : calculator.getRows(stockCode, result.getStartDt(), result.getEndDt());
+                deleteRows(calculator, stockCode, run);
+                try {
+                    for (PendingRows<?> calculatorRow : calculatorRows) {
+                        calculatorRow.commitNow(run);
+                    }
+                } catch (RuntimeException e) {
+                    restore(calculator, stockCode, calculatorRows.get(0), oldRows, run, e);
+                    throw e;
+                }
+            }
+            if (run.stateCache != null) {
+                run.stateCache.evict(stockCode);
+            }
+        }
+
+        private void deleteRows(AshareTechCalculator calculator, String stockCode, Run run) {
+            if (run.writePermits != null) {
+                run.writePermits.acquireUninterruptibly();
+            }
+            long start = System.nanoTime();
+            try {
+                calculator.deleteRows(stockCode, result.getStartDt(), result.getEndDt());
+            } finally {
+                if (run.writePermits != null) {
+                    run.writePermits.release();
+                }
+                run.summary.markWrite(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * 新记录写入失败后，删掉已经写入的部分，把删除前的记录写回去；恢复也失败时区间内的记录不完整，需要重新执行recompute
+         *
+         * @param calculator
+         * @param stockCode
+         * @param template   提供写回时用的NullMask和sink
+         * @param oldRows    删除前区间内的记录
+         * @param run
+         * @param cause      写入新记录时的异常，恢复失败的异常加在它上面
+         */
+        @SuppressWarnings("unchecked")
+        private <T> void restore(AshareTechCalculator calculator, String stockCode, PendingRows<T> template, List<?> oldRows, Run run,
+                                 RuntimeException cause) {
+            try {
+                deleteRows(calculator, stockCode, run);
+                if (oldRows != null && !oldRows.isEmpty()) {
+                    new PendingRows<>(template.service, stockCode, (List<T>) oldRows, template.nullMask, null).commitNow(run);
+                }
+                LoggerFactory.getLogger(AshareBatchTechService.class).warn("股票{}区间重算写入失败，已恢复原来的{}条{}记录",
+                        stockCode, oldRows == null ? 0 : oldRows.size(), calculator.getClass().getSimpleName());
+            } catch (RuntimeException e) {
+                cause.addSuppressed(e);
+                LoggerFactory.getLogger(AshareBatchTechService.class).error("股票" + stockCode + "区间重算写入失败且恢复失败，"
+                        + calculator.getClass().getSimpleName() + "在" + result.getStartDt() + "之后的记录不完整，需要重新执行recompute", e);
+            }
+        }
+    }
+
+    /**
+     * 提交到线程池的一只股票
+     */
+    private static class StockFuture {
+
+        private final String stockCode;
+
+        private final Future<?> future;
+
+        StockFuture(String stockCode, Future<?> future) {
+            this.stockCode = stockCode;
+            this.future = future;
+        }
+    }
+
+    /**
+     * 一只股票的计算任务
+     */
+    private interface StockTask {
+        void calc(String stockCode);
+    }
+
+    /**
+     * 一只股票一次计算的上下文
+     */
+    private static class RunContext {
+
+        private final Run run;
+
+        private final List<PendingRows<?>> pendingRows = new ArrayList<>();
+
+        private int writtenRows;
+
+        private long fetchNanos;
+
+        private int fetchedRows;
+
+        private int queries;
+
+        RunContext(Run run) {
+            this.run = run;
+        }
+    }
+
+    /**
+     * calcStock成功前暂存的行
+     */
+    private static class PendingRows<T> {
+
+        private final AshareBatchTechService service;
+
+        private final String stockCode;
+
+        private final List<T> rows;
+
+        private final AshareTechRowWriter.NullMask<T> nullMask;
+
+        private final Runnable afterWrite;
+
+        PendingRows(AshareBatchTechService service, String stockCode, List<T> rows, AshareTechRowWriter.NullMask<T> nullMask, Runnable afterWrite) {
+            this.service = service;
+            this.stockCode = stockCode;
+            this.rows = rows;
+            this.nullMask = nullMask;
+            this.afterWrite = afterWrite;
+        }
+
+        void commit(Run run) {
+            if (run.writeBehind != null) { // afterWrite在写入确认后由写入线程执行
+                run.track(stockCode, run.writeBehind.submit(stockCode, rows, nullMask, run.sink(service), afterWrite));
+                return;
+            }
+            if (run.config.isCrossStockBatch()) { // afterWrite在这只股票所在的批次写入后由writer执行
+                run.writer(service, nullMask).add(stockCode, rows, afterWrite);
+                return;
+            }
+            commitNow(run);
+        }
+
+        /**
+         * 不经过crossStockBatch和writeBehind的缓存，在当前线程写完，写入失败时抛出异常
+         *
+         * @param run
+         */
+        void commitNow(Run run) {
+            AshareTechRowWriter<T> writer = new AshareTechRowWriter<>(run.config.getBatchSize(), nullMask, service.newSink(run.writePermits, run.summary));
+            writer.add(stockCode, rows);
+            writer.flush();
+            if (afterWrite != null) {
+                afterWrite.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.wnbt.calc.tech.service;
+
+import java.math.BigDecimal;
+
+/**
+ * Description:流式CCI计算，按交易日顺序逐条传入typ，得到当天的CCI
+ * <p>
+ * 用环形数组保存前period-1天的typ，同时维护它们的和，每天只需加上新的、减去最老的一条；
+ * 平均绝对偏差依赖当天的均值，仍需遍历窗口，但不再创建subList和常量对象。
+ * 计算过程和舍入方式与原来AshareCciService.getCci完全一致：均值保留4位，CCI保留2位，都是HALF_UP。
+ * <p>
+ * 非线程安全，每只股票使用一个实例
+ */
+public class AshareCciEngine {
+
+    public static final int DEFAULT_PERIOD = 14;
+
+    private static final BigDecimal THREE = new BigDecimal(3);
+
+    // 与原实现一致，使用double构造的0.015，保证结果逐位相同；AshareTechFastMath也使用它
+    static final BigDecimal FACTOR = new BigDecimal(0.015);
+
+    private final int period;
+
+    private final BigDecimal periodDecimal;
+
+    private final BigDecimal[] ring;
+
+    private int head;
+
+    private int count;
+
+    private BigDecimal sum = BigDecimal.ZERO;
+
+    public AshareCciEngine() {
+        this(DEFAULT_PERIOD);
+    }
+
+    public AshareCciEngine(int period) {
+        if (period < 2) {
+            throw new IllegalArgumentException("CCI周期至少为2：" + period);
+        }
+        this.period = period;
+        this.periodDecimal = new BigDecimal(period);
+        this.ring = new BigDecimal[period - 1];
+    }
+
+    /**
+     * 计算typ = (最高价 + 最低价 + 收盘价) / 3，最高价、最低价为空时用收盘价代替
+     *
+     * @param sDqAdjhigh
+     * @param sDqAdjlow
+     * @param sDqAdjclose
+     * @return
+     */
+    public static BigDecimal typ(BigDecimal sDqAdjhigh, BigDecimal sDqAdjlow, BigDecimal sDqAdjclose) {
+        BigDecimal typParam1 = sDqAdjhigh == null ? sDqAdjclose : sDqAdjhigh; // 计算typ所需要的参数1
+        BigDecimal typParam2 = sDqAdjlow == null ? sDqAdjclose : sDqAdjlow; // 计算typ所需要的参数2
+        return typParam1.add(typParam2).add(sDqAdjclose).divide(THREE, 4, BigDecimal.ROUND_HALF_UP);
+    }
+
+    /**
+     * 只把typ放入窗口，不计算CCI，用于增量计算时用库里的历史typ预热
+     *
+     * @param typ
+     */
+    public void push(BigDecimal typ) {
+        if (count == ring.length) {
+            sum = sum.subtract(ring[head]);
+        } else {
+            count++;
+        }
+        ring[head] = typ;
+        sum = sum.add(typ);
+        head = (head + 1) % ring.length;
+    }
+
+    /**
+     * 计算当天的CCI并把typ放入窗口，窗口中不足period-1天时返回null
+     *
+     * @param typToday
+     * @return
+     */
+    public BigDecimal next(BigDecimal typToday) {
+        BigDecimal cci = peek(typToday);
+        push(typToday);
+        return cci;
+    }
+
+    /**
+     * 只计算当天的CCI，不改变窗口
+     *
+     * @param typToday
+     * @return
+     */
+    public BigDecimal peek(BigDecimal typToday) {
+        if (count < ring.length) {
+            return null;
+        }
+
+        BigDecimal sumTyp = sum.add(typToday);
+        BigDecimal avgTyp = sumTyp.divide(periodDecimal, 4, BigDecimal.ROUND_HALF_UP);
+        BigDecimal sumAvgTyp = typToday.subtract(avgTyp).abs();
+        for (BigDecimal typ : ring) {
+            sumAvgTyp = sumAvgTyp.add(typ.subtract(avgTyp).abs());
+        }
+        if (sumAvgTyp.signum() == 0) { // 原实现除以0时返回null
+            return null;
+        }
+        return typToday.multiply(periodDecimal).subtract(sumTyp).divide(FACTOR.multiply(sumAvgTyp), 2, BigDecimal.ROUND_HALF_UP);
+    }
+
+    public int getPeriod() {
+        return period;
+    }
+
+    /**
+     * 窗口是否已经有period-1天的typ
+     *
+     * @return
+     */
+    public boolean isReady() {
+        return count == ring.length;
+    }
+}
@@ -1,151 +1,287 @@
-package com.wnbt.calc.tech.service;
-
-import cn.huoqiu.base.db.Query;
-import cn.huoqiu.base.lang.Lists;
-import com.wnbt.base.utils.WindUtils;
-import com.wnbt.entity.AshareCci;
-import com.wnbt.entity.AshareEodPrices;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Service;
-
-import java.math.BigDecimal;
-import java.util.Collections;
-import java.util.List;
-
-/**
- * Created by chenchen on 2017/10/19 14:21
- * Description:计算股票的CCI指标并存到数据库 Service
- */
-@Service
-public class AshareCciService extends AshareBaseTechService{
-
-    @Override
-    protected Logger getLogger(){
-        return LoggerFactory.getLogger(AshareCciService.class);
-    }
-
-    @Override
-    public void calcStock(String stockCode) {
-        AshareCci ashareCci = getFirericeDB().from(AshareCci.class)
-                .where("stock_code", stockCode)
-                .orderBy("trade_dt DESC")
-                .first(AshareCci.class);
-        Query query = getInfoDB().from("AShareEODPrices")
-                .where("S_INFO_WINDCODE", WindUtils.transToWindStockCode(stockCode))
-                .not("S_DQ_TRADESTATUS", "停牌");
-        if (ashareCci != null) {
-            query.great("trade_dt", ashareCci.getTradeDt());
-        }
-        List<AshareEodPrices> aShareEODPricesList = query.orderBy("TRADE_DT ASC").all(AshareEodPrices.class);
-
-        if (aShareEODPricesList == null || aShareEODPricesList.isEmpty()) {
-            return;
-        }
-        List<AshareCci> modelList = Lists.newArrayList();
-        List<AshareCci> modelListHasCci = Lists.newArrayList();
-        List<AshareCci> modelListNoCci = Lists.newArrayList();
-
-        if (ashareCci == null) { // 为空即需要进行初始化，要把前13天的typ先计算好
-            for (int i = 0; i < aShareEODPricesList.size(); i++) {
-                AshareCci model = new AshareCci();
-                AshareEodPrices ashareEodPrices = aShareEODPricesList.get(i);
-                model.setStockCode(ashareEodPrices.getsInfoWindcode().substring(0, 6));
-                model.setTradeDt(ashareEodPrices.getTradeDt());
-                BigDecimal sDqAdjhigh = ashareEodPrices.getsDqAdjhigh();
-                BigDecimal sDqAdjlow = ashareEodPrices.getsDqAdjlow();
-                BigDecimal sDqAdjclose = ashareEodPrices.getsDqAdjclose();
-                BigDecimal typParam1 = sDqAdjhigh == null ? sDqAdjclose : sDqAdjhigh; // 计算typ所需要的参数1
-                BigDecimal typParam2 = sDqAdjlow == null ? sDqAdjclose : sDqAdjlow; // 计算typ所需要的参数2
-                BigDecimal typ = typParam1.add(typParam2).add(sDqAdjclose).divide(new BigDecimal(3), 4, BigDecimal.ROUND_HALF_UP);
-                model.setTyp(typ);
-                if (i > 12) {
-                    model.setCci(getCci(modelList.subList(i - 13, i), typ));
-                }
-
-                modelList.add(model);
-                if (model.getCci() == null) {
-                    modelListNoCci.add(model);
-                } else {
-                    modelListHasCci.add(model);
-                }
-
-            }
-        } else { // 不需要初始化则需要取前13天的数据用于计算
-            String startDt = aShareEODPricesList.get(0).getTradeDt();
-            modelList = getFirericeDB().from(AshareCci.class)
-                    .where("stock_code", stockCode)
-                    .less("trade_dt", startDt)
-                    .orderBy("trade_dt DESC")
-                    .limit(13)
-                    .all(AshareCci.class);
-            if (modelList.size() < 13) {
-                return;
-            }
-            Collections.reverse(modelList);
-
-            for (int i = 0; i < aShareEODPricesList.size(); i++) {
-                AshareCci model = new AshareCci();
-                AshareEodPrices ashareEodPrices = aShareEODPricesList.get(i);
-                model.setStockCode(ashareEodPrices.getsInfoWindcode().substring(0, 6));
-                model.setTradeDt(ashareEodPrices.getTradeDt());
-                BigDecimal sDqAdjhigh = ashareEodPrices.getsDqAdjhigh();
-                BigDecimal sDqAdjlow = ashareEodPrices.getsDqAdjlow();
-                BigDecimal sDqAdjclose = ashareEodPrices.getsDqAdjclose();
-                BigDecimal typParam1 = sDqAdjhigh == null ? sDqAdjclose : sDqAdjhigh; // 计算typ所需要的参数1
-                BigDecimal typParam2 = sDqAdjlow == null ? sDqAdjclose : sDqAdjlow; // 计算typ所需要的参数2
-                BigDecimal typ = typParam1.add(typParam2).add(sDqAdjclose).divide(new BigDecimal(3), 4, BigDecimal.ROUND_HALF_UP);
-                model.setTyp(typ);
-                model.setCci(getCci(modelList.subList(i, i + 13), typ));
-                modelList.add(model);
-                if (model.getCci() == null) {
-                    modelListNoCci.add(model);
-                } else {
-                    modelListHasCci.add(model);
-                }
-
-            }
-        }
-
-        if (modelListNoCci.size() > 0) {
-            getFirericeDB().batchInsert(modelListNoCci);
-        }
-        if (modelListHasCci.size() > 0) {
-            getFirericeDB().batchInsert(modelListHasCci);
-        }
-    }
-
-    /**
-     * CCI计算
-     *
-     * @param ashareCciList
-     * @param typToday
-     * @return
-     */
-    private BigDecimal getCci(List<AshareCci> ashareCciList, BigDecimal typToday) {
-        if (ashareCciList.size() != 13) {
-            return null;
-        }
-
-        BigDecimal sumTyp = BigDecimal.ZERO;
-        BigDecimal avgTyp;
-        BigDecimal sumAvgTyp = BigDecimal.ZERO;
-        for (AshareCci ashareCci : ashareCciList) {
-            sumTyp = sumTyp.add(ashareCci.getTyp());
-        }
-        sumTyp = sumTyp.add(typToday);
-
-        avgTyp = sumTyp.divide(new BigDecimal(14), 4, BigDecimal.ROUND_HALF_UP);
-        for (AshareCci ashareCci : ashareCciList) {
-            sumAvgTyp = sumAvgTyp.add(ashareCci.getTyp().subtract(avgTyp).abs());
-        }
-        sumAvgTyp = sumAvgTyp.add(typToday.subtract(avgTyp).abs());
-
-        try {
-            return (typToday.multiply(new BigDecimal(14)).subtract(sumTyp)).divide(new BigDecimal(0.015).multiply(sumAvgTyp), 2, BigDecimal.ROUND_HALF_UP);
-        } catch (Exception e) {
-            return null;
-        }
-
-    }
-}
+package com.wnbt.calc.tech.service;
+
+import cn.huoqiu.base.lang.Lists;
+import com.wnbt.entity.AshareCci;
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.db.KeysetQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Created by chenchen on 2017/10/19 14:21
+ * Description:计算股票的CCI指标并存到数据库 Service
+ */
+@Service
+public class AshareCciService extends AshareBatchTechService implements AshareTechCalculator {
+
+    // 前13天没有cci
+    static final AshareTechRowWriter.NullMask<AshareCci> NULL_MASK = new AshareTechRowWriter.NullMask<AshareCci>() {
+        @Override
+        public int of(AshareCci row) {
+            return row.getCci() == null ? 1 : 0;
+        }
+    };
+
+    static final KeysetQuery.Key<AshareCci> STOCK_CODE_KEY = new KeysetQuery.Key<AshareCci>() {
+        @Override
+        public Object of(AshareCci row) {
+            return row.getStockCode();
+        }
+    };
+
+    static final KeysetQuery.Key<AshareCci> TRADE_DT_KEY = new KeysetQuery.Key<AshareCci>() {
+        @Override
+        public Object of(AshareCci row) {
+            return row.getTradeDt();
+        }
+    };
+
+    @Override
+    protected Logger getLogger(){
+        return LoggerFactory.getLogger(AshareCciService.class);
+    }
+
+    @Override
+    public void calcStock(String stockCode) {
+        if (isSkipped()) { // 由AshareTechFusedService统一计算
+            return;
+        }
+        String lastTradeDt = getLastTradeDt(stockCode);
+        calcPrices(stockCode, lastTradeDt, readPrices(stockCode, lastTradeDt, false));
+    }
+
+    @Override
+    public String getLastTradeDt(String stockCode) {
+        AshareTechStateCache.CciState state = getStateCache() == null ? null : getStateCache().getCci(stockCode);
+        if (state != null) {
+            return state.getLastTradeDt();
+        }
+        AshareCci ashareCci = getFirericeDB().from(AshareCci.class)
+                .where("stock_code", stockCode)
+                .orderBy("trade_dt DESC")
+                .first(AshareCci.class);
+        return ashareCci == null ? null : ashareCci.getTradeDt();
+    }
+
+    @Override
+    public Map<String, String> getLastTradeDts(String sinceDt) {
+        Map<String, String> lastTradeDts = new HashMap<>();
+        for (AshareCci model : queryPagedSince(AshareCci.class, "stock_code, trade_dt", sinceDt, STOCK_CODE_KEY, TRADE_DT_KEY)) {
+            putLastTradeDt(lastTradeDts, model.getStockCode(), model.getTradeDt());
+        }
+        return lastTradeDts;
+    }
+
+    @Override
+    public String getLastTradeDtBefore(String stockCode, String tradeDt) {
+        AshareCci model = getFirericeDB().from(AshareCci.class)
+                .select("trade_dt")
+                .where("stock_code", stockCode)
+                .less("trade_dt", tradeDt)
+                .orderBy("trade_dt DESC")
+                .first(AshareCci.class);
+        return model == null ? null : model.getTradeDt();
+    }
+
+    @Override
+    public List<AshareCci> getRows(String stockCode, String startDt, String endDt) {
+        return rangeQuery(AshareCci.class, stockCode, startDt, endDt).orderBy("trade_dt ASC").all(AshareCci.class);
+    }
+
+    @Override
+    public void deleteRows(String stockCode, String startDt, String endDt) {
+        rangeQuery(AshareCci.class, stockCode, startDt, endDt).delete();
+    }
+
+    @Override
+    public int getLookback() {
+        return 0;
+    }
+
+    @Override
+    public void calcPrices(String stockCode, String lastTradeDt, List<AshareEodPrices> prices) {
+        if (prices == null || prices.isEmpty()) {
+            return;
+        }
+        List<AshareEodPrices> aShareEODPricesList = prices.subList(indexAfter(prices, lastTradeDt, false), prices.size());
+        if (aShareEODPricesList.isEmpty()) {
+            return;
+        }
+        List<BigDecimal> preTyps = null;
+        if (lastTradeDt != null) { // 不需要初始化则需要取前13天的数据用于计算
+            preTyps = getPreTyps(stockCode, lastTradeDt, aShareEODPricesList.get(0).getTradeDt());
+            if (preTyps.size() < AshareCciEngine.DEFAULT_PERIOD - 1) {
+                return;
+            }
+        }
+
+        final List<AshareCci> modelList = isFastMode() ? calcFast(aShareEODPricesList, preTyps) : calcExact(aShareEODPricesList, preTyps);
+        final List<BigDecimal> stateTyps = preTyps == null ? new ArrayList<BigDecimal>() : preTyps;
+        write(stockCode, modelList, NULL_MASK, new Runnable() {
+            @Override
+            public void run() {
+                for (AshareCci model : modelList) {
+                    stateTyps.add(model.getTyp());
+                }
+                putState(stockCode, modelList.get(modelList.size() - 1).getTradeDt(), stateTyps);
+            }
+        });
+    }
+
+    /**
+     * 前13天的typ（升序），缓存里的状态正好到lastTradeDt时直接使用，否则查库
+     *
+     * @param stockCode
+     * @param lastTradeDt
+     * @param startDt     需要计算的第一天
+     * @return
+     */
+    private List<BigDecimal> getPreTyps(String stockCode, String lastTradeDt, String startDt) {
+        AshareTechStateCache.CciState state = getStateCache() == null ? null : getStateCache().getCci(stockCode);
+        if (state != null && state.getLastTradeDt().equals(lastTradeDt)) {
+            return state.getTyps();
+        }
+        List<AshareCci> preModelList = getFirericeDB().from(AshareCci.class)
+                .select("typ")
+                .where("stock_code", stockCode)
+                .less("trade_dt", startDt)
+                .orderBy("trade_dt DESC")
+                .limit(AshareCciEngine.DEFAULT_PERIOD - 1)
+                .all(AshareCci.class);
+        List<BigDecimal> preTyps = new ArrayList<>(preModelList.size());
+        for (AshareCci preModel : preModelList) {
+            preTyps.add(preModel.getTyp());
+        }
+        Collections.reverse(preTyps);
+        return preTyps;
+    }
+
+    /**
+     * 只保留最后13天的typ放进缓存
+     *
+     * @param stockCode
+     * @param lastTradeDt
+     * @param typs
+     */
+    private void putState(String stockCode, String lastTradeDt, List<BigDecimal> typs) {
+        if (getStateCache() == null || typs.size() < AshareCciEngine.DEFAULT_PERIOD - 1) {
+            return;
+        }
+        getStateCache().put(AshareTechStateCache.Indicator.CCI, stockCode,
+                new AshareTechStateCache.CciState(lastTradeDt, typs.subList(typs.size() - (AshareCciEngine.DEFAULT_PERIOD - 1), typs.size())));
+    }
+
+    @Override
+    public void validateState() {
+        String sinceDt = getStateCache() == null ? null : getStateCache().getUnverifiedSince(AshareTechStateCache.Indicator.CCI);
+        if (sinceDt != null) {
+            getStateCache().verify(AshareTechStateCache.Indicator.CCI, getLastTradeDts(sinceDt));
+        }
+    }
+
+    @Override
+    public void warmState(String sinceDt) {
+        if (getStateCache() == null) {
+            return;
+        }
+        Set<String> stockCodes = getStateCache().retainValid(AshareTechStateCache.Indicator.CCI, getLastTradeDts(sinceDt));
+        if (stockCodes.isEmpty()) {
+            return;
+        }
+        // 按股票、交易日分页读取，每只股票只保留最后13天的typ
+        String stockCode = null;
+        String lastTradeDt = null;
+        List<BigDecimal> typs = new ArrayList<>();
+        for (AshareCci model : queryPagedSince(AshareCci.class, "stock_code, trade_dt, typ", sinceDt, STOCK_CODE_KEY, TRADE_DT_KEY)) {
+            if (!model.getStockCode().equals(stockCode)) {
+                if (stockCode != null && stockCodes.contains(stockCode)) {
+                    putState(stockCode, lastTradeDt, typs);
+                }
+                stockCode = model.getStockCode();
+                typs.clear();
+            }
+            if (typs.size() == AshareCciEngine.DEFAULT_PERIOD - 1) {
+                typs.remove(0);
+            }
+            typs.add(model.getTyp());
+            lastTradeDt = model.getTradeDt();
+        }
+        if (stockCode != null && stockCodes.contains(stockCode)) {
+            putState(stockCode, lastTradeDt, typs);
+        }
+    }
+
+    /**
+     * BigDecimal精确计算
+     *
+     * @param aShareEODPricesList 需要计算的行情
+     * @param preTyps             前13天的typ，初始化时为空
+     * @return
+     */
+    List<AshareCci> calcExact(List<AshareEodPrices> aShareEODPricesList, List<BigDecimal> preTyps) {
+        AshareCciEngine cciEngine = new AshareCciEngine(AshareCciEngine.DEFAULT_PERIOD);
+        if (preTyps != null) {
+            for (BigDecimal preTyp : preTyps) {
+                cciEngine.push(preTyp);
+            }
+        }
+
+        List<AshareCci> modelList = Lists.newArrayList();
+        for (AshareEodPrices ashareEodPrices : aShareEODPricesList) {
+            AshareCci model = new AshareCci();
+            model.setStockCode(ashareEodPrices.getsInfoWindcode().substring(0, 6));
+            model.setTradeDt(ashareEodPrices.getTradeDt());
+            BigDecimal typ = AshareCciEngine.typ(ashareEodPrices.getsDqAdjhigh(), ashareEodPrices.getsDqAdjlow(), ashareEodPrices.getsDqAdjclose());
+            model.setTyp(typ);
+            model.setCci(cciEngine.next(typ)); // 初始化时前13天窗口不满，返回null
+            modelList.add(model);
+        }
+        return modelList;
+    }
+
+    /**
+     * 放大成long的快速计算，舍入方式与精确模式相同，结果逐位一致；价格超过4位小数时改用精确模式
+     *
+     * @param aShareEODPricesList 需要计算的行情
+     * @param preTyps             前13天的typ，初始化时为空
+     * @return
+     */
+    List<AshareCci> calcFast(List<AshareEodPrices> aShareEODPricesList, List<BigDecimal> preTyps) {
+        int preSize = preTyps == null ? 0 : preTyps.size();
+        long[] typ = new long[preSize + aShareEODPricesList.size()];
+        try {
+            for (int i = 0; i < preSize; i++) {
+                typ[i] = AshareTechFastMath.unscaled(preTyps.get(i), AshareTechFastMath.PRICE_SCALE);
+                if (typ[i] == AshareTechFastMath.NULL) {
+                    throw new IllegalArgumentException("前一天的typ为空：" + aShareEODPricesList.get(0).getsInfoWindcode());
+                }
+            }
+            AshareTechFastMath.typ(aShareEODPricesList, typ, preSize);
+        } catch (ArithmeticException e) {
+            return calcExact(aShareEODPricesList, preTyps);
+        }
+        long[] cci = new long[typ.length];
+        AshareTechFastMath.cci(typ, AshareCciEngine.DEFAULT_PERIOD, cci);
+
+        List<AshareCci> modelList = Lists.newArrayList();
+        for (int i = 0; i < aShareEODPricesList.size(); i++) {
+            AshareEodPrices ashareEodPrices = aShareEODPricesList.get(i);
+            AshareCci model = new AshareCci();
+            model.setStockCode(ashareEodPrices.getsInfoWindcode().substring(0, 6));
+            model.setTradeDt(ashareEodPrices.getTradeDt());
+            model.setTyp(AshareTechFastMath.decimal(typ[preSize + i], AshareTechFastMath.PRICE_SCALE));
+            model.setCci(AshareTechFastMath.decimal(cci[preSize + i], AshareTechFastMath.CCI_SCALE));
+            modelList.add(model);
+        }
+        return modelList;
+    }
+}
@@ -0,0 +1,430 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareEodPrices;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Description:AShareEODPrices的本地列式存储，每只股票一个文件，用FileChannel按位置读写
+ * <p>
+ * 文件格式：magic(int) version(int) count(int) capacity(int)，之后依次是交易日(int，yyyyMMdd)、
+ * 复权最高价、复权最低价、复权收盘价(double，空值为NaN)和交易状态(byte)五列，每列按capacity预留位置、同一列连续存放
+ * <p>
+ * 1.append只追加比文件中最后交易日更新的行情：容量够时把新行写进各列的空位，刷盘后再改header里的count，
+ * 中途失败时count没变，多写的部分读不到；容量不够时按两倍容量写临时文件再原子替换，所以整个文件重写是均摊O(1)的
+ * 2.读取时先读交易日列二分查找起点，只读起点之后的各列，读完不保留文件映射
+ * 3.交易状态：0为交易，1为停牌，2为S_DQ_TRADESTATUS为空；getPrices只返回0，与readPrices的SQL条件
+ * not(S_DQ_TRADESTATUS, 停牌)一致（SQL里NULL <> '停牌'不成立，状态为空的行也被过滤）
+ * 4.复权因子变化后历史价格会变，需要delete后重新追加全部历史；旧版本的文件读到时删除，下次从infoDB重新追加
+ * 5.价格以double保存，表中4位小数的价格可以精确还原，还原成BigDecimal后小数位可能比表中少，数值不变
+ * <p>
+ * calc.tech.priceStoreDir为空时不启用；按股票加锁，不同股票可以并发读写
+ */
+@Component
+public class AshareEodPriceStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(AshareEodPriceStore.class);
+
+    private static final int MAGIC = 0x45504331; // "EPC1"
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 16;
+
+    // 每行的字节数：交易日4 + 三个价格各8 + 交易状态1
+    private static final int ROW_SIZE = 4 + 8 * 3 + 1;
+
+    // 新文件最少预留的行数
+    private static final int MIN_CAPACITY = 256;
+
+    private static final String SUSPENDED = "停牌";
+
+    private static final byte STATUS_TRADING = 0;
+
+    private static final byte STATUS_SUSPENDED = 1;
+
+    private static final byte STATUS_UNKNOWN = 2;
+
+    @Value("${calc.tech.priceStoreDir:}")
+    private String dir;
+
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return dir != null && !dir.isEmpty();
+    }
+
+    public String getDir() {
+        return dir;
+    }
+
+    public void setDir(String dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * 本地已有的最后一个交易日（含停牌），没有文件时返回null
+     *
+     * @param windCode
+     * @return
+     */
+    public String getLastTradeDt(String windCode) {
+        synchronized (lock(windCode)) {
+            try (FileChannel channel = openChannel(windCode, false)) {
+                Header header = channel == null ? null : readHeader(channel, windCode);
+                if (header == null || header.count == 0) {
+                    return null;
+                }
+                return String.valueOf(read(channel, header.dateOffset() + 4L * (header.count - 1), 4).getInt());
+            } catch (IOException e) {
+                throw new IllegalStateException("本地行情读取失败：" + windCode, e);
+            }
+        }
+    }
+
+    /**
+     * 追加按TRADE_DT升序的行情，不晚于本地最后交易日的行会被忽略
+     *
+     * @param windCode
+     * @param prices   需要包含停牌的行，停牌与否按S_DQ_TRADESTATUS判断
+     * @return 实际追加的条数
+     */
+    public int append(String windCode, List<AshareEodPrices> prices) {
+        if (prices == null || prices.isEmpty()) {
+            return 0;
+        }
+        synchronized (lock(windCode)) {
+            String lastTradeDt = getLastTradeDt(windCode);
+            int lastDt = lastTradeDt == null ? 0 : Integer.parseInt(lastTradeDt);
+            int from = 0;
+            while (from < prices.size() && Integer.parseInt(prices.get(from).getTradeDt()) <= lastDt) {
+                from++;
+            }
+            List<AshareEodPrices> newPrices = prices.subList(from, prices.size());
+            if (newPrices.isEmpty()) {
+                return 0;
+            }
+            try (FileChannel channel = openChannel(windCode, true)) {
+                Header header = channel == null ? null : readHeader(channel, windCode);
+                if (header == null || header.count + newPrices.size() > header.capacity) {
+                    rewrite(windCode, channel, header, newPrices);
+                } else {
+                    appendInPlace(channel, header, newPrices);
+                }
+            } catch (IOException e) {
+                logger.error("本地行情写入失败：" + windCode, e);
+                throw new IllegalStateException("本地行情写入失败：" + windCode, e);
+            }
+            return newPrices.size();
+        }
+    }
+
+    /**
+     * 新行写进各列的空位，刷盘后再更新count
+     */
+    private static void appendInPlace(FileChannel channel, Header header, List<AshareEodPrices> prices) throws IOException {
+        int size = prices.size();
+        ByteBuffer dates = ByteBuffer.allocate(4 * size);
+        ByteBuffer highs = ByteBuffer.allocate(8 * size);
+        ByteBuffer lows = ByteBuffer.allocate(8 * size);
+        ByteBuffer closes = ByteBuffer.allocate(8 * size);
+        ByteBuffer statuses = ByteBuffer.allocate(size);
+        for (AshareEodPrices price : prices) {
+            putRow(price, dates, highs, lows, closes, statuses);
+        }
+        dates.flip();
+        highs.flip();
+        lows.flip();
+        closes.flip();
+        statuses.flip();
+        write(channel, dates, header.dateOffset() + 4L * header.count);
+        write(channel, highs, header.highOffset() + 8L * header.count);
+        write(channel, lows, header.lowOffset() + 8L * header.count);
+        write(channel, closes, header.closeOffset() + 8L * header.count);
+        write(channel, statuses, header.statusOffset() + header.count);
+        channel.force(false);
+        ByteBuffer count = ByteBuffer.allocate(4);
+        count.putInt(0, header.count + size);
+        write(channel, count, 8);
+        channel.force(false);
+    }
+
+    /**
+     * 按两倍容量写临时文件，再原子替换
+     */
+    private void rewrite(String windCode, FileChannel channel, Header header, List<AshareEodPrices> prices) throws IOException {
+        int oldCount = header == null ? 0 : header.count;
+        int count = oldCount + prices.size();
+        Header newHeader = new Header(count, Math.max(MIN_CAPACITY, count * 2));
+        ByteBuffer buffer = ByteBuffer.allocate((int) newHeader.fileSize());
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(newHeader.capacity);
+        if (oldCount > 0) {
+            buffer.position((int) newHeader.dateOffset());
+            buffer.put(read(channel, header.dateOffset(), 4 * oldCount));
+            buffer.position((int) newHeader.highOffset());
+            buffer.put(read(channel, header.highOffset(), 8 * oldCount));
+            buffer.position((int) newHeader.lowOffset());
+            buffer.put(read(channel, header.lowOffset(), 8 * oldCount));
+            buffer.position((int) newHeader.closeOffset());
+            buffer.put(read(channel, header.closeOffset(), 8 * oldCount));
+            buffer.position((int) newHeader.statusOffset());
+            buffer.put(read(channel, header.statusOffset(), oldCount));
+        }
+        ByteBuffer dates = slice(buffer, newHeader.dateOffset() + 4L * oldCount);
+        ByteBuffer highs = slice(buffer, newHeader.highOffset() + 8L * oldCount);
+        ByteBuffer lows = slice(buffer, newHeader.lowOffset() + 8L * oldCount);
+        ByteBuffer closes = slice(buffer, newHeader.closeOffset() + 8L * oldCount);
+        ByteBuffer statuses = slice(buffer, newHeader.statusOffset() + oldCount);
+        for (AshareEodPrices price : prices) {
+            putRow(price, dates, highs, lows, closes, statuses);
+        }
+        buffer.clear();
+
+        File file = file(windCode);
+        Path tmp = new File(file.getPath() + ".tmp").toPath();
+        Files.createDirectories(file.getParentFile().toPath());
+        try (FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(tmpChannel, buffer, 0);
+            tmpChannel.force(false);
+        }
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long position) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) position);
+        return slice;
+    }
+
+    private static void putRow(AshareEodPrices price, ByteBuffer dates, ByteBuffer highs, ByteBuffer lows, ByteBuffer closes, ByteBuffer statuses) {
+        dates.putInt(Integer.parseInt(price.getTradeDt()));
+        highs.putDouble(AshareTechFastMath.toDouble(price.getsDqAdjhigh()));
+        lows.putDouble(AshareTechFastMath.toDouble(price.getsDqAdjlow()));
+        closes.putDouble(AshareTechFastMath.toDouble(price.getsDqAdjclose()));
+        String status = price.getsDqTradestatus();
+        statuses.put(status == null ? STATUS_UNKNOWN : SUSPENDED.equals(status) ? STATUS_SUSPENDED : STATUS_TRADING);
+    }
+
+    /**
+     * 删除一只股票的本地行情，用于复权因子变化后重建
+     *
+     * @param windCode
+     */
+    public void delete(String windCode) {
+        synchronized (lock(windCode)) {
+            try {
+                Files.deleteIfExists(file(windCode).toPath());
+            } catch (IOException e) {
+                throw new IllegalStateException("本地行情删除失败：" + windCode, e);
+            }
+        }
+    }
+
+    /**
+     * 读取交易日在fromDt之后（inclusive为true时含fromDt）、交易状态为交易的行情，fromDt为空时读取全部
+     * <p>
+     * 返回的对象只有S_INFO_WINDCODE、TRADE_DT和三个复权价格，可以直接交给各指标计算
+     *
+     * @param windCode
+     * @param fromDt
+     * @param inclusive
+     * @return 按交易日升序，没有文件时返回空list
+     */
+    public List<AshareEodPrices> getPrices(String windCode, String fromDt, boolean inclusive) {
+        ByteBuffer dates;
+        ByteBuffer highs;
+        ByteBuffer lows;
+        ByteBuffer closes;
+        ByteBuffer statuses;
+        int start;
+        int count;
+        synchronized (lock(windCode)) {
+            try (FileChannel channel = openChannel(windCode, false)) {
+                Header header = channel == null ? null : readHeader(channel, windCode);
+                if (header == null) {
+                    return new ArrayList<>();
+                }
+                count = header.count;
+                dates = read(channel, header.dateOffset(), 4 * count);
+                start = fromDt == null ? 0 : indexAfter(dates, count, Integer.parseInt(fromDt), inclusive);
+                int size = count - start;
+                highs = read(channel, header.highOffset() + 8L * start, 8 * size);
+                lows = read(channel, header.lowOffset() + 8L * start, 8 * size);
+                closes = read(channel, header.closeOffset() + 8L * start, 8 * size);
+                statuses = read(channel, header.statusOffset() + start, size);
+            } catch (IOException e) {
+                throw new IllegalStateException("本地行情读取失败：" + windCode, e);
+            }
+        }
+        List<AshareEodPrices> prices = new ArrayList<>(count - start);
+        for (int i = 0; i < count - start; i++) {
+            if (statuses.get(i) != STATUS_TRADING) {
+                continue;
+            }
+            AshareEodPrices price = new AshareEodPrices();
+            price.setsInfoWindcode(windCode);
+            price.setTradeDt(String.valueOf(dates.getInt(4 * (start + i))));
+            price.setsDqAdjhigh(toDecimal(highs.getDouble(8 * i)));
+            price.setsDqAdjlow(toDecimal(lows.getDouble(8 * i)));
+            price.setsDqAdjclose(toDecimal(closes.getDouble(8 * i)));
+            prices.add(price);
+        }
+        return prices;
+    }
+
+    /**
+     * 第一条交易日大于（inclusive为true时大于等于）tradeDt的下标，二分查找
+     *
+     * @param dates 交易日列
+     * @param count
+     * @param tradeDt
+     * @param inclusive
+     * @return
+     */
+    private static int indexAfter(ByteBuffer dates, int count, int tradeDt, boolean inclusive) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int dt = dates.getInt(4 * mid);
+            if (dt > tradeDt || (inclusive && dt == tradeDt)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 打开一只股票的文件，没有文件时返回null
+     */
+    private FileChannel openChannel(String windCode, boolean write) throws IOException {
+        File file = file(windCode);
+        if (!file.exists()) {
+            return null;
+        }
+        return write ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * 读取并校验header，旧版本的文件删除后返回null
+     */
+    private Header readHeader(FileChannel channel, String windCode) throws IOException {
+        File file = file(windCode);
+        if (channel.size() < 8 || read(channel, 0, 4).getInt() != MAGIC) {
+            throw new IllegalStateException("本地行情文件格式错误：" + file);
+        }
+        int version = read(channel, 4, 4).getInt();
+        if (version != VERSION) {
+            logger.warn("本地行情文件版本{}已过期，删除后重新追加：{}", version, file);
+            Files.deleteIfExists(file.toPath());
+            return null;
+        }
+        if (channel.size() < HEADER_SIZE) {
+            throw new IllegalStateException("本地行情文件格式错误：" + file);
+        }
+        ByteBuffer buffer = read(channel, 0, HEADER_SIZE);
+        Header header = new Header(buffer.getInt(8), buffer.getInt(12));
+        if (header.count < 0 || header.count > header.capacity || channel.size() < header.fileSize()) {
+            throw new IllegalStateException("本地行情文件长度错误：" + file);
+        }
+        return header;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("本地行情文件不完整");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private File file(String windCode) {
+        if (!isEnabled()) {
+            throw new IllegalStateException("未配置calc.tech.priceStoreDir");
+        }
+        return new File(dir, windCode + ".col");
+    }
+
+    private Object lock(String windCode) {
+        Object lock = locks.get(windCode);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(windCode, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    private static BigDecimal toDecimal(double value) {
+        return Double.isNaN(value) ? null : BigDecimal.valueOf(value);
+    }
+
+    /**
+     * 文件header：已有的行数和每列预留的行数，各列的位置由capacity算出
+     */
+    private static class Header {
+
+        private final int count;
+
+        private final int capacity;
+
+        Header(int count, int capacity) {
+            this.count = count;
+            this.capacity = capacity;
+        }
+
+        long dateOffset() {
+            return HEADER_SIZE;
+        }
+
+        long highOffset() {
+            return dateOffset() + 4L * capacity;
+        }
+
+        long lowOffset() {
+            return highOffset() + 8L * capacity;
+        }
+
+        long closeOffset() {
+            return lowOffset() + 8L * capacity;
+        }
+
+        long statusOffset() {
+            return closeOffset() + 8L * capacity;
+        }
+
+        long fileSize() {
+            return HEADER_SIZE + (long) ROW_SIZE * capacity;
+        }
+    }
+}
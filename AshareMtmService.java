@@ -1,129 +1,405 @@
-package com.wnbt.calc.tech.service;
-
-import cn.huoqiu.base.db.Query;
-import cn.huoqiu.base.lang.Lists;
-import com.wnbt.base.utils.WindUtils;
-import com.wnbt.entity.AshareEodPrices;
-import com.wnbt.entity.AshareMtm;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Service;
-
-import java.math.BigDecimal;
-import java.util.Collections;
-import java.util.List;
-
-/**
- * Created by chenchen on 2017/10/10 15:11
- * Description:计算股票的mtm指标并存到数据库 Service
- */
-@Service
-public class AshareMtmService extends AshareBaseTechService{
-
-    @Override
-    protected Logger getLogger(){
-        return LoggerFactory.getLogger(AshareMtmService.class);
-    }
-
-    @Override
-    public void calcStock(String stockCode) {
-        AshareMtm ashareMtm = getFirericeDB().from(AshareMtm.class)
-                .where("stock_code", stockCode)
-                .orderBy("trade_dt DESC")
-                .first(AshareMtm.class);
-        Query query = getInfoDB().from("AShareEODPrices")
-                .where("S_INFO_WINDCODE", WindUtils.transToWindStockCode(stockCode))
-                .not("S_DQ_TRADESTATUS", "停牌");
-        if (ashareMtm != null) {
-            query.great("trade_dt", ashareMtm.getTradeDt());
-        }
-        List<AshareEodPrices> aShareEODPricesListAfter = query.orderBy("TRADE_DT ASC").all(AshareEodPrices.class);
-        List<AshareEodPrices> aShareEODPricesList;
-
-        if (aShareEODPricesListAfter == null || aShareEODPricesListAfter.isEmpty()) {
-            return;
-        }
-
-        if (ashareMtm != null) { // 如果不需要进行初始化，那么需要再往前取12条数据
-            aShareEODPricesList = getInfoDB().from("AShareEODPrices")
-                    .where("S_INFO_WINDCODE", WindUtils.transToWindStockCode(stockCode))
-                    .not("S_DQ_TRADESTATUS", "停牌")
-                    .less("TRADE_DT", aShareEODPricesListAfter.get(0).getTradeDt())
-                    .orderBy("TRADE_DT DESC")
-                    .limit(12).all(AshareEodPrices.class);
-            if (aShareEODPricesList == null || aShareEODPricesList.isEmpty() || aShareEODPricesList.size() < 12) {
-                return;
-            }
-
-            Collections.reverse(aShareEODPricesList);
-            aShareEODPricesList.addAll(aShareEODPricesListAfter);
-        } else {
-            aShareEODPricesList = aShareEODPricesListAfter;
-        }
-
-        if (aShareEODPricesList.isEmpty()) {
-            return;
-        }
-        List<AshareMtm> modelListNoMa = Lists.newArrayList();
-        List<AshareMtm> modelListHasMa = Lists.newArrayList();
-        List<AshareMtm> modelList = Lists.newArrayList();
-        if (aShareEODPricesList.size() < 13) {
-            return; // 至少需要13条数据
-        }
-
-        if (ashareMtm == null) { // 如果为空则需要初始化
-            for (int i = 12; i < aShareEODPricesList.size(); i++) {
-                AshareEodPrices aShareEODPrices = aShareEODPricesList.get(i);
-                AshareMtm model = new AshareMtm();
-                model.setStockCode(aShareEODPrices.getsInfoWindcode().substring(0, 6));
-                model.setTradeDt(aShareEODPrices.getTradeDt());
-                BigDecimal sDqAdjclose = aShareEODPrices.getsDqAdjclose();
-                model.setMtm(sDqAdjclose.subtract(aShareEODPricesList.get(i - 12).getsDqAdjclose()));
-                if (modelList.size() >= 5) {
-                    BigDecimal sumMtm = model.getMtm();
-                    for (int j = 1; j <= 5; j++) {
-                        sumMtm = sumMtm.add(modelList.get(modelList.size() - j).getMtm());
-                    }
-                    model.setMamtm(sumMtm.divide(new BigDecimal(6), 3, BigDecimal.ROUND_HALF_UP));
-                }
-                modelList.add(model);
-                if (model.getMamtm() == null) { // 有mamtm的和没有的，分开两个list，不然batchinsert会报错
-                    modelListNoMa.add(model);
-                } else {
-                    modelListHasMa.add(model);
-                }
-            }
-        } else {
-            for (int i = 12; i < aShareEODPricesList.size(); i++) {
-                AshareEodPrices aShareEODPrices = aShareEODPricesList.get(i);
-                AshareMtm model = new AshareMtm();
-                model.setStockCode(aShareEODPrices.getsInfoWindcode().substring(0, 6));
-                model.setTradeDt(aShareEODPrices.getTradeDt());
-                BigDecimal sDqAdjclose = aShareEODPrices.getsDqAdjclose();
-                model.setMtm(sDqAdjclose.subtract(aShareEODPricesList.get(i - 12).getsDqAdjclose()).setScale(3, BigDecimal.ROUND_HALF_UP));
-                List<AshareMtm> ashareMtmList = getFirericeDB().from(AshareMtm.class).select("mtm").where("stock_code", stockCode).less("trade_dt", aShareEODPrices.getTradeDt())
-                        .orderBy("trade_dt desc").limit(5).all(AshareMtm.class);
-                if (ashareMtmList.size() == 5) {
-                    BigDecimal sumMtm = model.getMtm();
-                    for (AshareMtm mtmModel : ashareMtmList) {
-                        sumMtm = sumMtm.add(mtmModel.getMtm());
-                    }
-                    model.setMamtm(sumMtm.divide(new BigDecimal(6), 3, BigDecimal.ROUND_HALF_UP));
-                }
-                modelList.add(model);
-                if (model.getMamtm() == null) { // 有mamtm的和没有的，分开两个list，不然batchinsert会报错
-                    modelListNoMa.add(model);
-                } else {
-                    modelListHasMa.add(model);
-                }
-            }
-        }
-
-        if (modelListNoMa.size() > 0) {
-            getFirericeDB().batchInsert(modelListNoMa);
-        }
-        if (modelListHasMa.size() > 0) {
-            getFirericeDB().batchInsert(modelListHasMa);
-        }
-    }
-}
+package com.wnbt.calc.tech.service;
+
+import cn.huoqiu.base.db.Query;
+import cn.huoqiu.base.lang.Lists;
+import com.wnbt.base.utils.WindUtils;
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.entity.AshareMtm;
+import com.wnbt.db.KeysetQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Created by chenchen on 2017/10/10 15:11
+ * Description:计算股票的mtm指标并存到数据库 Service
+ */
+@Service
+public class AshareMtmService extends AshareBatchTechService implements AshareTechCalculator {
+
+    // 前5天没有mamtm
+    static final AshareTechRowWriter.NullMask<AshareMtm> NULL_MASK = new AshareTechRowWriter.NullMask<AshareMtm>() {
+        @Override
+        public int of(AshareMtm row) {
+            return row.getMamtm() == null ? 1 : 0;
+        }
+    };
+
+    static final KeysetQuery.Key<AshareMtm> STOCK_CODE_KEY = new KeysetQuery.Key<AshareMtm>() {
+        @Override
+        public Object of(AshareMtm row) {
+            return row.getStockCode();
+        }
+    };
+
+    static final KeysetQuery.Key<AshareMtm> TRADE_DT_KEY = new KeysetQuery.Key<AshareMtm>() {
+        @Override
+        public Object of(AshareMtm row) {
+            return row.getTradeDt();
+        }
+    };
+
+    @Override
+    protected Logger getLogger(){
+        return LoggerFactory.getLogger(AshareMtmService.class);
+    }
+
+    @Override
+    public void calcStock(String stockCode) {
+        if (isSkipped()) { // 由AshareTechFusedService统一计算
+            return;
+        }
+        String lastTradeDt = getLastTradeDt(stockCode);
+        calcPrices(stockCode, lastTradeDt, readPrices(stockCode, lastTradeDt, false));
+    }
+
+    @Override
+    public String getLastTradeDt(String stockCode) {
+        AshareTechStateCache.MtmState state = getStateCache() == null ? null : getStateCache().getMtm(stockCode);
+        if (state != null) {
+            return state.getLastTradeDt();
+        }
+        AshareMtm ashareMtm = getFirericeDB().from(AshareMtm.class)
+                .where("stock_code", stockCode)
+                .orderBy("trade_dt DESC")
+                .first(AshareMtm.class);
+        return ashareMtm == null ? null : ashareMtm.getTradeDt();
+    }
+
+    @Override
+    public Map<String, String> getLastTradeDts(String sinceDt) {
+        Map<String, String> lastTradeDts = new HashMap<>();
+        for (AshareMtm model : queryPagedSince(AshareMtm.class, "stock_code, trade_dt", sinceDt, STOCK_CODE_KEY, TRADE_DT_KEY)) {
+            putLastTradeDt(lastTradeDts, model.getStockCode(), model.getTradeDt());
+        }
+        return lastTradeDts;
+    }
+
+    @Override
+    public String getLastTradeDtBefore(String stockCode, String tradeDt) {
+        AshareMtm model = getFirericeDB().from(AshareMtm.class)
+                .select("trade_dt")
+                .where("stock_code", stockCode)
+                .less("trade_dt", tradeDt)
+                .orderBy("trade_dt DESC")
+                .first(AshareMtm.class);
+        return model == null ? null : model.getTradeDt();
+    }
+
+    @Override
+    public List<AshareMtm> getRows(String stockCode, String startDt, String endDt) {
+        return rangeQuery(AshareMtm.class, stockCode, startDt, endDt).orderBy("trade_dt ASC").all(AshareMtm.class);
+    }
+
+    @Override
+    public void deleteRows(String stockCode, String startDt, String endDt) {
+        rangeQuery(AshareMtm.class, stockCode, startDt, endDt).delete();
+    }
+
+    @Override
+    public int getLookback() {
+        return 12;
+    }
+
+    @Override
+    public void calcPrices(String stockCode, String lastTradeDt, List<AshareEodPrices> prices) {
+        if (prices == null || prices.isEmpty()) {
+            return;
+        }
+        int startIndex = indexAfter(prices, lastTradeDt, false);
+        if (startIndex == prices.size()) {
+            return;
+        }
+        List<AshareEodPrices> aShareEODPricesList;
+        AshareTechStateCache.MtmState state = null;
+        if (lastTradeDt != null && getStateCache() != null) {
+            state = getStateCache().getMtm(stockCode);
+            if (state != null && !state.getLastTradeDt().equals(lastTradeDt)) {
+                state = null;
+            }
+        }
+
+        if (lastTradeDt != null) { // 如果不需要进行初始化，那么需要再往前取12条数据
+            if (startIndex >= 12) { // 传入的行情已经包含了前12条
+                aShareEODPricesList = prices.subList(startIndex - 12, prices.size());
+            } else if (state != null) { // 缓存里有最后12天的收盘价
+                aShareEODPricesList = toPrices(stockCode, state);
+                aShareEODPricesList.addAll(prices.subList(startIndex, prices.size()));
+            } else {
+                aShareEODPricesList = read(getInfoDB().from("AShareEODPrices")
+                        .where("S_INFO_WINDCODE", WindUtils.transToWindStockCode(stockCode))
+                        .not("S_DQ_TRADESTATUS", "停牌")
+                        .less("TRADE_DT", prices.get(startIndex).getTradeDt())
+                        .orderBy("TRADE_DT DESC")
+                        .limit(12), AshareEodPrices.class);
+                if (aShareEODPricesList == null || aShareEODPricesList.isEmpty() || aShareEODPricesList.size() < 12) {
+                    return;
+                }
+
+                Collections.reverse(aShareEODPricesList);
+                aShareEODPricesList.addAll(prices.subList(startIndex, prices.size()));
+            }
+        } else {
+            aShareEODPricesList = prices;
+        }
+
+        if (aShareEODPricesList.isEmpty()) {
+            return;
+        }
+        if (aShareEODPricesList.size() < 13) {
+            return; // 至少需要13条数据
+        }
+
+        List<BigDecimal> preMtms = null;
+        if (state != null) {
+            preMtms = state.getMtms();
+        } else if (lastTradeDt != null) {
+            // 一次取出前5天的mtm作为滚动窗口的初始值，之后新算出的mtm直接接在后面，不再每天查一次库
+            List<AshareMtm> preModelList = getFirericeDB().from(AshareMtm.class).select("mtm").where("stock_code", stockCode)
+                    .less("trade_dt", aShareEODPricesList.get(12).getTradeDt())
+                    .orderBy("trade_dt desc").limit(5).all(AshareMtm.class);
+            preMtms = new ArrayList<>(preModelList.size());
+            for (AshareMtm preModel : preModelList) {
+                preMtms.add(preModel.getMtm());
+            }
+            Collections.reverse(preMtms);
+        }
+
+        final List<AshareMtm> models = isFastMode() ? calcFast(aShareEODPricesList, preMtms) : calcExact(aShareEODPricesList, preMtms);
+        final List<AshareEodPrices> statePrices = aShareEODPricesList.subList(aShareEODPricesList.size() - 12, aShareEODPricesList.size());
+        final List<BigDecimal> stateMtms = preMtms == null ? new ArrayList<BigDecimal>() : preMtms;
+        write(stockCode, models, NULL_MASK, new Runnable() {
+            @Override
+            public void run() {
+                for (AshareMtm model : models) {
+                    stateMtms.add(model.getMtm());
+                }
+                putState(stockCode, statePrices, stateMtms);
+            }
+        });
+    }
+
+    /**
+     * 缓存的最后12天收盘价还原成行情，只用于计算mtm
+     *
+     * @param stockCode
+     * @param state
+     * @return
+     */
+    private static List<AshareEodPrices> toPrices(String stockCode, AshareTechStateCache.MtmState state) {
+        String windCode = WindUtils.transToWindStockCode(stockCode);
+        List<String> tradeDts = state.getTradeDts();
+        List<BigDecimal> closes = state.getCloses();
+        List<AshareEodPrices> prices = new ArrayList<>(closes.size());
+        for (int i = 0; i < closes.size(); i++) {
+            AshareEodPrices price = new AshareEodPrices();
+            price.setsInfoWindcode(windCode);
+            price.setTradeDt(tradeDts.get(i));
+            price.setsDqAdjclose(closes.get(i));
+            prices.add(price);
+        }
+        return prices;
+    }
+
+    /**
+     * 缓存最后12天的收盘价和最后5天的mtm，mtm按表字段保留3位，与从库里读到的一致
+     *
+     * @param stockCode
+     * @param prices    最后12天的行情
+     * @param mtms
+     */
+    private void putState(String stockCode, List<AshareEodPrices> prices, List<BigDecimal> mtms) {
+        if (getStateCache() == null || prices.size() < 12 || mtms.size() < 5) {
+            return;
+        }
+        List<String> tradeDts = new ArrayList<>(prices.size());
+        List<BigDecimal> closes = new ArrayList<>(prices.size());
+        for (AshareEodPrices price : prices) {
+            tradeDts.add(price.getTradeDt());
+            closes.add(price.getsDqAdjclose());
+        }
+        List<BigDecimal> lastMtms = new ArrayList<>(5);
+        for (BigDecimal mtm : mtms.subList(mtms.size() - 5, mtms.size())) {
+            lastMtms.add(mtm == null ? null : mtm.setScale(3, BigDecimal.ROUND_HALF_UP));
+        }
+        getStateCache().put(AshareTechStateCache.Indicator.MTM, stockCode,
+                new AshareTechStateCache.MtmState(tradeDts.get(tradeDts.size() - 1), tradeDts, closes, lastMtms));
+    }
+
+    @Override
+    public void validateState() {
+        String sinceDt = getStateCache() == null ? null : getStateCache().getUnverifiedSince(AshareTechStateCache.Indicator.MTM);
+        if (sinceDt != null) {
+            getStateCache().verify(AshareTechStateCache.Indicator.MTM, getLastTradeDts(sinceDt));
+        }
+    }
+
+    @Override
+    public void warmState(String sinceDt) {
+        if (getStateCache() == null) {
+            return;
+        }
+        Map<String, String> lastTradeDts = getLastTradeDts(sinceDt);
+        Set<String> stockCodes = getStateCache().retainValid(AshareTechStateCache.Indicator.MTM, lastTradeDts);
+        if (stockCodes.isEmpty()) {
+            return;
+        }
+        // 按股票、交易日分页读取，每只股票只保留最后5天的mtm
+        Map<String, List<BigDecimal>> mtmsMap = new HashMap<>();
+        for (AshareMtm model : queryPagedSince(AshareMtm.class, "stock_code, trade_dt, mtm", sinceDt, STOCK_CODE_KEY, TRADE_DT_KEY)) {
+            List<BigDecimal> mtms = mtmsMap.get(model.getStockCode());
+            if (mtms == null) {
+                mtms = new ArrayList<>(5);
+                mtmsMap.put(model.getStockCode(), mtms);
+            }
+            if (mtms.size() == 5) {
+                mtms.remove(0);
+            }
+            mtms.add(model.getMtm());
+        }
+        // 收盘价按mtm的最后交易日截取，行情表里更新的数据不放进缓存；只取需要的列，每只股票只保留最后12天
+        KeysetQuery<AshareEodPrices> prices = readPaged(new KeysetQuery.Source() {
+            @Override
+            public Query create() {
+                return getInfoDB().from("AShareEODPrices")
+                        .select("S_INFO_WINDCODE, TRADE_DT, S_DQ_ADJCLOSE")
+                        .not("S_DQ_TRADESTATUS", "停牌")
+                        .greatOrEquals("TRADE_DT", sinceDt);
+            }
+        }, AshareEodPrices.class, "S_INFO_WINDCODE", PRICE_WIND_CODE_KEY, "TRADE_DT", PRICE_TRADE_DT_KEY);
+        String stockCode = null;
+        List<AshareEodPrices> stockPrices = new ArrayList<>(12);
+        for (AshareEodPrices price : prices) {
+            String priceStockCode = price.getsInfoWindcode().substring(0, 6);
+            if (!priceStockCode.equals(stockCode)) {
+                if (stockCode != null) {
+                    putWarmState(stockCode, lastTradeDts.get(stockCode), stockCodes, stockPrices, mtmsMap);
+                }
+                stockCode = priceStockCode;
+                stockPrices.clear();
+            }
+            String lastTradeDt = lastTradeDts.get(stockCode);
+            if (lastTradeDt != null && price.getTradeDt().compareTo(lastTradeDt) <= 0) {
+                if (stockPrices.size() == 12) {
+                    stockPrices.remove(0);
+                }
+                stockPrices.add(price);
+            }
+        }
+        if (stockCode != null) {
+            putWarmState(stockCode, lastTradeDts.get(stockCode), stockCodes, stockPrices, mtmsMap);
+        }
+    }
+
+    /**
+     * 一只股票的行情读完后，最后12天的收盘价正好到mtm的最后交易日时放进缓存
+     *
+     * @param stockCode
+     * @param lastTradeDt
+     * @param stockCodes  需要预热的股票
+     * @param stockPrices
+     * @param mtmsMap
+     */
+    private void putWarmState(String stockCode, String lastTradeDt, Set<String> stockCodes, List<AshareEodPrices> stockPrices,
+                              Map<String, List<BigDecimal>> mtmsMap) {
+        if (stockCodes.contains(stockCode) && mtmsMap.containsKey(stockCode) && stockPrices.size() >= 12
+                && stockPrices.get(stockPrices.size() - 1).getTradeDt().equals(lastTradeDt)) {
+            putState(stockCode, stockPrices, mtmsMap.get(stockCode));
+        }
+    }
+
+    /**
+     * BigDecimal精确计算
+     *
+     * @param aShareEODPricesList 行情，前12条只用于计算mtm
+     * @param preMtms             前5天的mtm，初始化时为空
+     * @return 第13条行情起每天的指标
+     */
+    List<AshareMtm> calcExact(List<AshareEodPrices> aShareEODPricesList, List<BigDecimal> preMtms) {
+        List<BigDecimal> mtmList = Lists.newArrayList();
+        if (preMtms != null) {
+            mtmList.addAll(preMtms);
+        }
+        List<AshareMtm> models = Lists.newArrayList();
+        for (int i = 12; i < aShareEODPricesList.size(); i++) {
+            AshareEodPrices aShareEODPrices = aShareEODPricesList.get(i);
+            AshareMtm model = new AshareMtm();
+            model.setStockCode(aShareEODPrices.getsInfoWindcode().substring(0, 6));
+            model.setTradeDt(aShareEODPrices.getTradeDt());
+            BigDecimal sDqAdjclose = aShareEODPrices.getsDqAdjclose();
+            BigDecimal mtm = sDqAdjclose.subtract(aShareEODPricesList.get(i - 12).getsDqAdjclose());
+            model.setMtm(preMtms == null ? mtm : mtm.setScale(3, BigDecimal.ROUND_HALF_UP));
+            if (mtmList.size() >= 5) {
+                BigDecimal sumMtm = model.getMtm();
+                for (int j = 1; j <= 5; j++) {
+                    sumMtm = sumMtm.add(mtmList.get(mtmList.size() - j));
+                }
+                model.setMamtm(sumMtm.divide(new BigDecimal(6), 3, BigDecimal.ROUND_HALF_UP));
+            }
+            mtmList.add(model.getMtm());
+            models.add(model);
+        }
+        return models;
+    }
+
+    /**
+     * 放大成long的快速计算，舍入方式与精确模式相同，结果逐位一致；价格超过4位小数时改用精确模式
+     *
+     * @param aShareEODPricesList 行情，前12条只用于计算mtm
+     * @param preMtms             前5天的mtm，初始化时为空
+     * @return 第13条行情起每天的指标
+     */
+    List<AshareMtm> calcFast(List<AshareEodPrices> aShareEODPricesList, List<BigDecimal> preMtms) {
+        List<AshareMtm> models = Lists.newArrayList();
+        if (aShareEODPricesList.size() <= 12) {
+            return models;
+        }
+        int priceScale = AshareTechFastMath.PRICE_SCALE;
+        // 前5天的mtm接在新算出的mtm前面，一起计算6日均线，都按4位小数放大
+        int preSize = preMtms == null ? 0 : preMtms.size();
+        int size = aShareEODPricesList.size() - 12;
+        long[] close = new long[aShareEODPricesList.size()];
+        long[] mtmSeries = new long[preSize + size];
+        try {
+            AshareTechFastMath.closes(aShareEODPricesList, close, 0);
+            for (int i = 0; i < preSize; i++) {
+                mtmSeries[i] = AshareTechFastMath.unscaled(preMtms.get(i), priceScale);
+                if (mtmSeries[i] == AshareTechFastMath.NULL) {
+                    throw new IllegalArgumentException("前几天的mtm为空：" + aShareEODPricesList.get(0).getsInfoWindcode());
+                }
+            }
+        } catch (ArithmeticException e) {
+            return calcExact(aShareEODPricesList, preMtms);
+        }
+        long[] mtm = new long[close.length];
+        AshareTechFastMath.mtm(close, 12, mtm);
+        for (int i = 0; i < size; i++) {
+            // 与精确模式一致，续算时新算出的mtm先舍入到3位再参与均线
+            mtmSeries[preSize + i] = preMtms == null ? mtm[i + 12]
+                    : AshareTechFastMath.rescale(mtm[i + 12], priceScale, AshareTechFastMath.MTM_SCALE) * 10;
+        }
+        long[] mamtm = new long[mtmSeries.length];
+        AshareTechFastMath.ma(mtmSeries, 6, priceScale, AshareTechFastMath.MTM_SCALE, mamtm);
+
+        for (int i = 0; i < size; i++) {
+            AshareEodPrices aShareEODPrices = aShareEODPricesList.get(i + 12);
+            AshareMtm model = new AshareMtm();
+            model.setStockCode(aShareEODPrices.getsInfoWindcode().substring(0, 6));
+            model.setTradeDt(aShareEODPrices.getTradeDt());
+            // 初始化时精确模式的mtm不舍入（写库时按字段舍入），续算时舍入到3位
+            model.setMtm(preMtms == null ? AshareTechFastMath.decimal(mtmSeries[preSize + i], priceScale)
+                    : AshareTechFastMath.decimal(mtmSeries[preSize + i] / 10, AshareTechFastMath.MTM_SCALE));
+            model.setMamtm(AshareTechFastMath.decimal(mamtm[preSize + i], AshareTechFastMath.MTM_SCALE));
+            models.add(model);
+        }
+        return models;
+    }
+}
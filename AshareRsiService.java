@@ -1,196 +1,373 @@
-package com.wnbt.calc.tech.service;
-
-import cn.huoqiu.base.db.Query;
-import cn.huoqiu.base.lang.Lists;
-import com.wnbt.base.utils.WindUtils;
-import com.wnbt.entity.AshareEodPrices;
-import com.wnbt.entity.AshareRsi;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Service;
-
-import java.math.BigDecimal;
-import java.util.List;
-
-/**
- * Created by chenchen on 2017/10/17 14:20
- * Description:计算股票的RSI指标并存到数据库 service
- */
-@Service
-public class AshareRsiService extends AshareBaseTechService{
-
-    @Override
-    protected Logger getLogger(){
-        return LoggerFactory.getLogger(AshareRsiService.class);
-    }
-
-    @Override
-    public void calcStock(String stockCode) {
-        AshareRsi ashareRsi = getFirericeDB().from(AshareRsi.class)
-                .where("stock_code", stockCode)
-                .orderBy("trade_dt DESC")
-                .first(AshareRsi.class);
-        Query query = getInfoDB().from("AShareEODPrices")
-                .where("S_INFO_WINDCODE", WindUtils.transToWindStockCode(stockCode))
-                .not("S_DQ_TRADESTATUS", "停牌");
-        if (ashareRsi != null) {
-            query.greatOrEquals("trade_dt", ashareRsi.getTradeDt());
-        }
-        List<AshareEodPrices> aShareEODPricesList = query.orderBy("TRADE_DT ASC").all(AshareEodPrices.class);
-
-        if (aShareEODPricesList == null || aShareEODPricesList.isEmpty()) {
-            return;
-        }
-
-        // 因为每天的指标都有可能有某个值是空的，firericeDB.batchInsert就可能会报错，只能分情况分别插入
-        List<AshareRsi> models = Lists.newArrayList();
-        List<AshareRsi> modelList = Lists.newArrayList();
-        List<AshareRsi> modelListA = Lists.newArrayList();
-        List<AshareRsi> modelListB = Lists.newArrayList();
-        List<AshareRsi> modelListC = Lists.newArrayList();
-        List<AshareRsi> modelListAB = Lists.newArrayList();
-        List<AshareRsi> modelListAC = Lists.newArrayList();
-        List<AshareRsi> modelListBC = Lists.newArrayList();
-        List<AshareRsi> modelListABC = Lists.newArrayList();
-
-        if (ashareRsi == null) { // 为空则需要初始化，单独把第一天的数据插入表中
-            AshareRsi model = new AshareRsi();
-            model.setStockCode(stockCode);
-            model.setAvgInc6d(new BigDecimal(0));
-            model.setAvgDec6d(new BigDecimal(0));
-            model.setAvgInc12d(new BigDecimal(0));
-            model.setAvgDec12d(new BigDecimal(0));
-            model.setAvgInc24d(new BigDecimal(0));
-            model.setAvgDec24d(new BigDecimal(0));
-            model.setTradeDt(aShareEODPricesList.get(0).getTradeDt());
-            models.add(model);
-            getFirericeDB().batchInsert(models);
-            models = Lists.newArrayList();
-            if (aShareEODPricesList.size() == 1) {
-                return;
-            }
-        }
-
-        for (int i = 1; i < aShareEODPricesList.size(); i++) {
-            AshareEodPrices aShareEODPrices = aShareEODPricesList.get(i);
-            AshareEodPrices preAShareEODPrices = aShareEODPricesList.get(i - 1);
-            String tradeDt = aShareEODPrices.getTradeDt();
-            String preTradeDt = preAShareEODPrices.getTradeDt();
-            BigDecimal sDqAdjclose = aShareEODPrices.getsDqAdjclose();
-            BigDecimal preSDqAdjclose = preAShareEODPrices.getsDqAdjclose();
-            AshareRsi model = new AshareRsi();
-            model.setStockCode(aShareEODPrices.getsInfoWindcode().substring(0, 6));
-            model.setTradeDt(tradeDt);
-            AshareRsi preAshareRsi;
-            if (i == 1) {
-                preAshareRsi = getFirericeDB().from(AshareRsi.class)
-                        .where("stock_code", stockCode)
-                        .where("trade_dt", preTradeDt)
-                        .first(AshareRsi.class);
-            } else {
-                preAshareRsi = models.get(i - 2);
-            }
-            if (preAshareRsi == null) {
-                return;
-            }
-            BigDecimal preAvgInc6d = preAshareRsi.getAvgInc6d();
-            BigDecimal preAvgDec6d = preAshareRsi.getAvgDec6d();
-            BigDecimal preAvgInc12d = preAshareRsi.getAvgInc12d();
-            BigDecimal preAvgDec12d = preAshareRsi.getAvgDec12d();
-            BigDecimal preAvgInc24d = preAshareRsi.getAvgInc24d();
-            BigDecimal preAvgDec24d = preAshareRsi.getAvgDec24d();
-            BigDecimal incToday = max(sDqAdjclose, preSDqAdjclose);
-            BigDecimal decToday = max(preSDqAdjclose, sDqAdjclose);
-            BigDecimal avgInc6d = incToday.add(new BigDecimal(5).multiply(preAvgInc6d)).divide(new BigDecimal(6), 6, BigDecimal.ROUND_HALF_UP);
-            BigDecimal avgDec6d = decToday.add(new BigDecimal(5).multiply(preAvgDec6d)).divide(new BigDecimal(6), 6, BigDecimal.ROUND_HALF_UP);
-            BigDecimal avgInc12d = incToday.add(new BigDecimal(11).multiply(preAvgInc12d)).divide(new BigDecimal(12), 6, BigDecimal.ROUND_HALF_UP);
-            BigDecimal avgDec12d = decToday.add(new BigDecimal(11).multiply(preAvgDec12d)).divide(new BigDecimal(12), 6, BigDecimal.ROUND_HALF_UP);
-            BigDecimal avgInc24d = incToday.add(new BigDecimal(23).multiply(preAvgInc24d)).divide(new BigDecimal(24), 6, BigDecimal.ROUND_HALF_UP);
-            BigDecimal avgDec24d = decToday.add(new BigDecimal(23).multiply(preAvgDec24d)).divide(new BigDecimal(24), 6, BigDecimal.ROUND_HALF_UP);
-            if (avgDec6d.compareTo(BigDecimal.ZERO) != 0) {
-                model.setRsi6d(avgInc6d.divide(avgInc6d.add(avgDec6d), 4, BigDecimal.ROUND_HALF_UP).movePointRight(2));
-            }
-            model.setAvgInc6d(avgInc6d);
-            model.setAvgDec6d(avgDec6d);
-            if (avgDec12d.compareTo(BigDecimal.ZERO) != 0) {
-                model.setRsi12d(avgInc12d.divide(avgInc12d.add(avgDec12d), 4, BigDecimal.ROUND_HALF_UP).movePointRight(2));
-            }
-            model.setAvgInc12d(avgInc12d);
-            model.setAvgDec12d(avgDec12d);
-            if (avgDec24d.compareTo(BigDecimal.ZERO) != 0) {
-                model.setRsi24d(avgInc24d.divide(avgInc24d.add(avgDec24d), 4, BigDecimal.ROUND_HALF_UP).movePointRight(2));
-            }
-            model.setAvgInc24d(avgInc24d);
-            model.setAvgDec24d(avgDec24d);
-            models.add(model);
-            if (model.getRsi6d() != null && model.getRsi12d() != null && model.getRsi24d() != null) {
-                modelList.add(model);
-            }
-            if (model.getRsi6d() == null && model.getRsi12d() != null && model.getRsi24d() != null) {
-                modelListA.add(model);
-            }
-            if (model.getRsi6d() != null && model.getRsi12d() == null && model.getRsi24d() != null) {
-                modelListB.add(model);
-            }
-            if (model.getRsi6d() != null && model.getRsi12d() != null && model.getRsi24d() == null) {
-                modelListC.add(model);
-            }
-            if (model.getRsi6d() == null && model.getRsi12d() == null && model.getRsi24d() != null) {
-                modelListAB.add(model);
-            }
-            if (model.getRsi6d() == null && model.getRsi12d() != null && model.getRsi24d() == null) {
-                modelListAC.add(model);
-            }
-            if (model.getRsi6d() != null && model.getRsi12d() == null && model.getRsi24d() == null) {
-                modelListBC.add(model);
-            }
-            if (model.getRsi6d() == null && model.getRsi12d() == null && model.getRsi24d() == null) {
-                modelListABC.add(model);
-            }
-        }
-
-        if (modelList.size() > 0) {
-            getFirericeDB().batchInsert(modelList);
-        }
-        if (modelListA.size() > 0) {
-            getFirericeDB().batchInsert(modelListA);
-        }
-        if (modelListB.size() > 0) {
-            getFirericeDB().batchInsert(modelListB);
-        }
-        if (modelListC.size() > 0) {
-            getFirericeDB().batchInsert(modelListC);
-        }
-        if (modelListAB.size() > 0) {
-            getFirericeDB().batchInsert(modelListAB);
-        }
-        if (modelListAC.size() > 0) {
-            getFirericeDB().batchInsert(modelListAC);
-        }
-        if (modelListBC.size() > 0) {
-            getFirericeDB().batchInsert(modelListBC);
-        }
-        if (modelListABC.size() > 0) {
-            getFirericeDB().batchInsert(modelListABC);
-        }
-    }
-
-    /**
-     * 若x>y则返回x-y，否则返回0
-     *
-     * @param x
-     * @param y
-     * @return
-     */
-    private BigDecimal max(BigDecimal x, BigDecimal y) {
-        if (x == null || y == null || x.compareTo(BigDecimal.ZERO) == 0 || y.compareTo(BigDecimal.ZERO) == 0) {
-            return null;
-        }
-
-        if (x.compareTo(y) > 0) {
-            return x.subtract(y);
-        }
-
-        return BigDecimal.ZERO;
-    }
-}
+package com.wnbt.calc.tech.service;
+
+import cn.huoqiu.base.lang.Lists;
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.entity.AshareRsi;
+import com.wnbt.db.KeysetQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Created by chenchen on 2017/10/17 14:20
+ * Description:计算股票的RSI指标并存到数据库 service
+ */
+@Service
+public class AshareRsiService extends AshareBatchTechService implements AshareTechCalculator {
+
+    // 每天的rsi6d、rsi12d、rsi24d都有可能为空
+    static final AshareTechRowWriter.NullMask<AshareRsi> NULL_MASK = new AshareTechRowWriter.NullMask<AshareRsi>() {
+        @Override
+        public int of(AshareRsi row) {
+            return (row.getRsi6d() == null ? 1 : 0) | (row.getRsi12d() == null ? 2 : 0) | (row.getRsi24d() == null ? 4 : 0);
+        }
+    };
+
+    static final KeysetQuery.Key<AshareRsi> STOCK_CODE_KEY = new KeysetQuery.Key<AshareRsi>() {
+        @Override
+        public Object of(AshareRsi row) {
+            return row.getStockCode();
+        }
+    };
+
+    static final KeysetQuery.Key<AshareRsi> TRADE_DT_KEY = new KeysetQuery.Key<AshareRsi>() {
+        @Override
+        public Object of(AshareRsi row) {
+            return row.getTradeDt();
+        }
+    };
+
+    @Override
+    protected Logger getLogger(){
+        return LoggerFactory.getLogger(AshareRsiService.class);
+    }
+
+    @Override
+    public void calcStock(String stockCode) {
+        if (isSkipped()) { // 由AshareTechFusedService统一计算
+            return;
+        }
+        String lastTradeDt = getLastTradeDt(stockCode);
+        calcPrices(stockCode, lastTradeDt, readPrices(stockCode, lastTradeDt, true));
+    }
+
+    @Override
+    public String getLastTradeDt(String stockCode) {
+        AshareTechStateCache.RsiState state = getStateCache() == null ? null : getStateCache().getRsi(stockCode);
+        if (state != null) {
+            return state.getLastTradeDt();
+        }
+        AshareRsi ashareRsi = getFirericeDB().from(AshareRsi.class)
+                .where("stock_code", stockCode)
+                .orderBy("trade_dt DESC")
+                .first(AshareRsi.class);
+        return ashareRsi == null ? null : ashareRsi.getTradeDt();
+    }
+
+    @Override
+    public Map<String, String> getLastTradeDts(String sinceDt) {
+        Map<String, String> lastTradeDts = new HashMap<>();
+        for (AshareRsi model : queryPagedSince(AshareRsi.class, "stock_code, trade_dt", sinceDt, STOCK_CODE_KEY, TRADE_DT_KEY)) {
+            putLastTradeDt(lastTradeDts, model.getStockCode(), model.getTradeDt());
+        }
+        return lastTradeDts;
+    }
+
+    @Override
+    public String getLastTradeDtBefore(String stockCode, String tradeDt) {
+        AshareRsi model = getFirericeDB().from(AshareRsi.class)
+                .select("trade_dt")
+                .where("stock_code", stockCode)
+                .less("trade_dt", tradeDt)
+                .orderBy("trade_dt DESC")
+                .first(AshareRsi.class);
+        return model == null ? null : model.getTradeDt();
+    }
+
+    @Override
+    public List<AshareRsi> getRows(String stockCode, String startDt, String endDt) {
+        return rangeQuery(AshareRsi.class, stockCode, startDt, endDt).orderBy("trade_dt ASC").all(AshareRsi.class);
+    }
+
+    @Override
+    public void deleteRows(String stockCode, String startDt, String endDt) {
+        rangeQuery(AshareRsi.class, stockCode, startDt, endDt).delete();
+    }
+
+    @Override
+    public int getLookback() {
+        return 1; // 需要最后一个交易日的行情作为前一天
+    }
+
+    @Override
+    public void calcPrices(String stockCode, String lastTradeDt, List<AshareEodPrices> prices) {
+        if (prices == null || prices.isEmpty()) {
+            return;
+        }
+        List<AshareEodPrices> aShareEODPricesList = prices.subList(indexAfter(prices, lastTradeDt, true), prices.size());
+        if (aShareEODPricesList.isEmpty()) {
+            return;
+        }
+
+        List<AshareRsi> models = Lists.newArrayList();
+        AshareRsi preAshareRsi;
+        if (lastTradeDt == null) { // 为空则需要初始化，第一天的数据也要插入表中
+            preAshareRsi = newInitModel(stockCode, aShareEODPricesList.get(0).getTradeDt());
+            models.add(preAshareRsi);
+        } else {
+            String preTradeDt = aShareEODPricesList.get(0).getTradeDt();
+            AshareTechStateCache.RsiState state = getStateCache() == null ? null : getStateCache().getRsi(stockCode);
+            if (state != null && state.getLastTradeDt().equals(preTradeDt)) {
+                preAshareRsi = toModel(stockCode, state);
+            } else {
+                preAshareRsi = getFirericeDB().from(AshareRsi.class)
+                        .where("stock_code", stockCode)
+                        .where("trade_dt", preTradeDt)
+                        .first(AshareRsi.class);
+            }
+            if (preAshareRsi == null) {
+                return;
+            }
+        }
+
+        models.addAll(isFastMode() ? calcFast(aShareEODPricesList, preAshareRsi) : calcExact(aShareEODPricesList, preAshareRsi));
+        if (models.isEmpty()) {
+            return;
+        }
+        final AshareRsi lastModel = models.get(models.size() - 1);
+        write(stockCode, models, NULL_MASK, new Runnable() {
+            @Override
+            public void run() {
+                putState(lastModel);
+            }
+        });
+    }
+
+    private void putState(AshareRsi model) {
+        if (getStateCache() != null) {
+            getStateCache().put(AshareTechStateCache.Indicator.RSI, model.getStockCode(), new AshareTechStateCache.RsiState(model.getTradeDt(),
+                    model.getAvgInc6d(), model.getAvgDec6d(), model.getAvgInc12d(), model.getAvgDec12d(), model.getAvgInc24d(), model.getAvgDec24d()));
+        }
+    }
+
+    /**
+     * 缓存的状态只有平均值，计算时也只用到平均值
+     *
+     * @param stockCode
+     * @param state
+     * @return
+     */
+    private static AshareRsi toModel(String stockCode, AshareTechStateCache.RsiState state) {
+        BigDecimal[] averages = state.getAverages();
+        AshareRsi model = new AshareRsi();
+        model.setStockCode(stockCode);
+        model.setTradeDt(state.getLastTradeDt());
+        model.setAvgInc6d(averages[0]);
+        model.setAvgDec6d(averages[1]);
+        model.setAvgInc12d(averages[2]);
+        model.setAvgDec12d(averages[3]);
+        model.setAvgInc24d(averages[4]);
+        model.setAvgDec24d(averages[5]);
+        return model;
+    }
+
+    @Override
+    public void validateState() {
+        String sinceDt = getStateCache() == null ? null : getStateCache().getUnverifiedSince(AshareTechStateCache.Indicator.RSI);
+        if (sinceDt != null) {
+            getStateCache().verify(AshareTechStateCache.Indicator.RSI, getLastTradeDts(sinceDt));
+        }
+    }
+
+    @Override
+    public void warmState(String sinceDt) {
+        if (getStateCache() == null) {
+            return;
+        }
+        Set<String> stockCodes = getStateCache().retainValid(AshareTechStateCache.Indicator.RSI, getLastTradeDts(sinceDt));
+        if (stockCodes.isEmpty()) {
+            return;
+        }
+        // 按股票、交易日分页读取，每只股票只需要最后一条
+        AshareRsi preModel = null;
+        for (AshareRsi model : queryPagedSince(AshareRsi.class, null, sinceDt, STOCK_CODE_KEY, TRADE_DT_KEY)) {
+            if (preModel != null && !preModel.getStockCode().equals(model.getStockCode()) && stockCodes.contains(preModel.getStockCode())) {
+                putState(preModel);
+            }
+            preModel = model;
+        }
+        if (preModel != null && stockCodes.contains(preModel.getStockCode())) {
+            putState(preModel);
+        }
+    }
+
+    /**
+     * 初始化时第一天的指标，平均涨跌幅都为0
+     *
+     * @param stockCode
+     * @param tradeDt
+     * @return
+     */
+    static AshareRsi newInitModel(String stockCode, String tradeDt) {
+        AshareRsi model = new AshareRsi();
+        model.setStockCode(stockCode);
+        model.setAvgInc6d(new BigDecimal(0));
+        model.setAvgDec6d(new BigDecimal(0));
+        model.setAvgInc12d(new BigDecimal(0));
+        model.setAvgDec12d(new BigDecimal(0));
+        model.setAvgInc24d(new BigDecimal(0));
+        model.setAvgDec24d(new BigDecimal(0));
+        model.setTradeDt(tradeDt);
+        return model;
+    }
+
+    /**
+     * BigDecimal精确计算
+     *
+     * @param aShareEODPricesList 行情，第一条是preAshareRsi对应的交易日
+     * @param preAshareRsi        第一条行情当天的指标
+     * @return 第二条行情起每天的指标
+     */
+    List<AshareRsi> calcExact(List<AshareEodPrices> aShareEODPricesList, AshareRsi preAshareRsi) {
+        List<AshareRsi> models = Lists.newArrayList();
+        for (int i = 1; i < aShareEODPricesList.size(); i++) {
+            AshareEodPrices aShareEODPrices = aShareEODPricesList.get(i);
+            AshareEodPrices preAShareEODPrices = aShareEODPricesList.get(i - 1);
+            BigDecimal sDqAdjclose = aShareEODPrices.getsDqAdjclose();
+            BigDecimal preSDqAdjclose = preAShareEODPrices.getsDqAdjclose();
+            AshareRsi model = new AshareRsi();
+            model.setStockCode(aShareEODPrices.getsInfoWindcode().substring(0, 6));
+            model.setTradeDt(aShareEODPrices.getTradeDt());
+            BigDecimal preAvgInc6d = preAshareRsi.getAvgInc6d();
+            BigDecimal preAvgDec6d = preAshareRsi.getAvgDec6d();
+            BigDecimal preAvgInc12d = preAshareRsi.getAvgInc12d();
+            BigDecimal preAvgDec12d = preAshareRsi.getAvgDec12d();
+            BigDecimal preAvgInc24d = preAshareRsi.getAvgInc24d();
+            BigDecimal preAvgDec24d = preAshareRsi.getAvgDec24d();
+            BigDecimal incToday = max(sDqAdjclose, preSDqAdjclose);
+            BigDecimal decToday = max(preSDqAdjclose, sDqAdjclose);
+            BigDecimal avgInc6d = incToday.add(new BigDecimal(5).multiply(preAvgInc6d)).divide(new BigDecimal(6), 6, BigDecimal.ROUND_HALF_UP);
+            BigDecimal avgDec6d = decToday.add(new BigDecimal(5).multiply(preAvgDec6d)).divide(new BigDecimal(6), 6, BigDecimal.ROUND_HALF_UP);
+            BigDecimal avgInc12d = incToday.add(new BigDecimal(11).multiply(preAvgInc12d)).divide(new BigDecimal(12), 6, BigDecimal.ROUND_HALF_UP);
+            BigDecimal avgDec12d = decToday.add(new BigDecimal(11).multiply(preAvgDec12d)).divide(new BigDecimal(12), 6, BigDecimal.ROUND_HALF_UP);
+            BigDecimal avgInc24d = incToday.add(new BigDecimal(23).multiply(preAvgInc24d)).divide(new BigDecimal(24), 6, BigDecimal.ROUND_HALF_UP);
+            BigDecimal avgDec24d = decToday.add(new BigDecimal(23).multiply(preAvgDec24d)).divide(new BigDecimal(24), 6, BigDecimal.ROUND_HALF_UP);
+            if (avgDec6d.compareTo(BigDecimal.ZERO) != 0) {
+                model.setRsi6d(avgInc6d.divide(avgInc6d.add(avgDec6d), 4, BigDecimal.ROUND_HALF_UP).movePointRight(2));
+            }
+            model.setAvgInc6d(avgInc6d);
+            model.setAvgDec6d(avgDec6d);
+            if (avgDec12d.compareTo(BigDecimal.ZERO) != 0) {
+                model.setRsi12d(avgInc12d.divide(avgInc12d.add(avgDec12d), 4, BigDecimal.ROUND_HALF_UP).movePointRight(2));
+            }
+            model.setAvgInc12d(avgInc12d);
+            model.setAvgDec12d(avgDec12d);
+            if (avgDec24d.compareTo(BigDecimal.ZERO) != 0) {
+                model.setRsi24d(avgInc24d.divide(avgInc24d.add(avgDec24d), 4, BigDecimal.ROUND_HALF_UP).movePointRight(2));
+            }
+            model.setAvgInc24d(avgInc24d);
+            model.setAvgDec24d(avgDec24d);
+            models.add(model);
+            preAshareRsi = model;
+        }
+        return models;
+    }
+
+    /**
+     * 放大成long的快速计算，平滑平均值每天按6位小数舍入，与精确模式逐位一致；价格超过4位小数时改用精确模式
+     *
+     * @param aShareEODPricesList 行情，第一条是preAshareRsi对应的交易日
+     * @param preAshareRsi        第一条行情当天的指标
+     * @return 第二条行情起每天的指标
+     */
+    List<AshareRsi> calcFast(List<AshareEodPrices> aShareEODPricesList, AshareRsi preAshareRsi) {
+        List<AshareRsi> models = Lists.newArrayList();
+        if (aShareEODPricesList.size() < 2) {
+            return models;
+        }
+        long[] close = new long[aShareEODPricesList.size()];
+        long[] preAvgs;
+        try {
+            AshareTechFastMath.closes(aShareEODPricesList, close, 0);
+            preAvgs = new long[]{preAvg(preAshareRsi.getAvgInc6d()), preAvg(preAshareRsi.getAvgDec6d()),
+                    preAvg(preAshareRsi.getAvgInc12d()), preAvg(preAshareRsi.getAvgDec12d()),
+                    preAvg(preAshareRsi.getAvgInc24d()), preAvg(preAshareRsi.getAvgDec24d())};
+        } catch (ArithmeticException e) {
+            return calcExact(aShareEODPricesList, preAshareRsi);
+        }
+        AshareTechFastMath.checkNonZero(close, aShareEODPricesList); // 与精确模式一致，收盘价为0时这只股票计算失败
+        long[] inc = new long[close.length - 1];
+        long[] dec = new long[close.length - 1];
+        AshareTechFastMath.change(close, true, inc);
+        AshareTechFastMath.change(close, false, dec);
+        long[] avgInc6d = new long[inc.length];
+        long[] avgDec6d = new long[inc.length];
+        long[] avgInc12d = new long[inc.length];
+        long[] avgDec12d = new long[inc.length];
+        long[] avgInc24d = new long[inc.length];
+        long[] avgDec24d = new long[inc.length];
+        AshareTechFastMath.smooth(inc, 6, preAvgs[0], avgInc6d);
+        AshareTechFastMath.smooth(dec, 6, preAvgs[1], avgDec6d);
+        AshareTechFastMath.smooth(inc, 12, preAvgs[2], avgInc12d);
+        AshareTechFastMath.smooth(dec, 12, preAvgs[3], avgDec12d);
+        AshareTechFastMath.smooth(inc, 24, preAvgs[4], avgInc24d);
+        AshareTechFastMath.smooth(dec, 24, preAvgs[5], avgDec24d);
+
+        int scale = AshareTechFastMath.AVG_SCALE;
+        for (int i = 0; i < inc.length; i++) {
+            AshareEodPrices aShareEODPrices = aShareEODPricesList.get(i + 1);
+            AshareRsi model = new AshareRsi();
+            model.setStockCode(aShareEODPrices.getsInfoWindcode().substring(0, 6));
+            model.setTradeDt(aShareEODPrices.getTradeDt());
+            model.setAvgInc6d(AshareTechFastMath.decimal(avgInc6d[i], scale));
+            model.setAvgDec6d(AshareTechFastMath.decimal(avgDec6d[i], scale));
+            model.setRsi6d(AshareTechFastMath.decimal(AshareTechFastMath.rsi(avgInc6d[i], avgDec6d[i]), AshareTechFastMath.RSI_SCALE));
+            model.setAvgInc12d(AshareTechFastMath.decimal(avgInc12d[i], scale));
+            model.setAvgDec12d(AshareTechFastMath.decimal(avgDec12d[i], scale));
+            model.setRsi12d(AshareTechFastMath.decimal(AshareTechFastMath.rsi(avgInc12d[i], avgDec12d[i]), AshareTechFastMath.RSI_SCALE));
+            model.setAvgInc24d(AshareTechFastMath.decimal(avgInc24d[i], scale));
+            model.setAvgDec24d(AshareTechFastMath.decimal(avgDec24d[i], scale));
+            model.setRsi24d(AshareTechFastMath.decimal(AshareTechFastMath.rsi(avgInc24d[i], avgDec24d[i]), AshareTechFastMath.RSI_SCALE));
+            models.add(model);
+        }
+        return models;
+    }
+
+    /**
+     * 前一天的平均值放大成long，为空时与精确模式一样计算失败
+     *
+     * @param avg
+     * @return
+     */
+    private static long preAvg(BigDecimal avg) {
+        if (avg == null) {
+            throw new IllegalArgumentException("前一天的RSI平均值为空");
+        }
+        return AshareTechFastMath.unscaled(avg, AshareTechFastMath.AVG_SCALE);
+    }
+
+    /**
+     * 若x>y则返回x-y，否则返回0
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    private BigDecimal max(BigDecimal x, BigDecimal y) {
+        if (x == null || y == null || x.compareTo(BigDecimal.ZERO) == 0 || y.compareTo(BigDecimal.ZERO) == 0) {
+            return null;
+        }
+
+        if (x.compareTo(y) > 0) {
+            return x.subtract(y);
+        }
+
+        return BigDecimal.ZERO;
+    }
+}
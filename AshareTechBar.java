@@ -0,0 +1,104 @@
+package com.wnbt.calc.tech.service;
+
+import java.math.BigDecimal;
+
+/**
+ * Description:盘中行情推送的一条数据，表示某只股票当天到time为止的累计行情
+ * <p>
+ * high、low为当天到目前为止的最高价、最低价，close为最新价；价格要与AShareEODPrices的复权价口径一致（由行情源负责换算），
+ * 否则临时指标与收盘后的结果对不上
+ */
+public class AshareTechBar {
+
+    private String stockCode;
+
+    private String tradeDt;
+
+    private String time;
+
+    private BigDecimal high;
+
+    private BigDecimal low;
+
+    private BigDecimal close;
+
+    public AshareTechBar() {
+    }
+
+    public AshareTechBar(String stockCode, String tradeDt, String time, BigDecimal high, BigDecimal low, BigDecimal close) {
+        this.stockCode = stockCode;
+        this.tradeDt = tradeDt;
+        this.time = time;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+    }
+
+    /**
+     * 股票代码，可以带交易所后缀，比如600000.SH
+     *
+     * @return
+     */
+    public String getStockCode() {
+        return stockCode;
+    }
+
+    public void setStockCode(String stockCode) {
+        this.stockCode = stockCode;
+    }
+
+    /**
+     * 交易日，yyyyMMdd
+     *
+     * @return
+     */
+    public String getTradeDt() {
+        return tradeDt;
+    }
+
+    public void setTradeDt(String tradeDt) {
+        this.tradeDt = tradeDt;
+    }
+
+    /**
+     * 行情时间，HHmmss
+     *
+     * @return
+     */
+    public String getTime() {
+        return time;
+    }
+
+    public void setTime(String time) {
+        this.time = time;
+    }
+
+    public BigDecimal getHigh() {
+        return high;
+    }
+
+    public void setHigh(BigDecimal high) {
+        this.high = high;
+    }
+
+    public BigDecimal getLow() {
+        return low;
+    }
+
+    public void setLow(BigDecimal low) {
+        this.low = low;
+    }
+
+    public BigDecimal getClose() {
+        return close;
+    }
+
+    public void setClose(BigDecimal close) {
+        this.close = close;
+    }
+
+    @Override
+    public String toString() {
+        return stockCode + "@" + tradeDt + " " + time + " H" + high + " L" + low + " C" + close;
+    }
+}
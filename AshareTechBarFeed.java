@@ -0,0 +1,31 @@
+package com.wnbt.calc.tech.service;
+
+/**
+ * Description:盘中行情源，按时间顺序把行情推给Listener
+ * <p>
+ * 线上对接实时行情；本地和测试用AshareTechFileReplayFeed回放文件
+ */
+public interface AshareTechBarFeed {
+
+    /**
+     * 在当前线程中推送行情，直到行情结束或者stop
+     *
+     * @param listener
+     */
+    void run(Listener listener);
+
+    /**
+     * 停止推送，run在处理完当前一条后返回；调用方随后还会中断推送线程，run里的等待应当响应中断
+     */
+    void stop();
+
+    interface Listener {
+
+        /**
+         * 收到一条行情，抛出的异常由行情源记录后继续推送下一条
+         *
+         * @param bar
+         */
+        void onBar(AshareTechBar bar);
+    }
+}
@@ -0,0 +1,85 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareEodPrices;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Description:单个技术指标的计算器，行情由调用方统一读取后传入，指标仍由各自的service写入各自的表
+ */
+public interface AshareTechCalculator {
+
+    /**
+     * 指标表中该股票已经计算到的最后一个交易日，为空表示需要初始化
+     *
+     * @param stockCode
+     * @return
+     */
+    String getLastTradeDt(String stockCode);
+
+    /**
+     * 批量取出sinceDt（含）以来有记录的所有股票已经计算到的最后一个交易日，key为6位股票代码
+     *
+     * @param sinceDt
+     * @return
+     */
+    Map<String, String> getLastTradeDts(String sinceDt);
+
+    /**
+     * 指标表中该股票交易日在tradeDt之前的最后一条记录的交易日，按区间重算时作为起点，为空表示区间之前没有记录
+     *
+     * @param stockCode
+     * @param tradeDt
+     * @return
+     */
+    String getLastTradeDtBefore(String stockCode, String tradeDt);
+
+    /**
+     * 指标表中该股票交易日在[startDt, endDt]内的记录，按交易日升序
+     *
+     * @param stockCode
+     * @param startDt
+     * @param endDt     为空表示到最新
+     * @return
+     */
+    List<?> getRows(String stockCode, String startDt, String endDt);
+
+    /**
+     * 删除指标表中该股票交易日在[startDt, endDt]内的记录，按区间重算时先删后写，重复执行结果相同
+     *
+     * @param stockCode
+     * @param startDt
+     * @param endDt     为空表示到最新
+     */
+    void deleteRows(String stockCode, String startDt, String endDt);
+
+    /**
+     * 增量计算时，除了最后一个交易日之后的行情，还需要最后一个交易日及之前的多少条行情
+     *
+     * @return
+     */
+    int getLookback();
+
+    /**
+     * 根据行情计算指标并写入
+     *
+     * @param stockCode
+     * @param lastTradeDt getLastTradeDt的返回值
+     * @param prices      按TRADE_DT升序、已过滤停牌的行情，可以比需要的更早，计算器自己截取需要的部分
+     */
+    void calcPrices(String stockCode, String lastTradeDt, List<AshareEodPrices> prices);
+
+    /**
+     * 批量预热AshareTechStateCache：sinceDt（含）以来有记录的股票，缓存里没有有效状态的，一次查询取出续算需要的数据
+     *
+     * @param sinceDt 需要往前留出足够的天数，保证每只股票能取到续算需要的条数
+     */
+    void warmState(String sinceDt);
+
+    /**
+     * 用库里的最后交易日校验AshareTechStateCache中从文件恢复、还没有校验过的状态，没有时不查库；
+     * 批量计算开始时调用，校验之前这些状态不会被当作续算的起点
+     */
+    void validateState();
+}
@@ -0,0 +1,322 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareEodPrices;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * Description:技术指标的快速计算，基于按小数位放大后的long数组，循环内不创建对象
+ * <p>
+ * 1.价格按4位小数放大成long（比如12.3456为123456），空值用NULL表示，typ、RSI平均值、mtm等中间结果也是放大后的long
+ * 2.每一步按精确模式相同的小数位和HALF_UP舍入（typ 4位、CCI均值4位、RSI平均值6位、mtm 3位），整数运算没有误差，
+ * 所以结果与BigDecimal精确模式逐位相同
+ * 3.CCI的最后一步除以double构造的0.015，用double计算，离舍入边界太近时改用BigDecimal计算
+ * 4.写库前用decimal转换成BigDecimal，不经过字符串
+ * <p>
+ * 价格超过4位小数或数值过大时抛出ArithmeticException，调用方改用精确模式
+ */
+public final class AshareTechFastMath {
+
+    public static final int PRICE_SCALE = 4;
+
+    public static final int AVG_SCALE = 6;
+
+    public static final int CCI_SCALE = 2;
+
+    public static final int RSI_SCALE = 2;
+
+    public static final int MTM_SCALE = 3;
+
+    // 空值
+    public static final long NULL = Long.MIN_VALUE;
+
+    private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L};
+
+    // 按double换算时不丢精度的上限
+    private static final double MAX_DOUBLE_VALUE = 1e8;
+
+    // CCI离舍入边界小于这个值时改用BigDecimal计算，double的误差远小于它
+    private static final double CCI_TIE_EPSILON = 1e-6;
+
+    private AshareTechFastMath() {
+    }
+
+    public static double toDouble(BigDecimal value) {
+        return value == null ? Double.NaN : value.doubleValue();
+    }
+
+    /**
+     * BigDecimal按scale位小数放大成long，null返回NULL
+     *
+     * @param value
+     * @param scale
+     * @return
+     * @throws ArithmeticException 小数位超过scale或者超出long的范围
+     */
+    public static long unscaled(BigDecimal value, int scale) {
+        if (value == null) {
+            return NULL;
+        }
+        if (value.scale() <= scale) {
+            double d = value.doubleValue();
+            if (Math.abs(d) < MAX_DOUBLE_VALUE) {
+                return Math.round(d * POW10[scale]);
+            }
+        }
+        return value.setScale(scale, BigDecimal.ROUND_UNNECESSARY).unscaledValue().longValueExact();
+    }
+
+    /**
+     * 放大后的long还原成BigDecimal，NULL返回null
+     *
+     * @param value
+     * @param scale
+     * @return
+     */
+    public static BigDecimal decimal(long value, int scale) {
+        return value == NULL ? null : BigDecimal.valueOf(value, scale);
+    }
+
+    /**
+     * num / den按HALF_UP舍入到整数，与BigDecimal.ROUND_HALF_UP一致（.5时远离0）
+     *
+     * @param num
+     * @param den 大于0
+     * @return
+     */
+    public static long divideHalfUp(long num, long den) {
+        long q = num / den;
+        long r = num % den;
+        if (Math.abs(r) * 2 >= den) {
+            q += num < 0 ? -1 : 1;
+        }
+        return q;
+    }
+
+    /**
+     * 减少小数位：fromScale位小数的value按HALF_UP舍入到toScale位，NULL不变
+     *
+     * @param value
+     * @param fromScale
+     * @param toScale   不大于fromScale
+     * @return
+     */
+    public static long rescale(long value, int fromScale, int toScale) {
+        return value == NULL ? NULL : divideHalfUp(value, POW10[fromScale - toScale]);
+    }
+
+    /**
+     * 行情的收盘价列，4位小数
+     *
+     * @param prices
+     * @param out
+     * @param offset 写入out的起始下标
+     * @throws IllegalArgumentException 收盘价为空，与精确模式一样这只股票计算失败
+     */
+    public static void closes(List<AshareEodPrices> prices, long[] out, int offset) {
+        for (int i = 0; i < prices.size(); i++) {
+            out[offset + i] = close(prices.get(i));
+        }
+    }
+
+    /**
+     * 行情的typ列：(最高价 + 最低价 + 收盘价) / 3，4位小数，最高价、最低价为空时用收盘价代替
+     *
+     * @param prices
+     * @param out
+     * @param offset 写入out的起始下标
+     * @throws IllegalArgumentException 收盘价为空，与精确模式一样这只股票计算失败
+     */
+    public static void typ(List<AshareEodPrices> prices, long[] out, int offset) {
+        for (int i = 0; i < prices.size(); i++) {
+            AshareEodPrices price = prices.get(i);
+            long close = close(price);
+            long high = price.getsDqAdjhigh() == null ? close : unscaled(price.getsDqAdjhigh(), PRICE_SCALE);
+            long low = price.getsDqAdjlow() == null ? close : unscaled(price.getsDqAdjlow(), PRICE_SCALE);
+            out[offset + i] = divideHalfUp(high + low + close, 3);
+        }
+    }
+
+    private static long close(AshareEodPrices price) {
+        if (price.getsDqAdjclose() == null) {
+            throw new IllegalArgumentException("收盘价为空：" + price.getsInfoWindcode() + "@" + price.getTradeDt());
+        }
+        return unscaled(price.getsDqAdjclose(), PRICE_SCALE);
+    }
+
+    /**
+     * CCI，2位小数，窗口不满period天或平均绝对偏差为0时为NULL
+     * <p>
+     * 与AshareCciEngine一致：窗口和、均值（4位小数）、绝对偏差和都是整数运算，窗口和每天加新减旧，没有累积误差
+     *
+     * @param typ    4位小数
+     * @param period
+     * @param out
+     */
+    public static void cci(long[] typ, int period, long[] out) {
+        long sum = 0;
+        for (int i = 0; i < typ.length; i++) {
+            sum += typ[i];
+            if (i >= period) {
+                sum -= typ[i - period];
+            }
+            if (i < period - 1) {
+                out[i] = NULL;
+                continue;
+            }
+            long avg = divideHalfUp(sum, period);
+            long sumAbs = 0;
+            for (int j = i - period + 1; j <= i; j++) {
+                sumAbs += Math.abs(typ[j] - avg);
+            }
+            out[i] = sumAbs == 0 ? NULL : cci(typ[i] * period - sum, sumAbs);
+        }
+    }
+
+    /**
+     * num / (0.015 * sumAbs)按HALF_UP舍入到2位小数，0.015与精确模式一样是double构造的值
+     *
+     * @param num
+     * @param sumAbs
+     * @return
+     */
+    private static long cci(long num, long sumAbs) {
+        double value = num * 100.0 / (0.015 * sumAbs);
+        double abs = Math.abs(value);
+        double floor = Math.floor(abs);
+        double fraction = abs - floor;
+        if (Math.abs(fraction - 0.5) < CCI_TIE_EPSILON || abs >= MAX_DOUBLE_VALUE) {
+            return BigDecimal.valueOf(num).divide(AshareCciEngine.FACTOR.multiply(BigDecimal.valueOf(sumAbs)), CCI_SCALE, BigDecimal.ROUND_HALF_UP)
+                    .unscaledValue().longValue();
+        }
+        long rounded = (long) floor + (fraction > 0.5 ? 1 : 0);
+        return value < 0 ? -rounded : rounded;
+    }
+
+    /**
+     * RSI的平滑平均：avg = (x + (n - 1) * preAvg) / n，每天按HALF_UP舍入到6位小数
+     *
+     * @param x      每天的涨幅或跌幅，4位小数
+     * @param n
+     * @param preAvg 前一天的平均值，6位小数
+     * @param out    6位小数
+     */
+    public static void smooth(long[] x, int n, long preAvg, long[] out) {
+        smooth(x, 0, n, preAvg, out);
+    }
+
+    /**
+     * 从x[from]开始递推，out[from]之前的不修改
+     *
+     * @param x
+     * @param from
+     * @param n
+     * @param preAvg x[from]前一天的平均值，6位小数
+     * @param out
+     */
+    public static void smooth(long[] x, int from, int n, long preAvg, long[] out) {
+        long factor = POW10[AVG_SCALE - PRICE_SCALE];
+        long avg = preAvg;
+        for (int i = from; i < x.length; i++) {
+            avg = divideHalfUp(x[i] * factor + (n - 1) * avg, n);
+            out[i] = avg;
+        }
+    }
+
+    /**
+     * RSI = avgInc / (avgInc + avgDec)舍入到4位小数后乘以100，即2位小数；平均跌幅为0时为NULL
+     *
+     * @param avgInc 6位小数
+     * @param avgDec 6位小数
+     * @return 2位小数
+     */
+    public static long rsi(long avgInc, long avgDec) {
+        return avgDec == 0 ? NULL : divideHalfUp(avgInc * POW10[4], avgInc + avgDec);
+    }
+
+    /**
+     * 每天相对前一天的涨幅（up为true）或跌幅，没有涨（跌）时为0，out长度为close.length - 1
+     *
+     * @param close
+     * @param up
+     * @param out
+     */
+    public static void change(long[] close, boolean up, long[] out) {
+        for (int i = 1; i < close.length; i++) {
+            long diff = up ? close[i] - close[i - 1] : close[i - 1] - close[i];
+            out[i - 1] = diff > 0 ? diff : 0;
+        }
+    }
+
+    /**
+     * 收盘价为0时抛出异常，与精确模式一致（AshareRsiService.max对0返回空，这只股票计算失败）
+     *
+     * @param close
+     * @param prices
+     */
+    public static void checkNonZero(long[] close, List<AshareEodPrices> prices) {
+        checkNonZero(close, 0, prices);
+    }
+
+    /**
+     * 只检查close[from]及之后的收盘价
+     *
+     * @param close
+     * @param from
+     * @param prices
+     */
+    public static void checkNonZero(long[] close, int from, List<AshareEodPrices> prices) {
+        if (close.length - from < 2) { // 精确模式只有一条行情时不比较涨跌
+            return;
+        }
+        for (int i = from; i < close.length; i++) {
+            if (close[i] == 0) {
+                throw new IllegalArgumentException("收盘价为0：" + prices.get(0).getsInfoWindcode());
+            }
+        }
+    }
+
+    /**
+     * mtm = 当天收盘价 - n天前收盘价，前n天为NULL
+     *
+     * @param close
+     * @param n
+     * @param out
+     */
+    public static void mtm(long[] close, int n, long[] out) {
+        for (int i = 0; i < close.length; i++) {
+            out[i] = i < n ? NULL : close[i] - close[i - n];
+        }
+    }
+
+    /**
+     * 简单移动平均，按HALF_UP从fromScale位舍入到toScale位，窗口中有NULL时为NULL
+     *
+     * @param x
+     * @param n
+     * @param fromScale x的小数位
+     * @param toScale   结果的小数位，不大于fromScale
+     * @param out
+     */
+    public static void ma(long[] x, int n, int fromScale, int toScale, long[] out) {
+        long den = n * POW10[fromScale - toScale];
+        long sum = 0;
+        int nullCount = 0;
+        for (int i = 0; i < x.length; i++) {
+            if (x[i] == NULL) {
+                nullCount++;
+            } else {
+                sum += x[i];
+            }
+            if (i >= n) {
+                if (x[i - n] == NULL) {
+                    nullCount--;
+                } else {
+                    sum -= x[i - n];
+                }
+            }
+            out[i] = i < n - 1 || nullCount > 0 ? NULL : divideHalfUp(sum, den);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.wnbt.calc.tech.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Description:从本地文件回放盘中行情，用于本地调试和测试，代替实时行情源
+ * <p>
+ * 文件为UTF-8的csv，每行：股票代码,交易日,时间,最高价,最低价,最新价，比如 600000.SH,20240105,093500,7.02,6.95,6.98；
+ * 最高价、最低价可以为空，空行和#开头的行忽略；行按时间顺序排列
+ * <p>
+ * speed为0时尽快回放；大于0时按行情时间间隔除以speed等待，比如60表示1分钟的行情1秒回放完
+ */
+public class AshareTechFileReplayFeed implements AshareTechBarFeed {
+
+    private static final Logger logger = LoggerFactory.getLogger(AshareTechFileReplayFeed.class);
+
+    private final File file;
+
+    private final double speed;
+
+    private volatile boolean stopped;
+
+    public AshareTechFileReplayFeed(File file) {
+        this(file, 0);
+    }
+
+    public AshareTechFileReplayFeed(File file, double speed) {
+        this.file = file;
+        this.speed = speed;
+    }
+
+    @Override
+    public void run(Listener listener) {
+        stopped = false;
+        int lineNo = 0;
+        long lastSeconds = -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while (!stopped && (line = reader.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                AshareTechBar bar;
+                try {
+                    bar = parse(line);
+                } catch (RuntimeException e) {
+                    logger.warn("行情文件{}第{}行格式错误：{}", file, lineNo, line);
+                    continue;
+                }
+                if (speed > 0) {
+                    long seconds = toSeconds(bar.getTime());
+                    if (lastSeconds >= 0 && seconds > lastSeconds) {
+                        Thread.sleep((long) ((seconds - lastSeconds) * 1000 / speed));
+                    }
+                    lastSeconds = seconds;
+                }
+                try {
+                    listener.onBar(bar);
+                } catch (RuntimeException e) {
+                    logger.error("处理行情失败：" + bar, e);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("读取行情文件失败：" + file, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("回放行情被中断：{}", file);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * 解析一行行情
+     *
+     * @param line
+     * @return
+     */
+    static AshareTechBar parse(String line) {
+        String[] parts = line.split(",", -1);
+        if (parts.length != 6) {
+            throw new IllegalArgumentException("行情格式错误：" + line);
+        }
+        return new AshareTechBar(parts[0].trim(), parts[1].trim(), parts[2].trim(),
+                toDecimal(parts[3]), toDecimal(parts[4]), new BigDecimal(parts[5].trim()));
+    }
+
+    private static BigDecimal toDecimal(String value) {
+        value = value.trim();
+        return value.isEmpty() ? null : new BigDecimal(value);
+    }
+
+    private static long toSeconds(String time) {
+        int hhmmss = Integer.parseInt(time);
+        return hhmmss / 10000 * 3600L + hhmmss / 100 % 100 * 60L + hhmmss % 100;
+    }
+}
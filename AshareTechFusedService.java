@@ -0,0 +1,101 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareEodPrices;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Description:一次读取股票的AShareEODPrices，依次交给所有技术指标计算器（CCI、RSI、MTM等）计算并各自写表
+ * <p>
+ * 1.先取每个计算器已经计算到的最后交易日，有一个为空就取全部历史行情，否则从最早的最后交易日往前推几天开始取
+ * 2.往前推的天数按最大的lookback估算，如果遇到长期停牌导致条数不够，由计算器自己补查
+ * 3.单个计算器出错不影响其他计算器，全部跑完后再抛出第一个异常，以便外层重试
+ * 4.calcRange按日期区间批量计算时，同一份行情也会交给所有计算器
+ * 5.calc.tech.stateWarmDays大于0时，启动时用最近这么多个自然日的数据预热AshareTechStateCache
+ * 6.只在calc.tech.fused为true时计算，此时各指标service自己的计算入口跳过；为false时这里跳过，各指标service照旧单独计算
+ */
+@Service
+public class AshareTechFusedService extends AshareBatchTechService {
+
+    @Autowired
+    private List<AshareTechCalculator> calculators;
+
+    @Value("${calc.tech.stateWarmDays:0}")
+    private int stateWarmDays;
+
+    @PostConstruct
+    public void init() {
+        if (stateWarmDays > 0) {
+            warmState(minusDays(new SimpleDateFormat("yyyyMMdd").format(new Date()), stateWarmDays));
+        }
+    }
+
+    /**
+     * 依次预热所有计算器的状态，单个计算器失败只记录日志，之后按原来的方式查库续算
+     *
+     * @param sinceDt
+     */
+    public void warmState(String sinceDt) {
+        long start = System.currentTimeMillis();
+        for (AshareTechCalculator calculator : calculators) {
+            try {
+                calculator.warmState(sinceDt);
+            } catch (RuntimeException e) {
+                getLogger().error("指标状态预热失败：" + calculator.getClass().getSimpleName(), e);
+            }
+        }
+        getLogger().info("指标状态预热完成：{}以来，耗时{}ms", sinceDt, System.currentTimeMillis() - start);
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return LoggerFactory.getLogger(AshareTechFusedService.class);
+    }
+
+    @Override
+    public void calcStock(String stockCode) {
+        if (isSkipped()) {
+            return;
+        }
+        String[] lastTradeDts = new String[calculators.size()];
+        boolean needInit = false;
+        String minLastTradeDt = null;
+        int lookback = 0;
+        for (int i = 0; i < calculators.size(); i++) {
+            AshareTechCalculator calculator = calculators.get(i);
+            lastTradeDts[i] = calculator.getLastTradeDt(stockCode);
+            if (lastTradeDts[i] == null) {
+                needInit = true;
+            } else if (minLastTradeDt == null || lastTradeDts[i].compareTo(minLastTradeDt) < 0) {
+                minLastTradeDt = lastTradeDts[i];
+            }
+            lookback = Math.max(lookback, calculator.getLookback());
+        }
+
+        String fromDt = !needInit && minLastTradeDt != null ? minusDays(minLastTradeDt, lookback * 3) : null;
+        List<AshareEodPrices> aShareEODPricesList = readPrices(stockCode, fromDt, true);
+        if (aShareEODPricesList == null || aShareEODPricesList.isEmpty()) {
+            return;
+        }
+
+        calcPrices(stockCode, calculators, lastTradeDts, aShareEODPricesList);
+    }
+
+    @Override
+    protected boolean isSkipped() {
+        return !isFused();
+    }
+
+    @Override
+    protected List<AshareTechCalculator> getCalculators() {
+        return calculators;
+    }
+}
@@ -0,0 +1,361 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Description:盘中根据实时行情计算当天的临时CCI、RSI、MTM，不查库
+ * <p>
+ * 1.每只股票当天收到第一条行情时，从AshareTechStateCache取前一交易日收盘后的状态（CCI最后13天的typ、RSI的平滑平均值、
+ * MTM最后12天的收盘价和最后5天的mtm），准备好后放在内存里，之后每条行情只用最新价算一遍当天的值，不修改状态
+ * 2.计算方式和舍入与各指标service的精确模式一致；RSI的前一天收盘价取MTM状态里的最后一个收盘价，两者交易日不一致时没有RSI
+ * 3.需要前一交易日的批量计算已经完成并且状态缓存已预热（calc.tech.stateWarmDays或AshareTechFusedService.warmState），
+ * 缓存里没有状态的股票对应指标为空
+ * 4.临时值只保存在内存里，不写库；收盘后批量计算照常写入正式结果，之后调用confirm清掉这一天的临时值，
+ * 同时核对收盘行情与最后一条盘中行情是否一致
+ * <p>
+ * 线程安全，可以由多个行情线程同时调用
+ */
+@Service
+public class AshareTechIntradayService implements AshareTechBarFeed.Listener {
+
+    private static final Logger logger = LoggerFactory.getLogger(AshareTechIntradayService.class);
+
+    private static final int[] RSI_PERIODS = {6, 12, 24};
+
+    private static final BigDecimal[] RSI_DIVISORS = {new BigDecimal(6), new BigDecimal(12), new BigDecimal(24)};
+
+    private static final BigDecimal[] RSI_WEIGHTS = {new BigDecimal(5), new BigDecimal(11), new BigDecimal(23)};
+
+    private static final BigDecimal SIX = new BigDecimal(6);
+
+    @Autowired(required = false)
+    private AshareTechStateCache stateCache;
+
+    @Autowired(required = false)
+    private MetricsRegistry metricsRegistry = MetricsRegistry.NOOP;
+
+    // 每只股票当天准备好的状态
+    private final ConcurrentMap<String, Prepared> prepared = new ConcurrentHashMap<>();
+
+    // 每只股票最新的临时指标
+    private final ConcurrentMap<String, AshareTechProvisional> provisionals = new ConcurrentHashMap<>();
+
+    private AshareTechBarFeed feed;
+
+    private Thread feedThread;
+
+    /**
+     * 在后台线程中订阅行情源，之前订阅的行情源先停止
+     *
+     * @param feed
+     */
+    public synchronized void start(final AshareTechBarFeed feed) {
+        stop();
+        this.feed = feed;
+        this.feedThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    feed.run(AshareTechIntradayService.this);
+                } catch (RuntimeException e) {
+                    logger.error("盘中行情源异常结束", e);
+                }
+            }
+        }, "tech-intraday-feed");
+        feedThread.setDaemon(true);
+        feedThread.start();
+    }
+
+    /**
+     * 停止行情源并等待推送线程结束；同时中断推送线程，按速度回放时可能正在sleep（比如跨午休），不中断要等很久
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (feed == null) {
+            return;
+        }
+        feed.stop();
+        feedThread.interrupt();
+        try {
+            feedThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("等待盘中行情线程结束被中断");
+        }
+        feed = null;
+        feedThread = null;
+    }
+
+    @Override
+    public void onBar(AshareTechBar bar) {
+        update(bar);
+    }
+
+    /**
+     * 用一条行情更新这只股票的临时指标
+     *
+     * @param bar
+     * @return 最新的临时指标，行情无效时为空
+     */
+    public AshareTechProvisional update(AshareTechBar bar) {
+        if (bar == null || bar.getStockCode() == null || bar.getStockCode().length() < 6 || bar.getTradeDt() == null
+                || bar.getClose() == null || bar.getClose().signum() <= 0) {
+            return null;
+        }
+        long start = System.nanoTime();
+        String stockCode = bar.getStockCode().substring(0, 6);
+        AshareTechProvisional current = provisionals.get(stockCode);
+        if (isNewer(current, bar.getTradeDt(), bar.getTime())) {
+            return current; // 晚到的旧行情
+        }
+        Prepared state = prepared.get(stockCode);
+        if (state == null || !state.tradeDt.equals(bar.getTradeDt())) {
+            state = prepare(stockCode, bar.getTradeDt());
+            prepared.put(stockCode, state);
+        }
+        final AshareTechProvisional provisional = state.calc(bar);
+        // 计算期间其他行情线程可能已经放进了更新的值，比较和替换在compute里一步完成
+        AshareTechProvisional latest = provisionals.compute(stockCode, new BiFunction<String, AshareTechProvisional, AshareTechProvisional>() {
+            @Override
+            public AshareTechProvisional apply(String key, AshareTechProvisional current) {
+                return isNewer(current, provisional.getTradeDt(), provisional.getTime()) ? current : provisional;
+            }
+        });
+        metricsRegistry.timer("tech.intraday.update").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return latest;
+    }
+
+    /**
+     * current是同一天、时间更晚的临时指标
+     *
+     * @param current
+     * @param tradeDt
+     * @param time
+     * @return
+     */
+    private static boolean isNewer(AshareTechProvisional current, String tradeDt, String time) {
+        return current != null && current.getTradeDt().equals(tradeDt) && current.getTime() != null
+                && time != null && current.getTime().compareTo(time) > 0;
+    }
+
+    /**
+     * 一只股票最新的临时指标
+     *
+     * @param stockCode
+     * @return 没有收到过行情时为空
+     */
+    public AshareTechProvisional getProvisional(String stockCode) {
+        return provisionals.get(stockCode);
+    }
+
+    /**
+     * 所有股票最新的临时指标
+     *
+     * @return key为股票代码
+     */
+    public Map<String, AshareTechProvisional> getProvisionals() {
+        return Collections.unmodifiableMap(new HashMap<>(provisionals));
+    }
+
+    /**
+     * 收盘后批量计算完成后调用：状态缓存已经到tradeDt的股票，清掉这一天的临时值，以库里的正式结果为准
+     * <p>
+     * 同时用缓存里的收盘状态核对最后一条盘中行情：typ或收盘价不一致（收盘集合竞价、行情源口径不同等），说明临时值被正式结果覆盖
+     *
+     * @param tradeDt
+     * @return 临时值与正式结果不一致的股票
+     */
+    public List<String> confirm(String tradeDt) {
+        List<String> overwritten = new ArrayList<>();
+        int confirmed = 0;
+        Iterator<AshareTechProvisional> iterator = provisionals.values().iterator();
+        while (iterator.hasNext()) {
+            AshareTechProvisional provisional = iterator.next();
+            if (!tradeDt.equals(provisional.getTradeDt())) {
+                continue;
+            }
+            String stockCode = provisional.getStockCode();
+            AshareTechStateCache.CciState cciState = stateCache == null ? null : stateCache.getCci(stockCode);
+            AshareTechStateCache.MtmState mtmState = stateCache == null ? null : stateCache.getMtm(stockCode);
+            boolean cciDone = cciState != null && cciState.getLastTradeDt().compareTo(tradeDt) >= 0;
+            boolean mtmDone = mtmState != null && mtmState.getLastTradeDt().compareTo(tradeDt) >= 0;
+            if (!cciDone && !mtmDone) {
+                continue; // 正式结果还没有算出来
+            }
+            boolean same = true;
+            if (cciDone && cciState.getLastTradeDt().equals(tradeDt) && provisional.getTyp() != null) {
+                List<BigDecimal> typs = cciState.getTyps();
+                same = typs.get(typs.size() - 1).compareTo(provisional.getTyp()) == 0;
+            }
+            if (mtmDone && mtmState.getLastTradeDt().equals(tradeDt)) {
+                List<BigDecimal> closes = mtmState.getCloses();
+                same = same && closes.get(closes.size() - 1).compareTo(provisional.getClose()) == 0;
+            }
+            if (!same) {
+                overwritten.add(stockCode);
+            }
+            confirmed++;
+            iterator.remove();
+            prepared.remove(stockCode);
+        }
+        logger.info("确认{}的盘中临时指标：{}只，其中{}只被正式结果覆盖，还有{}只未确认", tradeDt, confirmed, overwritten.size(), provisionals.size());
+        return overwritten;
+    }
+
+    /**
+     * 丢弃准备好的状态，下一条行情重新从状态缓存读取，用于盘中补算了前一交易日的数据之后
+     */
+    public void reload() {
+        prepared.clear();
+    }
+
+    /**
+     * 清空所有临时值和状态
+     */
+    public void clear() {
+        prepared.clear();
+        provisionals.clear();
+    }
+
+    /**
+     * 从状态缓存准备一只股票在tradeDt的计算状态，只使用tradeDt之前的状态
+     *
+     * @param stockCode
+     * @param tradeDt
+     * @return
+     */
+    private Prepared prepare(String stockCode, String tradeDt) {
+        AshareTechStateCache.CciState cciState = null;
+        AshareTechStateCache.RsiState rsiState = null;
+        AshareTechStateCache.MtmState mtmState = null;
+        if (stateCache != null) {
+            cciState = before(stateCache.getCci(stockCode), tradeDt);
+            rsiState = before(stateCache.getRsi(stockCode), tradeDt);
+            mtmState = before(stateCache.getMtm(stockCode), tradeDt);
+        }
+        if (cciState == null || rsiState == null || mtmState == null) {
+            metricsRegistry.counter("tech.intraday.missingState").increment(1);
+            logger.debug("股票{}在{}之前的指标状态不全：cci={} rsi={} mtm={}", stockCode, tradeDt, cciState != null, rsiState != null, mtmState != null);
+        }
+        return new Prepared(stockCode, tradeDt, cciState, rsiState, mtmState);
+    }
+
+    private static <T extends AshareTechStateCache.IndicatorState> T before(T state, String tradeDt) {
+        return state != null && state.getLastTradeDt().compareTo(tradeDt) < 0 ? state : null;
+    }
+
+    /**
+     * 一只股票在一个交易日的计算状态，创建后不再修改
+     */
+    private static class Prepared {
+
+        private final String stockCode;
+
+        private final String tradeDt;
+
+        // 已放入前13天typ，只调用peek
+        private final AshareCciEngine cciEngine;
+
+        private final BigDecimal[] rsiAverages;
+
+        private final BigDecimal preClose;
+
+        // 12个交易日前的收盘价
+        private final BigDecimal mtmBaseClose;
+
+        // 前5天的mtm
+        private final BigDecimal mtmSum;
+
+        Prepared(String stockCode, String tradeDt, AshareTechStateCache.CciState cciState, AshareTechStateCache.RsiState rsiState,
+                 AshareTechStateCache.MtmState mtmState) {
+            this.stockCode = stockCode;
+            this.tradeDt = tradeDt;
+
+            AshareCciEngine cciEngine = null;
+            if (cciState != null) {
+                cciEngine = new AshareCciEngine();
+                for (BigDecimal typ : cciState.getTyps()) {
+                    cciEngine.push(typ);
+                }
+                if (!cciEngine.isReady()) {
+                    cciEngine = null;
+                }
+            }
+            this.cciEngine = cciEngine;
+
+            List<BigDecimal> closes = mtmState == null ? Collections.<BigDecimal>emptyList() : mtmState.getCloses();
+            BigDecimal preClose = closes.isEmpty() ? null : closes.get(closes.size() - 1);
+            this.preClose = preClose;
+            this.rsiAverages = rsiState != null && preClose != null && preClose.signum() != 0
+                    && rsiState.getLastTradeDt().equals(mtmState.getLastTradeDt()) ? rsiState.getAverages() : null;
+            this.mtmBaseClose = closes.size() >= 12 ? closes.get(closes.size() - 12) : null;
+
+            List<BigDecimal> mtms = mtmState == null ? Collections.<BigDecimal>emptyList() : mtmState.getMtms();
+            BigDecimal mtmSum = null;
+            if (mtms.size() >= 5) {
+                mtmSum = BigDecimal.ZERO;
+                for (int j = mtms.size() - 5; j < mtms.size(); j++) {
+                    mtmSum = mtmSum.add(mtms.get(j));
+                }
+            }
+            this.mtmSum = mtmSum;
+        }
+
+        AshareTechProvisional calc(AshareTechBar bar) {
+            BigDecimal close = bar.getClose();
+            AshareTechProvisional provisional = new AshareTechProvisional();
+            provisional.setStockCode(stockCode);
+            provisional.setTradeDt(tradeDt);
+            provisional.setTime(bar.getTime());
+            provisional.setClose(close);
+
+            BigDecimal typ = AshareCciEngine.typ(bar.getHigh(), bar.getLow(), close);
+            provisional.setTyp(typ);
+            if (cciEngine != null) {
+                provisional.setCci(cciEngine.peek(typ));
+            }
+
+            if (rsiAverages != null) {
+                BigDecimal inc = close.compareTo(preClose) > 0 ? close.subtract(preClose) : BigDecimal.ZERO;
+                BigDecimal dec = preClose.compareTo(close) > 0 ? preClose.subtract(close) : BigDecimal.ZERO;
+                BigDecimal[] rsi = new BigDecimal[RSI_PERIODS.length];
+                for (int i = 0; i < RSI_PERIODS.length; i++) {
+                    BigDecimal avgInc = inc.add(RSI_WEIGHTS[i].multiply(rsiAverages[i * 2])).divide(RSI_DIVISORS[i], 6, BigDecimal.ROUND_HALF_UP);
+                    BigDecimal avgDec = dec.add(RSI_WEIGHTS[i].multiply(rsiAverages[i * 2 + 1])).divide(RSI_DIVISORS[i], 6, BigDecimal.ROUND_HALF_UP);
+                    if (avgDec.signum() != 0) {
+                        rsi[i] = avgInc.divide(avgInc.add(avgDec), 4, BigDecimal.ROUND_HALF_UP).movePointRight(2);
+                    }
+                }
+                provisional.setRsi6d(rsi[0]);
+                provisional.setRsi12d(rsi[1]);
+                provisional.setRsi24d(rsi[2]);
+            }
+
+            if (mtmBaseClose != null) {
+                BigDecimal mtm = close.subtract(mtmBaseClose).setScale(3, BigDecimal.ROUND_HALF_UP);
+                provisional.setMtm(mtm);
+                if (mtmSum != null) {
+                    provisional.setMamtm(mtmSum.add(mtm).divide(SIX, 3, BigDecimal.ROUND_HALF_UP));
+                }
+            }
+            return provisional;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.wnbt.calc.tech.service;
+
+import java.math.BigDecimal;
+
+/**
+ * Description:盘中按最新行情算出的当天临时指标，只保存在内存里，收盘后的批量计算写库后作废
+ * <p>
+ * 计算方式和舍入与各指标service的精确模式一致，行情与收盘数据相同时结果也相同；
+ * 对应指标没有可用的状态或者数据不足时为空
+ */
+public class AshareTechProvisional {
+
+    private String stockCode;
+
+    private String tradeDt;
+
+    private String time;
+
+    private BigDecimal close;
+
+    private BigDecimal typ;
+
+    private BigDecimal cci;
+
+    private BigDecimal rsi6d;
+
+    private BigDecimal rsi12d;
+
+    private BigDecimal rsi24d;
+
+    private BigDecimal mtm;
+
+    private BigDecimal mamtm;
+
+    public String getStockCode() {
+        return stockCode;
+    }
+
+    public void setStockCode(String stockCode) {
+        this.stockCode = stockCode;
+    }
+
+    public String getTradeDt() {
+        return tradeDt;
+    }
+
+    public void setTradeDt(String tradeDt) {
+        this.tradeDt = tradeDt;
+    }
+
+    public String getTime() {
+        return time;
+    }
+
+    public void setTime(String time) {
+        this.time = time;
+    }
+
+    public BigDecimal getClose() {
+        return close;
+    }
+
+    public void setClose(BigDecimal close) {
+        this.close = close;
+    }
+
+    public BigDecimal getTyp() {
+        return typ;
+    }
+
+    public void setTyp(BigDecimal typ) {
+        this.typ = typ;
+    }
+
+    public BigDecimal getCci() {
+        return cci;
+    }
+
+    public void setCci(BigDecimal cci) {
+        this.cci = cci;
+    }
+
+    public BigDecimal getRsi6d() {
+        return rsi6d;
+    }
+
+    public void setRsi6d(BigDecimal rsi6d) {
+        this.rsi6d = rsi6d;
+    }
+
+    public BigDecimal getRsi12d() {
+        return rsi12d;
+    }
+
+    public void setRsi12d(BigDecimal rsi12d) {
+        this.rsi12d = rsi12d;
+    }
+
+    public BigDecimal getRsi24d() {
+        return rsi24d;
+    }
+
+    public void setRsi24d(BigDecimal rsi24d) {
+        this.rsi24d = rsi24d;
+    }
+
+    public BigDecimal getMtm() {
+        return mtm;
+    }
+
+    public void setMtm(BigDecimal mtm) {
+        this.mtm = mtm;
+    }
+
+    public BigDecimal getMamtm() {
+        return mamtm;
+    }
+
+    public void setMamtm(BigDecimal mamtm) {
+        this.mamtm = mamtm;
+    }
+
+    @Override
+    public String toString() {
+        return stockCode + "@" + tradeDt + " " + time + " cci=" + cci + " rsi=" + rsi6d + "/" + rsi12d + "/" + rsi24d
+                + " mtm=" + mtm + " mamtm=" + mamtm;
+    }
+}
@@ -0,0 +1,227 @@
+package com.wnbt.calc.tech.service;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Description:按日期区间重算技术指标（AshareBatchTechService.recompute）的结果
+ * <p>
+ * summary：与全市场计算相同的处理、跳过、失败统计
+ * dryRun为true时不写库，把重算出的行与库里区间内已有的行按交易日逐行比较：
+ * added：库里没有的行，removed：重算后不再有的行，changed：有字段不同的行，unchanged：完全相同的行
+ * 数值字段按compareTo比较，不区分小数位数；不同的字段记录前maxSamples条作为样例
+ * <p>
+ * 线程安全
+ */
+public class AshareTechRecomputeResult {
+
+    private static final int DEFAULT_MAX_SAMPLES = 100;
+
+    // 实体类 -> 参与比较的getter，按名字排序
+    private static final Map<Class<?>, Map<String, Method>> GETTERS = new ConcurrentHashMap<>();
+
+    private final String startDt;
+
+    private final String endDt;
+
+    private final boolean dryRun;
+
+    private final AshareTechRunSummary summary = new AshareTechRunSummary();
+
+    private final int maxSamples;
+
+    private int added;
+
+    private int removed;
+
+    private int changed;
+
+    private int unchanged;
+
+    private final List<String> samples = new ArrayList<>();
+
+    public AshareTechRecomputeResult(String startDt, String endDt, boolean dryRun) {
+        this(startDt, endDt, dryRun, DEFAULT_MAX_SAMPLES);
+    }
+
+    public AshareTechRecomputeResult(String startDt, String endDt, boolean dryRun, int maxSamples) {
+        this.startDt = startDt;
+        this.endDt = endDt;
+        this.dryRun = dryRun;
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * 比较一只股票一个指标的行，两边的行都要有getTradeDt
+     *
+     * @param indicator  指标名，用于样例
+     * @param stockCode
+     * @param storedRows 库里区间内已有的行
+     * @param rows       重算出的行
+     */
+    void diff(String indicator, String stockCode, List<?> storedRows, List<?> rows) {
+        Map<String, Object> storedMap = new HashMap<>();
+        for (Object storedRow : storedRows) {
+            storedMap.put(tradeDt(storedRow), storedRow);
+        }
+        int added = 0;
+        int changed = 0;
+        int unchanged = 0;
+        List<String> samples = new ArrayList<>();
+        for (Object row : rows) {
+            String tradeDt = tradeDt(row);
+            Object storedRow = storedMap.remove(tradeDt);
+            if (storedRow == null) {
+                added++;
+                samples.add(indicator + " " + stockCode + " " + tradeDt + " added");
+                continue;
+            }
+            List<String> differences = compare(storedRow, row);
+            if (differences.isEmpty()) {
+                unchanged++;
+            } else {
+                changed++;
+                samples.add(indicator + " " + stockCode + " " + tradeDt + " " + differences);
+            }
+        }
+        for (String tradeDt : storedMap.keySet()) {
+            samples.add(indicator + " " + stockCode + " " + tradeDt + " removed");
+        }
+
+        synchronized (this) {
+            this.added += added;
+            this.removed += storedMap.size();
+            this.changed += changed;
+            this.unchanged += unchanged;
+            for (String sample : samples) {
+                if (this.samples.size() >= maxSamples) {
+                    break;
+                }
+                this.samples.add(sample);
+            }
+        }
+    }
+
+    /**
+     * 同一实体类的两行中值不同的字段，格式为 字段:旧值->新值
+     *
+     * @param storedRow
+     * @param row
+     * @return
+     */
+    private static List<String> compare(Object storedRow, Object row) {
+        List<String> differences = new ArrayList<>();
+        for (Map.Entry<String, Method> entry : getters(row.getClass()).entrySet()) {
+            Object storedValue = invoke(entry.getValue(), storedRow);
+            Object value = invoke(entry.getValue(), row);
+            boolean same;
+            if (storedValue == null || value == null) {
+                same = storedValue == value;
+            } else if (storedValue instanceof BigDecimal && value instanceof BigDecimal) {
+                same = ((BigDecimal) storedValue).compareTo((BigDecimal) value) == 0;
+            } else {
+                same = storedValue.equals(value);
+            }
+            if (!same) {
+                differences.add(entry.getKey() + ":" + storedValue + "->" + value);
+            }
+        }
+        return differences;
+    }
+
+    /**
+     * 除了id之外所有可读的字段
+     *
+     * @param clazz
+     * @return
+     */
+    private static Map<String, Method> getters(Class<?> clazz) {
+        Map<String, Method> getters = GETTERS.get(clazz);
+        if (getters != null) {
+            return getters;
+        }
+        getters = new LinkedHashMap<>();
+        try {
+            for (PropertyDescriptor descriptor : Introspector.getBeanInfo(clazz, Object.class).getPropertyDescriptors()) {
+                if (descriptor.getReadMethod() != null && !"id".equals(descriptor.getName())) {
+                    getters.put(descriptor.getName(), descriptor.getReadMethod());
+                }
+            }
+        } catch (IntrospectionException e) {
+            throw new IllegalStateException("无法读取" + clazz.getName() + "的字段", e);
+        }
+        GETTERS.put(clazz, getters);
+        return getters;
+    }
+
+    private static String tradeDt(Object row) {
+        Method getter = getters(row.getClass()).get("tradeDt");
+        if (getter == null) {
+            throw new IllegalArgumentException(row.getClass().getName() + "没有tradeDt字段");
+        }
+        return (String) invoke(getter, row);
+    }
+
+    private static Object invoke(Method getter, Object row) {
+        try {
+            return getter.invoke(row);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("读取字段失败：" + getter.getName(), e);
+        }
+    }
+
+    public String getStartDt() {
+        return startDt;
+    }
+
+    public String getEndDt() {
+        return endDt;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public AshareTechRunSummary getSummary() {
+        return summary;
+    }
+
+    public synchronized int getAdded() {
+        return added;
+    }
+
+    public synchronized int getRemoved() {
+        return removed;
+    }
+
+    public synchronized int getChanged() {
+        return changed;
+    }
+
+    public synchronized int getUnchanged() {
+        return unchanged;
+    }
+
+    public synchronized List<String> getSamples() {
+        return new ArrayList<>(samples);
+    }
+
+    @Override
+    public synchronized String toString() {
+        String result = startDt + "-" + endDt + ", dryRun=" + dryRun + ", " + summary;
+        if (dryRun) {
+            result += ", added=" + added + ", removed=" + removed + ", changed=" + changed + ", unchanged=" + unchanged;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,261 @@
+package com.wnbt.calc.tech.service;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Description:技术指标批量写入，替代各service里按空值情况拆分的多个list
+ * <p>
+ * firericeDB.batchInsert要求同一批次里每个字段要么都为空要么都不为空，所以按空值情况（NullMask）分批：
+ * 1.每只股票的行按交易日顺序切成若干段，同一段里空值情况相同
+ * 2.每段放进空值情况相同、未满batchSize的批次，可以和其他股票共用一个批次，这样全市场计算时批次数大大减少
+ * 3.一只股票后面的段不会放进比前面的段更早的批次，写入时按批次创建顺序写，
+ * 因此中途失败时每只股票写进去的都是按交易日连续的前一部分，下次按最后一条记录续算不会留下空洞
+ * 4.某个批次写入失败后，把这个批次按股票拆开逐只重试，只有重试也失败的股票记为失败，它在之后批次里的行不再写入，
+ * 其他股票继续写，一行坏数据不会连累同一批次里的其他股票
+ * 5.add时可以带一个回调，这只股票的行全部写入后在flush里执行，股票写入失败时不执行
+ * <p>
+ * 线程安全
+ */
+public class AshareTechRowWriter<T> {
+
+    private final int batchSize;
+
+    private final NullMask<T> nullMask;
+
+    private final Sink sink;
+
+    private final List<Batch<T>> batches = new ArrayList<>();
+
+    // 每只股票最后一段所在批次的下标
+    private final Map<String, Integer> stockBatchIndex = new HashMap<>();
+
+    private final Set<String> failedStockCodes = new LinkedHashSet<>();
+
+    // 按add的顺序
+    private final List<AfterWrite> afterWrites = new ArrayList<>();
+
+    private int bufferedRows;
+
+    private int insertCount;
+
+    public AshareTechRowWriter(int batchSize, NullMask<T> nullMask, Sink sink) {
+        this.batchSize = batchSize > 0 ? batchSize : Integer.MAX_VALUE;
+        this.nullMask = nullMask;
+        this.sink = sink;
+    }
+
+    /**
+     * 加入一只股票按交易日升序的行，缓存的行数达到batchSize时全部写入
+     *
+     * @param stockCode
+     * @param rows
+     */
+    public synchronized void add(String stockCode, List<T> rows) {
+        add(stockCode, rows, null);
+    }
+
+    /**
+     * 同add，afterWrite在这只股票的行全部写入之后执行
+     *
+     * @param stockCode
+     * @param rows
+     * @param afterWrite 可以为空
+     */
+    public synchronized void add(String stockCode, List<T> rows, Runnable afterWrite) {
+        if (afterWrite != null) {
+            afterWrites.add(new AfterWrite(stockCode, afterWrite));
+        }
+        Integer index = stockBatchIndex.get(stockCode);
+        int minIndex = index == null ? 0 : index;
+        for (T row : rows) {
+            int mask = nullMask.of(row);
+            Batch<T> batch = minIndex < batches.size() ? batches.get(minIndex) : null;
+            if (batch == null || batch.mask != mask || batch.rows.size() >= batchSize) {
+                minIndex = findBatch(mask, minIndex);
+                if (minIndex == batches.size()) {
+                    batches.add(new Batch<T>(mask));
+                }
+                batch = batches.get(minIndex);
+            }
+            batch.rows.add(row);
+            batch.rowStockCodes.add(stockCode);
+            batch.stockCodes.add(stockCode);
+            bufferedRows++;
+        }
+        stockBatchIndex.put(stockCode, minIndex);
+        if (bufferedRows >= batchSize) {
+            flush();
+        }
+    }
+
+    private int findBatch(int mask, int fromIndex) {
+        for (int i = fromIndex; i < batches.size(); i++) {
+            Batch<T> batch = batches.get(i);
+            if (batch.mask == mask && batch.rows.size() < batchSize) {
+                return i;
+            }
+        }
+        return batches.size();
+    }
+
+    /**
+     * 按批次创建顺序写入所有缓存的行，有股票写入失败时写完其他股票后抛出第一个异常
+     */
+    public synchronized void flush() {
+        Set<String> failed = new HashSet<>();
+        RuntimeException firstException = null;
+        for (Batch<T> batch : batches) {
+            List<T> rows = failed.isEmpty() ? batch.rows : batch.rowsExcept(failed);
+            if (rows.isEmpty()) {
+                continue;
+            }
+            try {
+                sink.insert(rows);
+                insertCount++;
+                continue;
+            } catch (RuntimeException e) {
+                firstException = firstException == null ? e : firstException;
+                if (batch.stockCodes.size() == 1) {
+                    failed.addAll(batch.stockCodes);
+                    continue;
+                }
+            }
+            for (String stockCode : batch.stockCodes) { // 按股票逐只重试，找出出错的股票
+                if (failed.contains(stockCode)) {
+                    continue;
+                }
+                try {
+                    sink.insert(batch.rowsOf(stockCode));
+                    insertCount++;
+                } catch (RuntimeException e) {
+                    failed.add(stockCode);
+                }
+            }
+        }
+        failedStockCodes.addAll(failed);
+        runAfterWrites(failed);
+        clear();
+        if (!failed.isEmpty()) {
+            throw firstException;
+        }
+    }
+
+    /**
+     * 执行写入成功的股票的回调，回调出错只影响它自己
+     *
+     * @param failedStockCodes 写入失败的股票
+     */
+    private void runAfterWrites(Set<String> failedStockCodes) {
+        for (AfterWrite afterWrite : afterWrites) {
+            if (failedStockCodes.contains(afterWrite.stockCode)) {
+                continue;
+            }
+            try {
+                afterWrite.runnable.run();
+            } catch (RuntimeException e) {
+                LoggerFactory.getLogger(AshareTechRowWriter.class).error("股票" + afterWrite.stockCode + "写入后的回调失败", e);
+            }
+        }
+    }
+
+    private void clear() {
+        afterWrites.clear();
+        batches.clear();
+        stockBatchIndex.clear();
+        bufferedRows = 0;
+    }
+
+    /**
+     * 因为写入失败而没有写完的股票，取出后清空
+     *
+     * @return
+     */
+    public synchronized List<String> drainFailedStockCodes() {
+        List<String> stockCodes = new ArrayList<>(failedStockCodes);
+        failedStockCodes.clear();
+        return stockCodes;
+    }
+
+    /**
+     * 缓存中还没有写入的行数
+     *
+     * @return
+     */
+    public synchronized int getBufferedRows() {
+        return bufferedRows;
+    }
+
+    public synchronized int getInsertCount() {
+        return insertCount;
+    }
+
+    /**
+     * 行的空值情况，返回值相同的行可以放在同一个批次里
+     */
+    public interface NullMask<T> {
+        int of(T row);
+    }
+
+    /**
+     * 实际的写入，一般是firericeDB.batchInsert
+     */
+    public interface Sink {
+        void insert(List<?> rows);
+    }
+
+    private static class Batch<T> {
+
+        private final int mask;
+
+        private final List<T> rows = new ArrayList<>();
+
+        // 每一行的股票代码，与rows一一对应
+        private final List<String> rowStockCodes = new ArrayList<>();
+
+        private final Set<String> stockCodes = new LinkedHashSet<>();
+
+        Batch(int mask) {
+            this.mask = mask;
+        }
+
+        List<T> rowsOf(String stockCode) {
+            List<T> stockRows = new ArrayList<>();
+            for (int i = 0; i < rows.size(); i++) {
+                if (rowStockCodes.get(i).equals(stockCode)) {
+                    stockRows.add(rows.get(i));
+                }
+            }
+            return stockRows;
+        }
+
+        List<T> rowsExcept(Set<String> excluded) {
+            List<T> otherRows = new ArrayList<>();
+            for (int i = 0; i < rows.size(); i++) {
+                if (!excluded.contains(rowStockCodes.get(i))) {
+                    otherRows.add(rows.get(i));
+                }
+            }
+            return otherRows;
+        }
+    }
+
+    private static class AfterWrite {
+
+        private final String stockCode;
+
+        private final Runnable runnable;
+
+        AfterWrite(String stockCode, Runnable runnable) {
+            this.stockCode = stockCode;
+            this.runnable = runnable;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.wnbt.calc.tech.service;
+
+/**
+ * Description:全市场批量计算技术指标时的运行参数
+ * <p>
+ * threads：并发计算的股票数
+ * forkJoin：为true时使用ForkJoinPool，否则使用固定大小的线程池
+ * maxConcurrentReads：同时访问infoDB的最大查询数，<=0表示不限制
+ * maxConcurrentWrites：同时往firericeDB写入的最大批次数，<=0表示不限制
+ * maxRetries：单只股票计算失败后的重试次数
+ * retryIntervalMillis：重试间隔
+ * batchSize：每次batchInsert的最大行数
+ * crossStockBatch：为true时多只股票的指标合并成一个批次写入，否则每只股票计算完立即写入
+ * bulkChunkSize：按日期区间批量计算时，每次查询行情包含的股票数
+ * writeBehind：为true时计算完的行交给AshareTechWriteBehind异步写入，计算线程不等待写库，代替crossStockBatch
+ */
+public class AshareTechRunConfig {
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private boolean forkJoin = false;
+
+    private int maxConcurrentReads = 8;
+
+    private int maxConcurrentWrites = 4;
+
+    private int maxRetries = 2;
+
+    private long retryIntervalMillis = 1000L;
+
+    private int batchSize = 1000;
+
+    private boolean crossStockBatch = true;
+
+    private int bulkChunkSize = 500;
+
+    private boolean writeBehind = false;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public boolean isForkJoin() {
+        return forkJoin;
+    }
+
+    public void setForkJoin(boolean forkJoin) {
+        this.forkJoin = forkJoin;
+    }
+
+    public int getMaxConcurrentReads() {
+        return maxConcurrentReads;
+    }
+
+    public void setMaxConcurrentReads(int maxConcurrentReads) {
+        this.maxConcurrentReads = maxConcurrentReads;
+    }
+
+    public int getMaxConcurrentWrites() {
+        return maxConcurrentWrites;
+    }
+
+    public void setMaxConcurrentWrites(int maxConcurrentWrites) {
+        this.maxConcurrentWrites = maxConcurrentWrites;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryIntervalMillis() {
+        return retryIntervalMillis;
+    }
+
+    public void setRetryIntervalMillis(long retryIntervalMillis) {
+        this.retryIntervalMillis = retryIntervalMillis;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isCrossStockBatch() {
+        return crossStockBatch;
+    }
+
+    public void setCrossStockBatch(boolean crossStockBatch) {
+        this.crossStockBatch = crossStockBatch;
+    }
+
+    public int getBulkChunkSize() {
+        return bulkChunkSize;
+    }
+
+    public void setBulkChunkSize(int bulkChunkSize) {
+        this.bulkChunkSize = bulkChunkSize;
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+}
@@ -0,0 +1,233 @@
+package com.wnbt.calc.tech.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Description:全市场批量计算技术指标的运行结果汇总
+ * <p>
+ * processed：有数据写入的股票数；writeBehind、crossStockBatch异步写入时行交出去就算，之后写入失败的股票从中移除、记为失败，
+ * 所以一只股票只会计入processed、skipped、failed中的一个
+ * skipped：没有新数据（或历史数据不足）而跳过的股票数
+ * failed：重试后仍然失败或写入失败的股票数，股票代码见failedStockCodes
+ * <p>
+ * 各阶段耗时：fetch为读行情等查询（infoDB和本地行情），compute为单只股票计算的其余时间（包括指标表的少量查询），
+ * 两者都只算最后成功的那一次；retry为之前失败的尝试加上重试前的等待，数据库超时重试不会算成CPU时间；write为batchInsert；还有每只股票的查询次数、读取行数、分配字节数，以及最慢的几只股票，用于区分慢在数据库还是CPU
+ */
+public class AshareTechRunSummary {
+
+    // 与failedStockCodes一起在failedStockCodes的锁下修改
+    private final Set<String> processedStockCodes = new HashSet<>();
+
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private final AtomicInteger retried = new AtomicInteger();
+
+    private final Set<String> failedStockCodes = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    private long elapsedMillis;
+
+    private static final int SLOWEST_SIZE = 10;
+
+    private final AtomicLong fetchNanos = new AtomicLong();
+
+    private final AtomicLong computeNanos = new AtomicLong();
+
+    private final AtomicLong retryNanos = new AtomicLong();
+
+    private final AtomicLong writeNanos = new AtomicLong();
+
+    private final AtomicLong queries = new AtomicLong();
+
+    private final AtomicLong fetchedRows = new AtomicLong();
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    // 最慢的SLOWEST_SIZE只股票，堆顶是其中最快的
+    private final PriorityQueue<StockTiming> slowest = new PriorityQueue<>();
+
+    /**
+     * 已经记为失败（比如异步写入先失败了）的股票不再计入
+     *
+     * @param stockCode
+     */
+    void markProcessed(String stockCode) {
+        synchronized (failedStockCodes) {
+            if (!failedStockCodes.contains(stockCode)) {
+                processedStockCodes.add(stockCode);
+            }
+        }
+    }
+
+    void markSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    void markRetried() {
+        retried.incrementAndGet();
+    }
+
+    void markFailed(String stockCode) {
+        synchronized (failedStockCodes) {
+            failedStockCodes.add(stockCode);
+            processedStockCodes.remove(stockCode);
+        }
+    }
+
+    /**
+     * 记录一只股票的计算（包括重试）
+     *
+     * @param stockCode
+     * @param elapsedNanos   总耗时
+     * @param fetchNanos     其中成功的那一次查询的耗时
+     * @param retryNanos     其中失败的尝试和重试等待的耗时
+     * @param queries
+     * @param fetchedRows
+     * @param allocatedBytes
+     */
+    void markStock(String stockCode, long elapsedNanos, long fetchNanos, long retryNanos, int queries, int fetchedRows, long allocatedBytes) {
+        this.fetchNanos.addAndGet(fetchNanos);
+        this.computeNanos.addAndGet(elapsedNanos - fetchNanos - retryNanos);
+        this.retryNanos.addAndGet(retryNanos);
+        this.queries.addAndGet(queries);
+        this.fetchedRows.addAndGet(fetchedRows);
+        this.allocatedBytes.addAndGet(allocatedBytes);
+        synchronized (slowest) {
+            if (slowest.size() < SLOWEST_SIZE) {
+                slowest.add(new StockTiming(stockCode, elapsedNanos));
+            } else if (slowest.peek().nanos < elapsedNanos) {
+                slowest.poll();
+                slowest.add(new StockTiming(stockCode, elapsedNanos));
+            }
+        }
+    }
+
+    void markWrite(long nanos) {
+        writeNanos.addAndGet(nanos);
+    }
+
+    /**
+     * 当前线程累计分配的字节数，不支持时返回0
+     *
+     * @return
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public int getProcessed() {
+        synchronized (failedStockCodes) {
+            return processedStockCodes.size();
+        }
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public int getRetried() {
+        return retried.get();
+    }
+
+    public int getFailed() {
+        return failedStockCodes.size();
+    }
+
+    public List<String> getFailedStockCodes() {
+        synchronized (failedStockCodes) {
+            return new ArrayList<>(failedStockCodes);
+        }
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public long getFetchMillis() {
+        return fetchNanos.get() / 1000000;
+    }
+
+    public long getComputeMillis() {
+        return computeNanos.get() / 1000000;
+    }
+
+    public long getRetryMillis() {
+        return retryNanos.get() / 1000000;
+    }
+
+    public long getWriteMillis() {
+        return writeNanos.get() / 1000000;
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public long getFetchedRows() {
+        return fetchedRows.get();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * 最慢的几只股票，格式为 股票代码:毫秒，从慢到快
+     *
+     * @return
+     */
+    public List<String> getSlowest() {
+        List<StockTiming> timings;
+        synchronized (slowest) {
+            timings = new ArrayList<>(slowest);
+        }
+        Collections.sort(timings, Collections.reverseOrder());
+        List<String> result = new ArrayList<>(timings.size());
+        for (StockTiming timing : timings) {
+            result.add(timing.stockCode + ":" + timing.nanos / 1000000);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "processed=" + getProcessed() + ", skipped=" + getSkipped() + ", failed=" + getFailed()
+                + ", retried=" + getRetried() + ", elapsed=" + elapsedMillis + "ms"
+                + ", fetch=" + getFetchMillis() + "ms, compute=" + getComputeMillis() + "ms, retry=" + getRetryMillis() + "ms, write=" + getWriteMillis() + "ms"
+                + ", queries=" + getQueries() + ", fetchedRows=" + getFetchedRows() + ", allocated=" + getAllocatedBytes() / (1024 * 1024) + "MB"
+                + ", slowest=" + getSlowest();
+    }
+
+    private static class StockTiming implements Comparable<StockTiming> {
+
+        private final String stockCode;
+
+        private final long nanos;
+
+        StockTiming(String stockCode, long nanos) {
+            this.stockCode = stockCode;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public int compareTo(StockTiming o) {
+            return Long.compare(nanos, o.nanos);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.wnbt.calc.tech.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Description:技术指标增量计算的状态缓存，按股票保存各指标续算需要的最少数据
+ * <p>
+ * CCI：最后13天的typ；RSI：最后一天的6个平滑平均值；MTM：最后12天的收盘价和最后5天的mtm
+ * <p>
+ * 1.各指标service的warmState用批量查询预热，之后每次写入成功后更新
+ * 2.写入失败的股票会被移除，下次从库里重新取
+ * 3.calc.tech.stateFile不为空时，启动时从本地文件恢复，关闭时和每次全市场计算结束后保存；
+ * 恢复的状态先标记为未校验，get时当作没有，直到verify（每次批量计算开始时由各指标的validateState调用）
+ * 或retainValid（warmState）用库里的最后交易日校验过，不一致的移除，所以文件比库新或旧都不会被当作续算的起点
+ * 4.最多保存calc.tech.stateMaxSize只股票，超过后按最近最少使用淘汰；retainAll可以清理退市的股票
+ * <p>
+ * 状态对象创建后不再修改，更新时整体替换
+ */
+@Component
+public class AshareTechStateCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AshareTechStateCache.class);
+
+    @Value("${calc.tech.stateFile:}")
+    private String stateFile;
+
+    @Value("${calc.tech.stateMaxSize:10000}")
+    private int maxSize = 10000;
+
+    // 按访问顺序排列，超过maxSize时淘汰最久没有用到的股票；每只股票按Indicator的顺序保存各指标的状态
+    private final Map<String, IndicatorState[]> states = new LinkedHashMap<String, IndicatorState[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IndicatorState[]> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    // 从文件恢复、还没有用库里的最后交易日校验过的股票，按Indicator的顺序
+    private final List<Set<String>> unverified = newUnverified();
+
+    @PostConstruct
+    public void init() {
+        if (stateFile != null && !stateFile.isEmpty() && new File(stateFile).exists()) {
+            loadSnapshot(new File(stateFile));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        saveSnapshot();
+    }
+
+    public CciState getCci(String stockCode) {
+        return (CciState) get(Indicator.CCI, stockCode);
+    }
+
+    public RsiState getRsi(String stockCode) {
+        return (RsiState) get(Indicator.RSI, stockCode);
+    }
+
+    public MtmState getMtm(String stockCode) {
+        return (MtmState) get(Indicator.MTM, stockCode);
+    }
+
+    private IndicatorState get(Indicator indicator, String stockCode) {
+        synchronized (states) {
+            if (unverified.get(indicator.ordinal()).contains(stockCode)) {
+                return null;
+            }
+            IndicatorState[] stockStates = states.get(stockCode);
+            return stockStates == null ? null : stockStates[indicator.ordinal()];
+        }
+    }
+
+    /**
+     * 替换一只股票一个指标的状态，state为空表示移除；新放入的状态是刚算出或刚从库里取出的，不需要校验
+     *
+     * @param indicator
+     * @param stockCode
+     * @param state
+     */
+    public void put(Indicator indicator, String stockCode, IndicatorState state) {
+        synchronized (states) {
+            unverified.get(indicator.ordinal()).remove(stockCode);
+            IndicatorState[] stockStates = states.get(stockCode);
+            if (stockStates == null) {
+                if (state == null) {
+                    return;
+                }
+                stockStates = new IndicatorState[Indicator.values().length];
+            } else {
+                stockStates = stockStates.clone(); // 快照可能正在序列化旧数组，不直接修改
+            }
+            stockStates[indicator.ordinal()] = state;
+            for (IndicatorState stockState : stockStates) {
+                if (stockState != null) {
+                    states.put(stockCode, stockStates);
+                    return;
+                }
+            }
+            states.remove(stockCode);
+        }
+    }
+
+    public void evict(String stockCode) {
+        synchronized (states) {
+            states.remove(stockCode);
+            for (Set<String> stockCodes : unverified) {
+                stockCodes.remove(stockCode);
+            }
+        }
+    }
+
+    /**
+     * 一个指标未校验的状态中最早的最后交易日，用于确定校验时要查的范围
+     *
+     * @param indicator
+     * @return 没有未校验的状态时返回null
+     */
+    public String getUnverifiedSince(Indicator indicator) {
+        String sinceDt = null;
+        synchronized (states) {
+            for (String stockCode : unverified.get(indicator.ordinal())) {
+                IndicatorState[] stockStates = states.get(stockCode);
+                IndicatorState state = stockStates == null ? null : stockStates[indicator.ordinal()];
+                if (state != null && (sinceDt == null || state.getLastTradeDt().compareTo(sinceDt) < 0)) {
+                    sinceDt = state.getLastTradeDt();
+                }
+            }
+        }
+        return sinceDt;
+    }
+
+    /**
+     * 用库里的最后交易日校验一个指标未校验的状态：一致的开始使用，不一致或者库里没有的移除；已经校验过的状态不受影响
+     *
+     * @param indicator
+     * @param lastTradeDts getLastTradeDts(getUnverifiedSince(indicator))的返回值
+     */
+    public void verify(Indicator indicator, Map<String, String> lastTradeDts) {
+        List<String> staleStockCodes = new ArrayList<>();
+        synchronized (states) {
+            Iterator<String> iterator = unverified.get(indicator.ordinal()).iterator();
+            while (iterator.hasNext()) {
+                String stockCode = iterator.next();
+                IndicatorState[] stockStates = states.get(stockCode);
+                IndicatorState state = stockStates == null ? null : stockStates[indicator.ordinal()];
+                if (state == null || !state.getLastTradeDt().equals(lastTradeDts.get(stockCode))) {
+                    staleStockCodes.add(stockCode);
+                }
+                iterator.remove();
+            }
+        }
+        for (String stockCode : staleStockCodes) {
+            put(indicator, stockCode, null);
+        }
+        logger.info("{}指标状态校验完成，移除{}只股票", indicator, staleStockCodes.size());
+    }
+
+    /**
+     * 用库里每只股票实际的最后交易日校验一个指标的状态：不一致或者库里已经没有的移除
+     *
+     * @param indicator
+     * @param lastTradeDts getLastTradeDts的返回值
+     * @return 库里有但缓存里没有有效状态的股票，需要重新预热
+     */
+    public Set<String> retainValid(Indicator indicator, Map<String, String> lastTradeDts) {
+        Set<String> missingStockCodes = new HashSet<>(lastTradeDts.keySet());
+        List<String> staleStockCodes = new ArrayList<>();
+        synchronized (states) {
+            for (Map.Entry<String, IndicatorState[]> entry : states.entrySet()) {
+                IndicatorState state = entry.getValue()[indicator.ordinal()];
+                if (state == null) {
+                    continue;
+                }
+                if (state.getLastTradeDt().equals(lastTradeDts.get(entry.getKey()))) {
+                    missingStockCodes.remove(entry.getKey());
+                } else {
+                    staleStockCodes.add(entry.getKey());
+                }
+            }
+        }
+        for (String stockCode : staleStockCodes) {
+            put(indicator, stockCode, null);
+        }
+        synchronized (states) {
+            unverified.get(indicator.ordinal()).clear(); // 库里没有的股票上面已经移除，剩下的都一致
+        }
+        return missingStockCodes;
+    }
+
+    /**
+     * 只保留仍在交易的股票，用于清理退市股票
+     *
+     * @param stockCodes
+     */
+    public void retainAll(Collection<String> stockCodes) {
+        Set<String> activeStockCodes = new HashSet<>(stockCodes);
+        synchronized (states) {
+            Iterator<String> iterator = states.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (!activeStockCodes.contains(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+            for (Set<String> unverifiedStockCodes : unverified) {
+                unverifiedStockCodes.retainAll(activeStockCodes);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (states) {
+            states.clear();
+            for (Set<String> stockCodes : unverified) {
+                stockCodes.clear();
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (states) {
+            return states.size();
+        }
+    }
+
+    /**
+     * 保存到calc.tech.stateFile，没有配置时不保存
+     */
+    public void saveSnapshot() {
+        if (stateFile != null && !stateFile.isEmpty()) {
+            saveSnapshot(new File(stateFile));
+        }
+    }
+
+    /**
+     * 先写临时文件再改名，避免写到一半的文件被读到
+     *
+     * @param file
+     */
+    public void saveSnapshot(File file) {
+        HashMap<String, IndicatorState[]> snapshot;
+        synchronized (states) {
+            snapshot = new HashMap<>(states);
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeObject(snapshot);
+        } catch (IOException e) {
+            logger.error("指标状态保存失败：" + file, e);
+            return;
+        }
+        if (file.exists() && !file.delete() || !tmpFile.renameTo(file)) {
+            logger.error("指标状态保存失败，无法替换文件：{}", file);
+            return;
+        }
+        logger.info("指标状态已保存：{}只股票，{}", snapshot.size(), file);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void loadSnapshot(File file) {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Map<String, IndicatorState[]> snapshot = (Map<String, IndicatorState[]>) in.readObject();
+            synchronized (states) {
+                states.putAll(snapshot);
+                for (Map.Entry<String, IndicatorState[]> entry : snapshot.entrySet()) {
+                    for (int i = 0; i < entry.getValue().length && i < unverified.size(); i++) {
+                        if (entry.getValue()[i] != null) {
+                            unverified.get(i).add(entry.getKey());
+                        }
+                    }
+                }
+            }
+            logger.info("指标状态已恢复：{}只股票，{}", snapshot.size(), file);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.error("指标状态恢复失败，将从数据库预热：" + file, e);
+        }
+    }
+
+    private static List<Set<String>> newUnverified() {
+        List<Set<String>> unverified = new ArrayList<>();
+        for (int i = 0; i < Indicator.values().length; i++) {
+            unverified.add(new HashSet<String>());
+        }
+        return unverified;
+    }
+
+    public enum Indicator {
+        CCI, RSI, MTM
+    }
+
+    /**
+     * 一个指标续算需要的状态，lastTradeDt是状态对应的最后一个交易日
+     */
+    public abstract static class IndicatorState implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String lastTradeDt;
+
+        IndicatorState(String lastTradeDt) {
+            this.lastTradeDt = lastTradeDt;
+        }
+
+        public String getLastTradeDt() {
+            return lastTradeDt;
+        }
+    }
+
+    /**
+     * CCI：最后一个交易日和到这一天为止最后13天的typ（升序）
+     */
+    public static class CciState extends IndicatorState {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<BigDecimal> typs;
+
+        public CciState(String lastTradeDt, List<BigDecimal> typs) {
+            super(lastTradeDt);
+            this.typs = new ArrayList<>(typs);
+        }
+
+        public List<BigDecimal> getTyps() {
+            return new ArrayList<>(typs);
+        }
+    }
+
+    /**
+     * RSI：最后一个交易日的6个平滑平均值，顺序为avgInc6d、avgDec6d、avgInc12d、avgDec12d、avgInc24d、avgDec24d
+     */
+    public static class RsiState extends IndicatorState {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BigDecimal[] averages;
+
+        public RsiState(String lastTradeDt, BigDecimal... averages) {
+            super(lastTradeDt);
+            this.averages = averages.clone();
+        }
+
+        public BigDecimal[] getAverages() {
+            return averages.clone();
+        }
+    }
+
+    /**
+     * MTM：最后一个交易日，到这一天为止最后12天的交易日和收盘价，以及最后5天的mtm（都是升序）
+     */
+    public static class MtmState extends IndicatorState {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> tradeDts;
+
+        private final List<BigDecimal> closes;
+
+        private final List<BigDecimal> mtms;
+
+        public MtmState(String lastTradeDt, List<String> tradeDts, List<BigDecimal> closes, List<BigDecimal> mtms) {
+            super(lastTradeDt);
+            this.tradeDts = new ArrayList<>(tradeDts);
+            this.closes = new ArrayList<>(closes);
+            this.mtms = new ArrayList<>(mtms);
+        }
+
+        public List<String> getTradeDts() {
+            return new ArrayList<>(tradeDts);
+        }
+
+        public List<BigDecimal> getCloses() {
+            return new ArrayList<>(closes);
+        }
+
+        public List<BigDecimal> getMtms() {
+            return new ArrayList<>(mtms);
+        }
+    }
+}
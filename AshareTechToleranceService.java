@@ -0,0 +1,156 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareCci;
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.entity.AshareMtm;
+import com.wnbt.entity.AshareRsi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Description:快速模式（放大成long）与精确模式（BigDecimal）的一致性报告
+ * <p>
+ * 对每只股票读取全部历史行情，按初始化的方式分别用两种模式计算CCI、RSI、MTM，只在内存中比较，不写库。
+ * 比较的是写库后的值（已按字段小数位舍入），记录每个字段的最大绝对误差、不一致的条数和只有一边为空的条数。
+ * 通过calcUniverse跑全市场后调用getReport得到报告。
+ * <p>
+ * 快速模式每一步的舍入与精确模式相同（typ 4位、RSI平均值6位），正常情况下报告里不一致的条数都应为0；
+ * 不为0说明真实行情里有模拟数据没有覆盖的情况，需要排查。
+ */
+@Service
+public class AshareTechToleranceService extends AshareBatchTechService {
+
+    @Autowired
+    private AshareCciService ashareCciService;
+
+    @Autowired
+    private AshareRsiService ashareRsiService;
+
+    @Autowired
+    private AshareMtmService ashareMtmService;
+
+    private final Map<String, Deviation> deviations = new LinkedHashMap<>();
+
+    @Override
+    protected Logger getLogger() {
+        return LoggerFactory.getLogger(AshareTechToleranceService.class);
+    }
+
+    @Override
+    public void calcStock(String stockCode) {
+        List<AshareEodPrices> aShareEODPricesList = readPrices(stockCode, null, false);
+        if (aShareEODPricesList == null || aShareEODPricesList.size() < 2) {
+            return;
+        }
+
+        List<AshareCci> exactCci = ashareCciService.calcExact(aShareEODPricesList, null);
+        List<AshareCci> fastCci = ashareCciService.calcFast(aShareEODPricesList, null);
+        for (int i = 0; i < exactCci.size(); i++) {
+            deviation("typ").add(exactCci.get(i).getTyp(), fastCci.get(i).getTyp());
+            deviation("cci").add(exactCci.get(i).getCci(), fastCci.get(i).getCci());
+        }
+
+        AshareRsi initRsi = AshareRsiService.newInitModel(stockCode, aShareEODPricesList.get(0).getTradeDt());
+        try {
+            List<AshareRsi> exactRsi = ashareRsiService.calcExact(aShareEODPricesList, initRsi);
+            List<AshareRsi> fastRsi = ashareRsiService.calcFast(aShareEODPricesList, initRsi);
+            for (int i = 0; i < exactRsi.size(); i++) {
+                AshareRsi exact = exactRsi.get(i);
+                AshareRsi fast = fastRsi.get(i);
+                deviation("avgInc6d").add(exact.getAvgInc6d(), fast.getAvgInc6d());
+                deviation("avgDec6d").add(exact.getAvgDec6d(), fast.getAvgDec6d());
+                deviation("avgInc12d").add(exact.getAvgInc12d(), fast.getAvgInc12d());
+                deviation("avgDec12d").add(exact.getAvgDec12d(), fast.getAvgDec12d());
+                deviation("avgInc24d").add(exact.getAvgInc24d(), fast.getAvgInc24d());
+                deviation("avgDec24d").add(exact.getAvgDec24d(), fast.getAvgDec24d());
+                deviation("rsi6d").add(exact.getRsi6d(), fast.getRsi6d());
+                deviation("rsi12d").add(exact.getRsi12d(), fast.getRsi12d());
+                deviation("rsi24d").add(exact.getRsi24d(), fast.getRsi24d());
+            }
+        } catch (RuntimeException e) { // 收盘价为空或为0时两种模式都会失败，不参与比较
+            getLogger().warn("股票{}的RSI无法计算：{}", stockCode, e.getMessage());
+        }
+
+        if (aShareEODPricesList.size() >= 13) {
+            List<AshareMtm> exactMtm = ashareMtmService.calcExact(aShareEODPricesList, null);
+            List<AshareMtm> fastMtm = ashareMtmService.calcFast(aShareEODPricesList, null);
+            for (int i = 0; i < exactMtm.size(); i++) {
+                BigDecimal mtm = exactMtm.get(i).getMtm();
+                deviation("mtm").add(mtm == null ? null : mtm.setScale(3, BigDecimal.ROUND_HALF_UP), fastMtm.get(i).getMtm());
+                deviation("mamtm").add(exactMtm.get(i).getMamtm(), fastMtm.get(i).getMamtm());
+            }
+        }
+    }
+
+    private Deviation deviation(String column) {
+        synchronized (deviations) {
+            Deviation deviation = deviations.get(column);
+            if (deviation == null) {
+                deviation = new Deviation();
+                deviations.put(column, deviation);
+            }
+            return deviation;
+        }
+    }
+
+    /**
+     * 误差报告，每个字段一行
+     *
+     * @return
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder("字段\t比较条数\t不一致条数\t空值不一致条数\t最大绝对误差\n");
+        synchronized (deviations) {
+            for (Map.Entry<String, Deviation> entry : deviations.entrySet()) {
+                report.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+            }
+        }
+        return report.toString();
+    }
+
+    public void reset() {
+        synchronized (deviations) {
+            deviations.clear();
+        }
+    }
+
+    private static class Deviation {
+
+        private long count;
+
+        private long mismatch;
+
+        private long nullMismatch;
+
+        private BigDecimal maxAbs = BigDecimal.ZERO;
+
+        synchronized void add(BigDecimal exact, BigDecimal fast) {
+            count++;
+            if (exact == null || fast == null) {
+                if (exact != fast) {
+                    nullMismatch++;
+                }
+                return;
+            }
+            BigDecimal abs = exact.subtract(fast).abs();
+            if (abs.signum() != 0) {
+                mismatch++;
+                if (abs.compareTo(maxAbs) > 0) {
+                    maxAbs = abs;
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return count + "\t" + mismatch + "\t" + nullMismatch + "\t" + maxAbs.toPlainString();
+        }
+    }
+}
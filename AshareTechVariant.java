@@ -0,0 +1,65 @@
+package com.wnbt.entity;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * Description:按参数计算的技术指标（长表），每只股票每个交易日每个指标变体一行
+ * <p>
+ * indicator：CCI、RSI、MTM、MAMTM，以及RSI续算用的RSI_AVGINC、RSI_AVGDEC（平均涨幅、平均跌幅，value保留6位小数）
+ * params：周期参数，多个用逗号分隔，比如CCI为"20"，MAMTM为"12,6"（12日mtm的6日均线）
+ */
+public class AshareTechVariant implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String stockCode;
+
+    private String tradeDt;
+
+    private String indicator;
+
+    private String params;
+
+    private BigDecimal value;
+
+    public String getStockCode() {
+        return stockCode;
+    }
+
+    public void setStockCode(String stockCode) {
+        this.stockCode = stockCode;
+    }
+
+    public String getTradeDt() {
+        return tradeDt;
+    }
+
+    public void setTradeDt(String tradeDt) {
+        this.tradeDt = tradeDt;
+    }
+
+    public String getIndicator() {
+        return indicator;
+    }
+
+    public void setIndicator(String indicator) {
+        this.indicator = indicator;
+    }
+
+    public String getParams() {
+        return params;
+    }
+
+    public void setParams(String params) {
+        this.params = params;
+    }
+
+    public BigDecimal getValue() {
+        return value;
+    }
+
+    public void setValue(BigDecimal value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,489 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.entity.AshareTechVariant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Description:一次计算一只股票的多个指标变体（不同周期的CCI、RSI、MTM）
+ * <p>
+ * 1.行情只转换一次成long列（收盘价、typ），同一种指标的变体共用中间结果：所有CCI共用typ，所有RSI共用每日涨跌幅，
+ * 相同周期的MTM共用mtm列
+ * 2.计算用AshareTechFastMath，舍入方式与各指标service的精确模式相同（typ 4位、RSI平均值6位），写库时CCI、RSI保留2位，
+ * MTM、MAMTM保留3位；默认周期的变体与AshareCciService、AshareRsiService、AshareMtmService初始化算出的值相同
+ * 3.RSI的平滑平均第一次从第一条行情开始递推（第一天平均值为0，与AshareRsiService初始化一致），之后从写入长表的
+ * 平均涨跌幅（RSI_AVGINC、RSI_AVGDEC）往后递推，所以续算时只需要每个变体回看的若干条行情，见getResumeDt、getLookback
+ * 4.每个变体单独捕获异常，收盘价为0只影响RSI，与各指标service一致
+ * <p>
+ * 变体的配置格式为逗号分隔的 指标:周期，MTM可以带均线周期，比如 CCI:20,RSI:9,MTM:12/6
+ * <p>
+ * 线程安全，创建后不再修改
+ */
+public class AshareTechVariantEngine {
+
+    public static final String CCI = "CCI";
+
+    public static final String RSI = "RSI";
+
+    public static final String MTM = "MTM";
+
+    public static final String MAMTM = "MAMTM";
+
+    // RSI续算用的平均涨幅、平均跌幅，6位小数
+    public static final String RSI_AVGINC = "RSI_AVGINC";
+
+    public static final String RSI_AVGDEC = "RSI_AVGDEC";
+
+    private final List<Spec> specs;
+
+    public AshareTechVariantEngine(List<Spec> specs) {
+        this.specs = Collections.unmodifiableList(new ArrayList<>(specs));
+    }
+
+    /**
+     * 解析变体配置，格式错误时抛出IllegalArgumentException
+     *
+     * @param config 比如 CCI:20,RSI:9,MTM:12/6
+     * @return
+     */
+    public static List<Spec> parse(String config) {
+        List<Spec> specs = new ArrayList<>();
+        if (config == null || config.trim().isEmpty()) {
+            return specs;
+        }
+        for (String item : config.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            String[] parts = item.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("指标变体格式错误：" + item);
+            }
+            String indicator = parts[0].trim().toUpperCase();
+            String[] periods = parts[1].trim().split("/");
+            try {
+                int period = Integer.parseInt(periods[0].trim());
+                int maPeriod = periods.length > 1 ? Integer.parseInt(periods[1].trim()) : 0;
+                specs.add(new Spec(indicator, period, maPeriod));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("指标变体周期错误：" + item, e);
+            }
+        }
+        return specs;
+    }
+
+    /**
+     * 每个变体续算的起点：CCI、MTM为已有记录的最后交易日，RSI为平均涨跌幅记录的最后交易日（平均涨跌幅和RSI同一天写入，
+     * RSI为空的那天也写平均涨跌幅）
+     *
+     * @param lastRows 每个变体最后一条记录，key为indicator + ":" + params
+     * @return 所有变体中最早的起点，有变体需要从头计算时返回null
+     */
+    public String getResumeDt(Map<String, AshareTechVariant> lastRows) {
+        String resumeDt = null;
+        for (Spec spec : specs) {
+            String specResumeDt = spec.getResumeDt(lastRows);
+            if (specResumeDt == null) {
+                return null;
+            }
+            if (resumeDt == null || specResumeDt.compareTo(resumeDt) < 0) {
+                resumeDt = specResumeDt;
+            }
+        }
+        return resumeDt;
+    }
+
+    /**
+     * 续算时起点及之前最多需要的行情条数
+     *
+     * @return
+     */
+    public int getLookback() {
+        int lookback = 1;
+        for (Spec spec : specs) {
+            lookback = Math.max(lookback, spec.getLookback());
+        }
+        return lookback;
+    }
+
+    /**
+     * 从起点往前读的行情是否足够续算所有变体：每个变体的起点都在prices里，起点及之前的条数不少于该变体的回看条数
+     *
+     * @param prices   一只股票按交易日升序、已过滤停牌的行情
+     * @param lastRows
+     * @return 长期停牌等原因导致不够时返回false，调用方改用全部历史
+     */
+    public boolean isEnough(List<AshareEodPrices> prices, Map<String, AshareTechVariant> lastRows) {
+        for (Spec spec : specs) {
+            if (!spec.isEnough(prices, spec.getResumeDt(lastRows))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 计算所有变体，只返回交易日在该变体已有记录之后、值不为空的行，按变体、交易日排序
+     * <p>
+     * 每个变体单独捕获异常，一个变体失败（比如收盘价为0时RSI失败）不影响其他变体，失败的变体放进failures
+     *
+     * @param prices      一只股票按交易日升序、已过滤停牌的行情
+     * @param lastRows    每个变体最后一条记录，key为indicator + ":" + params，为空时所有变体从头计算
+     * @param fullHistory prices是否为全部历史；否则prices从起点往前的若干条开始，应先用isEnough检查
+     * @param failures    失败的变体及异常，可以为null
+     * @return
+     */
+    public List<AshareTechVariant> calc(List<AshareEodPrices> prices, Map<String, AshareTechVariant> lastRows, boolean fullHistory,
+                                        Map<Spec, RuntimeException> failures) {
+        List<AshareTechVariant> rows = new ArrayList<>();
+        if (prices == null || prices.isEmpty() || specs.isEmpty()) {
+            return rows;
+        }
+        if (lastRows == null) {
+            lastRows = Collections.emptyMap();
+        }
+        Columns columns = new Columns(prices);
+        for (Spec spec : specs) {
+            int size = rows.size();
+            try {
+                if (!fullHistory && !spec.isEnough(prices, spec.getResumeDt(lastRows))) {
+                    throw new IllegalStateException("行情不足以续算：" + spec);
+                }
+                if (CCI.equals(spec.indicator)) {
+                    calcCci(rows, columns, spec, lastRows);
+                } else if (RSI.equals(spec.indicator)) {
+                    calcRsi(rows, columns, spec, lastRows);
+                } else {
+                    calcMtm(rows, columns, spec, lastRows);
+                }
+            } catch (RuntimeException e) {
+                rows.subList(size, rows.size()).clear();
+                if (failures != null) {
+                    failures.put(spec, e);
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static void calcCci(List<AshareTechVariant> rows, Columns columns, Spec spec, Map<String, AshareTechVariant> lastRows) {
+        long[] out = columns.out();
+        AshareTechFastMath.cci(columns.typ(), spec.period, out);
+        addRows(rows, columns, CCI, spec.getParams(), out, AshareTechFastMath.CCI_SCALE, AshareTechFastMath.CCI_SCALE,
+                columns.indexAfter(lastTradeDt(lastRows, CCI, spec.getParams())));
+    }
+
+    /**
+     * 有平均涨跌幅记录时从那一天的平均值往后递推，否则从第一条行情开始递推（第一天平均值为0，与AshareRsiService初始化一致），
+     * 这时需要全部历史，平均涨跌幅从RSI已有记录的最后一天开始补写
+     */
+    private static void calcRsi(List<AshareTechVariant> rows, Columns columns, Spec spec, Map<String, AshareTechVariant> lastRows) {
+        String params = spec.getParams();
+        String stateDt = spec.getResumeDt(lastRows);
+        int from = stateDt == null ? 0 : columns.indexAfter(stateDt) - 1; // 递推的第一天
+        if (stateDt != null && (from < 0 || !columns.prices.get(from).getTradeDt().equals(stateDt))) { // 平均涨跌幅那天已不在行情里，从头递推
+            stateDt = null;
+            from = 0;
+        }
+        int rsiStart = stateDt == null ? columns.indexAfter(lastTradeDt(lastRows, RSI, params)) : from + 1;
+        // 没有平均涨跌幅时至少补写RSI最后一天的，下次可以续算
+        int incStart = stateDt == null ? Math.max(Math.max(rsiStart - 1, 1), columns.indexAfter(lastTradeDt(lastRows, RSI_AVGINC, params))) : from + 1;
+        int decStart = stateDt == null ? Math.max(Math.max(rsiStart - 1, 1), columns.indexAfter(lastTradeDt(lastRows, RSI_AVGDEC, params))) : from + 1;
+        int size = columns.size();
+        if (size - from < 2) {
+            return;
+        }
+        long[] close = columns.close();
+        AshareTechFastMath.checkNonZero(close, from, columns.prices); // 与AshareRsiService一致，收盘价为0时计算失败
+        long[] inc = columns.change(true);
+        long[] dec = columns.change(false);
+        long preInc = stateDt == null ? 0 : AshareTechFastMath.unscaled(lastRows.get(RSI_AVGINC + ":" + params).getValue(), AshareTechFastMath.AVG_SCALE);
+        long preDec = stateDt == null ? 0 : AshareTechFastMath.unscaled(lastRows.get(RSI_AVGDEC + ":" + params).getValue(), AshareTechFastMath.AVG_SCALE);
+
+        // avgInc[i]、avgDec[i]对应第i + 1天
+        long[] avgInc = columns.avgInc();
+        long[] avgDec = columns.avgDec();
+        AshareTechFastMath.smooth(inc, from, spec.period, preInc, avgInc);
+        AshareTechFastMath.smooth(dec, from, spec.period, preDec, avgDec);
+        long[] out = columns.out();
+        long[] incOut = columns.incOut();
+        long[] decOut = columns.decOut();
+        for (int i = 0; i <= from; i++) {
+            out[i] = AshareTechFastMath.NULL;
+            incOut[i] = AshareTechFastMath.NULL;
+            decOut[i] = AshareTechFastMath.NULL;
+        }
+        for (int i = from; i < size - 1; i++) {
+            out[i + 1] = AshareTechFastMath.rsi(avgInc[i], avgDec[i]);
+            incOut[i + 1] = avgInc[i];
+            decOut[i + 1] = avgDec[i];
+        }
+        addRows(rows, columns, RSI, params, out, AshareTechFastMath.RSI_SCALE, AshareTechFastMath.RSI_SCALE, rsiStart);
+        addRows(rows, columns, RSI_AVGINC, params, incOut, AshareTechFastMath.AVG_SCALE, AshareTechFastMath.AVG_SCALE, incStart);
+        addRows(rows, columns, RSI_AVGDEC, params, decOut, AshareTechFastMath.AVG_SCALE, AshareTechFastMath.AVG_SCALE, decStart);
+    }
+
+    private static void calcMtm(List<AshareTechVariant> rows, Columns columns, Spec spec, Map<String, AshareTechVariant> lastRows) {
+        String period = String.valueOf(spec.period);
+        long[] mtm = columns.mtms.get(spec.period);
+        if (mtm == null) {
+            mtm = new long[columns.size()];
+            AshareTechFastMath.mtm(columns.close(), spec.period, mtm);
+            columns.mtms.put(spec.period, mtm);
+            addRows(rows, columns, MTM, period, mtm, AshareTechFastMath.PRICE_SCALE, AshareTechFastMath.MTM_SCALE,
+                    columns.indexAfter(lastTradeDt(lastRows, MTM, period)));
+        }
+        if (spec.maPeriod > 0) {
+            long[] out = columns.out();
+            AshareTechFastMath.ma(mtm, spec.maPeriod, AshareTechFastMath.PRICE_SCALE, AshareTechFastMath.MTM_SCALE, out);
+            addRows(rows, columns, MAMTM, spec.getParams(), out, AshareTechFastMath.MTM_SCALE, AshareTechFastMath.MTM_SCALE,
+                    columns.indexAfter(lastTradeDt(lastRows, MAMTM, spec.getParams())));
+        }
+    }
+
+    private static String lastTradeDt(Map<String, AshareTechVariant> lastRows, String indicator, String params) {
+        AshareTechVariant lastRow = lastRows.get(indicator + ":" + params);
+        return lastRow == null ? null : lastRow.getTradeDt();
+    }
+
+    /**
+     * @param values     放大成long的值，NULL的行不输出
+     * @param valueScale values的小数位
+     * @param scale      写库的小数位，按HALF_UP舍入
+     * @param start      从这个下标开始输出
+     */
+    private static void addRows(List<AshareTechVariant> rows, Columns columns, String indicator, String params,
+                                long[] values, int valueScale, int scale, int start) {
+        for (int i = start; i < columns.size(); i++) {
+            if (values[i] == AshareTechFastMath.NULL) {
+                continue;
+            }
+            AshareTechVariant row = new AshareTechVariant();
+            row.setStockCode(columns.stockCode);
+            row.setTradeDt(columns.prices.get(i).getTradeDt());
+            row.setIndicator(indicator);
+            row.setParams(params);
+            row.setValue(AshareTechFastMath.decimal(AshareTechFastMath.rescale(values[i], valueScale, scale), scale));
+            rows.add(row);
+        }
+    }
+
+    public List<Spec> getSpecs() {
+        return specs;
+    }
+
+    /**
+     * 一个指标变体
+     */
+    public static class Spec {
+
+        private final String indicator;
+
+        private final int period;
+
+        private final int maPeriod;
+
+        /**
+         * @param indicator CCI、RSI、MTM
+         * @param period    周期
+         * @param maPeriod  MTM的均线周期，0表示不计算均线，其他指标忽略
+         */
+        public Spec(String indicator, int period, int maPeriod) {
+            if (period < (CCI.equals(indicator) ? 2 : 1) || maPeriod < 0) {
+                throw new IllegalArgumentException("指标变体周期错误：" + indicator + ":" + period);
+            }
+            if (!CCI.equals(indicator) && !RSI.equals(indicator) && !MTM.equals(indicator)) {
+                throw new IllegalArgumentException("不支持的指标：" + indicator);
+            }
+            this.indicator = indicator;
+            this.period = period;
+            this.maPeriod = MTM.equals(indicator) ? maPeriod : 0;
+        }
+
+        public String getIndicator() {
+            return indicator;
+        }
+
+        public int getPeriod() {
+            return period;
+        }
+
+        public int getMaPeriod() {
+            return maPeriod;
+        }
+
+        /**
+         * 续算的起点，没有记录需要从头计算时返回null
+         *
+         * @param lastRows 每个变体最后一条记录，key为indicator + ":" + params
+         * @return
+         */
+        String getResumeDt(Map<String, AshareTechVariant> lastRows) {
+            if (CCI.equals(indicator)) {
+                return lastTradeDt(lastRows, CCI, getParams());
+            }
+            if (RSI.equals(indicator)) {
+                String incDt = lastTradeDt(lastRows, RSI_AVGINC, getParams());
+                return incDt != null && incDt.equals(lastTradeDt(lastRows, RSI_AVGDEC, getParams())) ? incDt : null;
+            }
+            String resumeDt = lastTradeDt(lastRows, MTM, String.valueOf(period));
+            if (resumeDt != null && maPeriod > 0) {
+                String maDt = lastTradeDt(lastRows, MAMTM, getParams());
+                resumeDt = maDt == null || maDt.compareTo(resumeDt) < 0 ? maDt : resumeDt;
+            }
+            return resumeDt;
+        }
+
+        /**
+         * 起点及之前需要的行情条数：CCI为周期 - 1，RSI只需要起点那天的收盘价，MTM为周期 + 均线周期 - 1
+         *
+         * @return
+         */
+        int getLookback() {
+            if (CCI.equals(indicator)) {
+                return period - 1;
+            }
+            return RSI.equals(indicator) ? 1 : period + Math.max(maPeriod, 1) - 1;
+        }
+
+        boolean isEnough(List<AshareEodPrices> prices, String resumeDt) {
+            if (resumeDt == null) {
+                return false;
+            }
+            int count = AshareBatchTechService.indexAfter(prices, resumeDt, false);
+            if (RSI.equals(indicator)) { // 从起点那天的平均值递推，那天必须在行情里
+                return count > 0 && prices.get(count - 1).getTradeDt().equals(resumeDt);
+            }
+            return count >= getLookback();
+        }
+
+        /**
+         * 写入表中的params：周期，MTM带均线时为 周期,均线周期（对应MAMTM的行）
+         *
+         * @return
+         */
+        public String getParams() {
+            return maPeriod > 0 ? period + "," + maPeriod : String.valueOf(period);
+        }
+
+        @Override
+        public String toString() {
+            return indicator + ":" + period + (maPeriod > 0 ? "/" + maPeriod : "");
+        }
+    }
+
+    /**
+     * 一只股票的long列，用到时才转换，同一种指标的变体共用
+     */
+    private static class Columns {
+
+        private final List<AshareEodPrices> prices;
+
+        private final String stockCode;
+
+        private final Map<Integer, long[]> mtms = new HashMap<>();
+
+        private long[] close;
+
+        private long[] typ;
+
+        private long[] inc;
+
+        private long[] dec;
+
+        private long[] out;
+
+        private long[] avgInc;
+
+        private long[] avgDec;
+
+        private long[] incOut;
+
+        private long[] decOut;
+
+        Columns(List<AshareEodPrices> prices) {
+            this.prices = prices;
+            this.stockCode = prices.get(0).getsInfoWindcode().substring(0, 6);
+        }
+
+        int size() {
+            return prices.size();
+        }
+
+        int indexAfter(String tradeDt) {
+            return AshareBatchTechService.indexAfter(prices, tradeDt, false);
+        }
+
+        long[] close() {
+            if (close == null) {
+                long[] values = new long[size()];
+                AshareTechFastMath.closes(prices, values, 0);
+                close = values;
+            }
+            return close;
+        }
+
+        long[] typ() {
+            if (typ == null) {
+                long[] values = new long[size()];
+                AshareTechFastMath.typ(prices, values, 0);
+                typ = values;
+            }
+            return typ;
+        }
+
+        /**
+         * 每天相对前一天的涨幅或跌幅，长度为size() - 1
+         */
+        long[] change(boolean up) {
+            if (inc == null) {
+                inc = new long[size() - 1];
+                dec = new long[size() - 1];
+                AshareTechFastMath.change(close(), true, inc);
+                AshareTechFastMath.change(close(), false, dec);
+            }
+            return up ? inc : dec;
+        }
+
+        long[] out() {
+            if (out == null) {
+                out = new long[size()];
+            }
+            return out;
+        }
+
+        long[] avgInc() {
+            if (avgInc == null) {
+                avgInc = new long[size() - 1];
+            }
+            return avgInc;
+        }
+
+        long[] avgDec() {
+            if (avgDec == null) {
+                avgDec = new long[size() - 1];
+            }
+            return avgDec;
+        }
+
+        long[] incOut() {
+            if (incOut == null) {
+                incOut = new long[size()];
+            }
+            return incOut;
+        }
+
+        long[] decOut() {
+            if (decOut == null) {
+                decOut = new long[size()];
+            }
+            return decOut;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.entity.AshareTechVariant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Description:按配置的周期计算技术指标变体，写入长表AshareTechVariant
+ * <p>
+ * 1.calc.tech.variants配置需要的变体，比如 CCI:20,RSI:9,MTM:12/6，增加变体不需要新的service
+ * 2.每只股票查一次每个变体的最后一条记录，只读各变体续算需要回看的行情（启用本地行情时从本地读取），所有变体一起计算；
+ * 新增变体第一次运行、或者回看的行情不够时读全部历史
+ * 3.每个变体只写入它已有记录之后的行，RSI另外写入每天的平均涨跌幅（indicator为RSI_AVGINC、RSI_AVGDEC，6位小数）用于续算
+ * 4.单个变体计算失败只记日志，不影响同一只股票的其他变体
+ * <p>
+ * 默认的CCI(14)、RSI(6/12/24)、MTM(12/6)仍由原来的service写入原来的表，这里的结果与它们算出的值一致
+ */
+@Service
+public class AshareTechVariantService extends AshareBatchTechService {
+
+    // 长表的value都不为空，所有行的空值情况相同
+    static final AshareTechRowWriter.NullMask<AshareTechVariant> NULL_MASK = new AshareTechRowWriter.NullMask<AshareTechVariant>() {
+        @Override
+        public int of(AshareTechVariant row) {
+            return 0;
+        }
+    };
+
+    @Value("${calc.tech.variants:}")
+    private String variants = "";
+
+    private volatile AshareTechVariantEngine engine = new AshareTechVariantEngine(AshareTechVariantEngine.parse(""));
+
+    @PostConstruct
+    public void init() {
+        setVariants(variants);
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return LoggerFactory.getLogger(AshareTechVariantService.class);
+    }
+
+    @Override
+    public void calcStock(String stockCode) {
+        AshareTechVariantEngine engine = this.engine;
+        if (engine.getSpecs().isEmpty()) {
+            return;
+        }
+        Map<String, AshareTechVariant> lastRows = getLastRows(stockCode);
+        String resumeDt = engine.getResumeDt(lastRows);
+        boolean fullHistory = resumeDt == null;
+        List<AshareEodPrices> prices = readPrices(stockCode, fullHistory ? null : minusDays(resumeDt, engine.getLookback() * 3), true);
+        if (!fullHistory && !engine.isEnough(prices, lastRows)) { // 长期停牌导致回看的条数不够
+            prices = readPrices(stockCode, null, true);
+            fullHistory = true;
+        }
+        Map<AshareTechVariantEngine.Spec, RuntimeException> failures = new LinkedHashMap<>();
+        write(stockCode, engine.calc(prices, lastRows, fullHistory, failures), NULL_MASK);
+        for (Map.Entry<AshareTechVariantEngine.Spec, RuntimeException> entry : failures.entrySet()) {
+            getLogger().warn("股票" + stockCode + "指标变体" + entry.getKey() + "计算失败：" + entry.getValue().getMessage());
+        }
+    }
+
+    /**
+     * 一只股票每个变体（包括RSI的平均涨跌幅）最后一条记录，key为indicator + ":" + params
+     *
+     * @param stockCode
+     * @return
+     */
+    Map<String, AshareTechVariant> getLastRows(String stockCode) {
+        if (!stockCode.matches("\\d{6}")) { // 股票代码直接拼进SQL
+            throw new IllegalArgumentException("股票代码格式错误：" + stockCode);
+        }
+        List<AshareTechVariant> modelList = getFirericeDB()
+                .from("ashare_tech_variant v JOIN (SELECT indicator, params, MAX(trade_dt) AS trade_dt FROM ashare_tech_variant WHERE stock_code='"
+                        + stockCode + "' GROUP BY indicator, params) t ON v.indicator = t.indicator AND v.params = t.params AND v.trade_dt = t.trade_dt")
+                .where("v.stock_code", stockCode)
+                .select("v.stock_code AS stockCode, v.trade_dt AS tradeDt, v.indicator AS indicator, v.params AS params, v.value AS value")
+                .all(AshareTechVariant.class);
+        Map<String, AshareTechVariant> lastRows = new HashMap<>();
+        for (AshareTechVariant model : modelList) {
+            lastRows.put(model.getIndicator() + ":" + model.getParams(), model);
+        }
+        return lastRows;
+    }
+
+    public String getVariants() {
+        return variants;
+    }
+
+    /**
+     * 修改需要计算的变体，格式错误时抛出IllegalArgumentException并保留原来的配置
+     *
+     * @param variants
+     */
+    public void setVariants(String variants) {
+        this.engine = new AshareTechVariantEngine(AshareTechVariantEngine.parse(variants));
+        this.variants = variants;
+        getLogger().info("技术指标变体：{}", engine.getSpecs());
+    }
+}
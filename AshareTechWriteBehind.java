@@ -0,0 +1,375 @@
+package com.wnbt.calc.tech.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description:计算和写库之间的异步写入管道，计算线程交出行后立即计算下一只股票，由少量写入线程合并成大批次写入firericeDB
+ * <p>
+ * 1.每只股票按股票代码固定交给一个写入线程，同一只股票的行按提交顺序写入
+ * 2.写入线程里每个Sink（一次运行中的一个指标service）一个AshareTechRowWriter，多只股票的行合并成batchSize的批次；
+ * 批次写满、队列空闲lingerMillis或者flush时写入
+ * 3.背压：队列中未写入的行数超过maxQueuedRows时，submit阻塞，直到写入线程写掉一部分
+ * 4.每次submit返回一个future，行真正写入后先执行afterWrite（更新状态缓存）再完成；写入失败时以异常完成，afterWrite不执行，
+ * 因此状态缓存不会领先于库里的数据；AshareTechRowWriter保证每只股票写进去的是按交易日连续的前一部分，中途宕机后仍可以按最后一条记录续算；
+ * 一只股票在某个sink中写入失败后，之后提交的行不再写入，直接以异常完成，避免在库里留下空洞；
+ * 合并的批次写入失败时AshareTechRowWriter按股票逐只重试，只有出错的股票失败
+ * 5.flush等待之前提交的行全部写完；容器关闭时先flush再停止写入线程
+ * 6.入队和停止在同一把锁下，停止之后submit会启动新的写入线程，不会有行排在停止标记之后；
+ * 写入线程意外退出（被中断）时，队列里剩下的行以异常完成并释放背压，flush不会一直等待
+ * <p>
+ * 线程安全
+ */
+@Component
+public class AshareTechWriteBehind {
+
+    private static final Logger logger = LoggerFactory.getLogger(AshareTechWriteBehind.class);
+
+    @Value("${calc.tech.writeBehind.threads:2}")
+    private int threads = 2;
+
+    @Value("${calc.tech.writeBehind.maxQueuedRows:200000}")
+    private int maxQueuedRows = 200000;
+
+    @Value("${calc.tech.writeBehind.batchSize:1000}")
+    private int batchSize = 1000;
+
+    @Value("${calc.tech.writeBehind.lingerMillis:200}")
+    private long lingerMillis = 200;
+
+    private Worker[] workers;
+
+    private Semaphore queuedRows;
+
+    /**
+     * 提交一只股票的行，队列满时阻塞
+     *
+     * @param stockCode
+     * @param rows       按交易日升序
+     * @param nullMask
+     * @param sink       同一个sink的行合并写入
+     * @param afterWrite 写入成功后在写入线程中执行，可以为空
+     * @return 写入成功时完成，写入失败时以异常完成
+     */
+    public <T> CompletableFuture<Void> submit(String stockCode, List<T> rows, AshareTechRowWriter.NullMask<T> nullMask,
+                                              AshareTechRowWriter.Sink sink, Runnable afterWrite) {
+        start();
+        int permits = Math.min(rows.size(), maxQueuedRows);
+        queuedRows.acquireUninterruptibly(permits); // 阻塞时不持有锁
+        Item<T> item = new Item<>(stockCode, rows, nullMask, sink, afterWrite, permits);
+        synchronized (this) {
+            Worker[] workers = start();
+            workers[(stockCode.hashCode() & Integer.MAX_VALUE) % workers.length].queue.add(item);
+        }
+        return item.future;
+    }
+
+    /**
+     * 写入之前提交的所有行，等待完成
+     */
+    public void flush() {
+        CountDownLatch latch;
+        synchronized (this) {
+            if (workers == null) {
+                return;
+            }
+            latch = new CountDownLatch(workers.length);
+            for (Worker worker : workers) {
+                worker.queue.add(new Item<>(latch));
+            }
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("等待写入完成被中断");
+        }
+    }
+
+    /**
+     * 写完剩余的行后停止写入线程，之后再submit会重新启动
+     */
+    @PreDestroy
+    public void shutdown() {
+        Worker[] workers;
+        synchronized (this) {
+            workers = this.workers;
+            this.workers = null;
+            if (workers == null) {
+                return;
+            }
+            for (Worker worker : workers) {
+                worker.queue.add(new Item<>(null));
+            }
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("等待写入线程结束被中断");
+                return;
+            }
+        }
+    }
+
+    private synchronized Worker[] start() {
+        if (workers == null) {
+            if (queuedRows == null) {
+                queuedRows = new Semaphore(Math.max(1, maxQueuedRows));
+            }
+            workers = new Worker[Math.max(1, threads)];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker("tech-writer-" + (i + 1));
+                workers[i].start();
+            }
+        }
+        return workers;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getMaxQueuedRows() {
+        return maxQueuedRows;
+    }
+
+    public void setMaxQueuedRows(int maxQueuedRows) {
+        this.maxQueuedRows = maxQueuedRows;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    public void setLingerMillis(long lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * 一个写入线程，只在自己的线程里访问pipes
+     */
+    private class Worker extends Thread {
+
+        private final BlockingQueue<Item<?>> queue = new LinkedBlockingQueue<>();
+
+        private final Map<AshareTechRowWriter.Sink, Pipe> pipes = new IdentityHashMap<>();
+
+        // 每个sink中写入失败过的股票，sink不再使用后自动回收
+        private final Map<AshareTechRowWriter.Sink, Set<String>> failedStockCodes = new WeakHashMap<>();
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Item<?> item;
+                    try {
+                        item = queue.poll(lingerMillis, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        item = new Item<>(null);
+                    }
+                    if (item == null) { // 空闲时写入缓存的行
+                        flushPipes();
+                    } else if (item.rows != null) {
+                        add(item);
+                    } else {
+                        flushPipes();
+                        if (item.latch == null) {
+                            return;
+                        }
+                        item.latch.countDown();
+                    }
+                }
+            } finally {
+                exit();
+            }
+        }
+
+        /**
+         * 退出前：不是shutdown停止的（被中断）时，让这一组写入线程都停止，下一次submit重新启动；
+         * 然后把队列里剩下的行以异常完成，flush标记直接放行
+         */
+        private void exit() {
+            synchronized (AshareTechWriteBehind.this) {
+                if (workers != null && Arrays.asList(workers).contains(this)) {
+                    for (Worker worker : workers) {
+                        if (worker != this) {
+                            worker.queue.add(new Item<>(null));
+                        }
+                    }
+                    workers = null;
+                    logger.warn("写入线程{}意外退出，之后的提交会启动新的写入线程", getName());
+                }
+            }
+            for (Item<?> item = queue.poll(); item != null; item = queue.poll()) {
+                if (item.rows != null) {
+                    queuedRows.release(item.permits);
+                    item.future.completeExceptionally(new IllegalStateException("写入线程已停止，股票" + item.stockCode + "的指标没有写入"));
+                } else if (item.latch != null) {
+                    item.latch.countDown();
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void add(Item<T> item) {
+            Set<String> failed = failedStockCodes.get(item.sink);
+            if (failed != null && failed.contains(item.stockCode)) {
+                queuedRows.release(item.permits);
+                item.future.completeExceptionally(new IllegalStateException("股票" + item.stockCode + "之前的指标写入失败"));
+                return;
+            }
+            Pipe pipe = pipes.get(item.sink);
+            if (pipe == null) {
+                if (failed == null) {
+                    failed = new HashSet<>();
+                    failedStockCodes.put(item.sink, failed);
+                }
+                pipe = new Pipe(new AshareTechRowWriter<>(batchSize, (AshareTechRowWriter.NullMask<Object>) item.nullMask, item.sink), failed);
+                pipes.put(item.sink, pipe);
+            }
+            pipe.pending.add(item);
+            try {
+                pipe.writer.add(item.stockCode, (List<Object>) item.rows);
+            } catch (RuntimeException e) {
+                logger.error("指标写入失败", e);
+            }
+            if (pipe.writer.getBufferedRows() == 0) { // 达到batchSize后已经全部写入
+                pipe.complete();
+            }
+        }
+
+        private void flushPipes() {
+            Iterator<Pipe> iterator = pipes.values().iterator();
+            while (iterator.hasNext()) {
+                Pipe pipe = iterator.next();
+                try {
+                    pipe.writer.flush();
+                } catch (RuntimeException e) {
+                    logger.error("指标写入失败", e);
+                }
+                pipe.complete();
+                iterator.remove(); // 一次运行结束后sink不再使用，不保留
+            }
+        }
+    }
+
+    /**
+     * 一个sink的writer和已经交给writer、还没有确认的行
+     */
+    private class Pipe {
+
+        private final AshareTechRowWriter<Object> writer;
+
+        private final List<Item<?>> pending = new ArrayList<>();
+
+        private final Set<String> failed;
+
+        Pipe(AshareTechRowWriter<Object> writer, Set<String> failed) {
+            this.writer = writer;
+            this.failed = failed;
+        }
+
+        /**
+         * writer里已经没有缓存的行时调用，写入失败的股票以异常完成，其他的执行afterWrite后完成
+         */
+        void complete() {
+            failed.addAll(writer.drainFailedStockCodes());
+            for (Item<?> item : pending) {
+                queuedRows.release(item.permits);
+                if (failed.contains(item.stockCode)) {
+                    item.future.completeExceptionally(new IllegalStateException("股票" + item.stockCode + "指标写入失败"));
+                    continue;
+                }
+                try {
+                    if (item.afterWrite != null) {
+                        item.afterWrite.run();
+                    }
+                    item.future.complete(null);
+                } catch (RuntimeException e) {
+                    item.future.completeExceptionally(e);
+                }
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * 队列中的一项：一只股票的行，或者rows为空的flush标记（latch为空表示停止）
+     */
+    private static class Item<T> {
+
+        private final String stockCode;
+
+        private final List<T> rows;
+
+        private final AshareTechRowWriter.NullMask<T> nullMask;
+
+        private final AshareTechRowWriter.Sink sink;
+
+        private final Runnable afterWrite;
+
+        private final int permits;
+
+        private final CountDownLatch latch;
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Item(String stockCode, List<T> rows, AshareTechRowWriter.NullMask<T> nullMask, AshareTechRowWriter.Sink sink, Runnable afterWrite, int permits) {
+            this.stockCode = stockCode;
+            this.rows = rows;
+            this.nullMask = nullMask;
+            this.sink = sink;
+            this.afterWrite = afterWrite;
+            this.permits = permits;
+            this.latch = null;
+        }
+
+        Item(CountDownLatch latch) {
+            this.stockCode = null;
+            this.rows = null;
+            this.nullMask = null;
+            this.sink = null;
+            this.afterWrite = null;
+            this.permits = 0;
+            this.latch = latch;
+        }
+    }
+}
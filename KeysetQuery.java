@@ -0,0 +1,195 @@
+package com.wnbt.db;
+
+import cn.huoqiu.base.db.Query;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Description:按键分页读取大结果集，遍历时一页一页地查询，调用方边读边处理，不保留行时内存只占一页
+ * <p>
+ * 1.按orderColumn（或groupColumn、orderColumn）升序排序，每页limit(pageSize)，下一页从上一页最后一行的键之后开始，
+ * 不用offset，越往后翻页不会越慢
+ * 2.只有orderColumn时它必须唯一，比如同一只股票的TRADE_DT；有groupColumn时(groupColumn, orderColumn)必须唯一，
+ * 比如全市场的(stock_code, trade_dt)：先在当前分组内按orderColumn往后翻，分组读完后再从下一个分组开始
+ * 3.select中必须包含键对应的列，Key从行中取出键值
+ * 4.Source每次返回新的Query，只带where条件，不要带orderBy和limit
+ * <p>
+ * 查询在遍历时进行，每次iterator()都从头开始；非线程安全
+ */
+public class KeysetQuery<T> implements Iterable<T> {
+
+    public static final int DEFAULT_PAGE_SIZE = 5000;
+
+    private final Source source;
+
+    private final Class<T> clazz;
+
+    private final String groupColumn;
+
+    private final Key<T> groupKey;
+
+    private final String orderColumn;
+
+    private final Key<T> orderKey;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    /**
+     * 按唯一的orderColumn分页
+     *
+     * @param source
+     * @param clazz
+     * @param orderColumn
+     * @param orderKey
+     */
+    public KeysetQuery(Source source, Class<T> clazz, String orderColumn, Key<T> orderKey) {
+        this(source, clazz, null, null, orderColumn, orderKey);
+    }
+
+    /**
+     * 按(groupColumn, orderColumn)分页
+     *
+     * @param source
+     * @param clazz
+     * @param groupColumn
+     * @param groupKey
+     * @param orderColumn
+     * @param orderKey
+     */
+    public KeysetQuery(Source source, Class<T> clazz, String groupColumn, Key<T> groupKey, String orderColumn, Key<T> orderKey) {
+        this.source = source;
+        this.clazz = clazz;
+        this.groupColumn = groupColumn;
+        this.groupKey = groupKey;
+        this.orderColumn = orderColumn;
+        this.orderKey = orderKey;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new PageIterator();
+    }
+
+    /**
+     * 查询一页，子类可以覆盖以加上并发限制、埋点等
+     *
+     * @param query 已经带上键条件、排序和limit
+     * @param clazz
+     * @return
+     */
+    protected List<T> fetch(Query query, Class<T> clazz) {
+        return query.all(clazz);
+    }
+
+    public Class<T> getClazz() {
+        return clazz;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("每页条数至少为1：" + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * 创建只带where条件的查询
+     */
+    public interface Source {
+        Query create();
+    }
+
+    /**
+     * 从行中取出键值
+     */
+    public interface Key<T> {
+        Object of(T row);
+    }
+
+    private class PageIterator implements Iterator<T> {
+
+        private List<T> page = Collections.emptyList();
+
+        private int index;
+
+        private boolean started;
+
+        // 上一页是否是当前分组内的翻页
+        private boolean inGroup;
+
+        private boolean exhausted;
+
+        private Object lastGroup;
+
+        private Object lastOrder;
+
+        @Override
+        public boolean hasNext() {
+            while (index >= page.size() && !exhausted) {
+                nextPage();
+            }
+            return index < page.size();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T row = page.get(index++);
+            if (groupKey != null) {
+                lastGroup = groupKey.of(row);
+            }
+            lastOrder = orderKey.of(row);
+            return row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void nextPage() {
+            boolean full = page.size() >= pageSize;
+            page = Collections.emptyList(); // 先释放上一页
+            index = 0;
+            Query query = source.create();
+            if (!started) {
+                started = true;
+                inGroup = false;
+                query.orderBy(orderBy());
+            } else if (groupColumn == null) {
+                if (!full) {
+                    exhausted = true;
+                    return;
+                }
+                query.great(orderColumn, lastOrder).orderBy(orderColumn + " ASC");
+            } else if (full) { // 当前分组可能还没有读完
+                inGroup = true;
+                query.where(groupColumn, lastGroup).great(orderColumn, lastOrder).orderBy(orderColumn + " ASC");
+            } else if (inGroup) { // 分组读完，从下一个分组开始
+                inGroup = false;
+                query.great(groupColumn, lastGroup).orderBy(orderBy());
+            } else {
+                exhausted = true;
+                return;
+            }
+            List<T> rows = fetch(query.limit(pageSize), clazz);
+            page = rows == null ? Collections.<T>emptyList() : rows;
+            if (page.isEmpty() && !inGroup) {
+                exhausted = true;
+            }
+        }
+
+        private String orderBy() {
+            return groupColumn == null ? orderColumn + " ASC" : groupColumn + " ASC, " + orderColumn + " ASC";
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.wnbt.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Description:内存中的MetricsRegistry，用于测试和本地排查，不依赖任何监控系统
+ * <p>
+ * 1.计时器按纳秒记录，和分布统计一样保存次数、总和、最大值，以及按2的幂分桶的直方图，百分位取所在桶的上界，误差在2倍以内
+ * 2.统计对象的key为 name{k1=v1,k2=v2}
+ * 3.getReport按key排序输出所有统计，计时器以毫秒显示
+ * <p>
+ * 线程安全
+ */
+public class LocalMetricsRegistry implements MetricsRegistry {
+
+    private final ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Histogram> summaries = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LocalCounter> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public Timer timer(String name, String... tags) {
+        return histogram(timers, key(name, tags));
+    }
+
+    @Override
+    public DistributionSummary summary(String name, String... tags) {
+        return histogram(summaries, key(name, tags));
+    }
+
+    @Override
+    public Counter counter(String name, String... tags) {
+        String key = key(name, tags);
+        LocalCounter counter = counters.get(key);
+        if (counter == null) {
+            counter = new LocalCounter();
+            LocalCounter existing = counters.putIfAbsent(key, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * 计时器或分布统计，没有记录过时返回null
+     *
+     * @param name
+     * @param tags
+     * @return
+     */
+    public Histogram getHistogram(String name, String... tags) {
+        String key = key(name, tags);
+        Histogram histogram = timers.get(key);
+        return histogram != null ? histogram : summaries.get(key);
+    }
+
+    /**
+     * 计数器的值，没有记录过时返回0
+     *
+     * @param name
+     * @param tags
+     * @return
+     */
+    public long getCount(String name, String... tags) {
+        LocalCounter counter = counters.get(key(name, tags));
+        return counter == null ? 0 : counter.value.get();
+    }
+
+    public void clear() {
+        timers.clear();
+        summaries.clear();
+        counters.clear();
+    }
+
+    /**
+     * 所有统计，每行一个
+     *
+     * @return
+     */
+    public String getReport() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Histogram> entry : timers.entrySet()) {
+            Histogram histogram = entry.getValue();
+            lines.add(String.format("%s count=%d total=%.1fms mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", entry.getKey(),
+                    histogram.getCount(), histogram.getTotal() / 1e6, histogram.getMean() / 1e6,
+                    histogram.getPercentile(0.5) / 1e6, histogram.getPercentile(0.99) / 1e6, histogram.getMax() / 1e6));
+        }
+        for (Map.Entry<String, Histogram> entry : summaries.entrySet()) {
+            Histogram histogram = entry.getValue();
+            lines.add(String.format("%s count=%d total=%d mean=%.1f p50=%d p99=%d max=%d", entry.getKey(),
+                    histogram.getCount(), histogram.getTotal(), histogram.getMean(),
+                    histogram.getPercentile(0.5), histogram.getPercentile(0.99), histogram.getMax()));
+        }
+        for (Map.Entry<String, LocalCounter> entry : counters.entrySet()) {
+            lines.add(entry.getKey() + " " + entry.getValue().value.get());
+        }
+        Collections.sort(lines);
+        StringBuilder report = new StringBuilder();
+        for (String line : lines) {
+            report.append(line).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String key) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram existing = histograms.putIfAbsent(key, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    private static String key(String name, String... tags) {
+        if (tags == null || tags.length == 0) {
+            return name;
+        }
+        if (tags.length % 2 != 0) {
+            throw new IllegalArgumentException("标签必须成对：" + name);
+        }
+        StringBuilder key = new StringBuilder(name).append('{');
+        for (int i = 0; i < tags.length; i += 2) {
+            if (i > 0) {
+                key.append(',');
+            }
+            key.append(tags[i]).append('=').append(tags[i + 1]);
+        }
+        return key.append('}').toString();
+    }
+
+    /**
+     * 次数、总和、最大值和按2的幂分桶的直方图，计时器的单位为纳秒
+     */
+    public static class Histogram implements Timer, DistributionSummary {
+
+        // 第i个桶记录 [2^(i-1), 2^i) 的值，第0个桶记录<=0的值
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong total = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        @Override
+        public void record(long amount, TimeUnit unit) {
+            record(unit.toNanos(amount));
+        }
+
+        @Override
+        public void record(long amount) {
+            buckets.incrementAndGet(amount <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(amount));
+            count.incrementAndGet();
+            total.addAndGet(amount);
+            long currentMax = max.get();
+            while (amount > currentMax && !max.compareAndSet(currentMax, amount)) {
+                currentMax = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotal() {
+            return total.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long count = this.count.get();
+            return count == 0 ? 0 : (double) total.get() / count;
+        }
+
+        /**
+         * 百分位所在桶的上界，不超过最大值
+         *
+         * @param percentile 0到1之间
+         * @return
+         */
+        public long getPercentile(double percentile) {
+            long count = this.count.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(rank, 1)) {
+                    long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upper, max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    private static class LocalCounter implements Counter {
+
+        private final AtomicLong value = new AtomicLong();
+
+        @Override
+        public void increment(long amount) {
+            value.addAndGet(amount);
+        }
+    }
+}
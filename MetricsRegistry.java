@@ -0,0 +1,91 @@
+package com.wnbt.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description:指标计算、选股任务的埋点接口，按名字加标签取得计时器、分布统计和计数器
+ * <p>
+ * 标签按 key1, value1, key2, value2... 成对传入；同样的名字和标签返回同一个统计对象
+ * <p>
+ * 容器中没有实现时使用NOOP；测试或者本地排查用LocalMetricsRegistry，线上可以实现一个转发到Micrometer等监控系统的版本
+ */
+public interface MetricsRegistry {
+
+    /**
+     * 什么都不记录
+     */
+    MetricsRegistry NOOP = new MetricsRegistry() {
+
+        private final Timer timer = new Timer() {
+            @Override
+            public void record(long amount, TimeUnit unit) {
+            }
+        };
+
+        private final DistributionSummary summary = new DistributionSummary() {
+            @Override
+            public void record(long amount) {
+            }
+        };
+
+        private final Counter counter = new Counter() {
+            @Override
+            public void increment(long amount) {
+            }
+        };
+
+        @Override
+        public Timer timer(String name, String... tags) {
+            return timer;
+        }
+
+        @Override
+        public DistributionSummary summary(String name, String... tags) {
+            return summary;
+        }
+
+        @Override
+        public Counter counter(String name, String... tags) {
+            return counter;
+        }
+    };
+
+    /**
+     * 耗时分布
+     *
+     * @param name
+     * @param tags
+     * @return
+     */
+    Timer timer(String name, String... tags);
+
+    /**
+     * 数量分布，比如每只股票的行数、查询次数
+     *
+     * @param name
+     * @param tags
+     * @return
+     */
+    DistributionSummary summary(String name, String... tags);
+
+    /**
+     * 累计值
+     *
+     * @param name
+     * @param tags
+     * @return
+     */
+    Counter counter(String name, String... tags);
+
+    interface Timer {
+        void record(long amount, TimeUnit unit);
+    }
+
+    interface DistributionSummary {
+        void record(long amount);
+    }
+
+    interface Counter {
+        void increment(long amount);
+    }
+}
@@ -0,0 +1,78 @@
+package com.wnbt.selector.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Description:增量选股的结果，与上一次结果相比的变化
+ * <p>
+ * added：新入选，removed：不再入选（上一次的结果），changed：同一分组入选结果或者数值变了（新的结果）
+ */
+public class SelectorChangeSet<T> {
+
+    private final String date;
+
+    private final boolean full;
+
+    private final List<T> added = new ArrayList<>();
+
+    private final List<T> removed = new ArrayList<>();
+
+    private final List<T> changed = new ArrayList<>();
+
+    /**
+     * @param date 选股数据的交易日
+     * @param full 是否全部重新计算（第一次运行、换了交易日或参考数据）
+     */
+    public SelectorChangeSet(String date, boolean full) {
+        this.date = date;
+        this.full = full;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public List<T> getAdded() {
+        return Collections.unmodifiableList(added);
+    }
+
+    public List<T> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    public List<T> getChanged() {
+        return Collections.unmodifiableList(changed);
+    }
+
+    public void addAdded(T row) {
+        added.add(row);
+    }
+
+    public void addRemoved(T row) {
+        removed.add(row);
+    }
+
+    public void addChanged(T row) {
+        changed.add(row);
+    }
+
+    /**
+     * 没有任何变化时不需要推送
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "date=" + date + ", full=" + full + ", added=" + added.size() + ", removed=" + removed.size() + ", changed=" + changed.size();
+    }
+}
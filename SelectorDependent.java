@@ -0,0 +1,16 @@
+package com.wnbt.selector.service;
+
+import java.util.List;
+
+/**
+ * Description:依赖其他选股器结果的选股器实现这个接口，SelectorScheduler会等依赖的选股器成功后再运行它
+ */
+public interface SelectorDependent {
+
+    /**
+     * 需要先运行的选股器
+     *
+     * @return
+     */
+    List<Class<? extends BaseSelectorService>> getDependencies();
+}
@@ -0,0 +1,74 @@
+package com.wnbt.selector.model;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * Description:一个交易日的ASHAREEODDERIVATIVEINDICATOR估值指标，多个选股器共用的输入
+ * <p>
+ * 同一次选股中所有选股器拿到的是同一批对象，不要修改
+ */
+public class SelectorDerivativeIndicatorModel implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String windCode; // S_INFO_WINDCODE，按键分页读取时用
+
+    private String stockCode; // 6位股票代码
+
+    private BigDecimal pb; // S_VAL_PB_NEW
+
+    private BigDecimal pe; // S_VAL_PE_TTM
+
+    private BigDecimal ps; // S_VAL_PS_TTM
+
+    private BigDecimal mv; // S_VAL_MV，总市值
+
+    public String getWindCode() {
+        return windCode;
+    }
+
+    public void setWindCode(String windCode) {
+        this.windCode = windCode;
+    }
+
+    public String getStockCode() {
+        return stockCode;
+    }
+
+    public void setStockCode(String stockCode) {
+        this.stockCode = stockCode;
+    }
+
+    public BigDecimal getPb() {
+        return pb;
+    }
+
+    public void setPb(BigDecimal pb) {
+        this.pb = pb;
+    }
+
+    public BigDecimal getPe() {
+        return pe;
+    }
+
+    public void setPe(BigDecimal pe) {
+        this.pe = pe;
+    }
+
+    public BigDecimal getPs() {
+        return ps;
+    }
+
+    public void setPs(BigDecimal ps) {
+        this.ps = ps;
+    }
+
+    public BigDecimal getMv() {
+        return mv;
+    }
+
+    public void setMv(BigDecimal mv) {
+        this.mv = mv;
+    }
+}
@@ -0,0 +1,166 @@
+package com.wnbt.selector.service;
+
+import cn.huoqiu.base.db.Query;
+import com.wnbt.db.KeysetQuery;
+import com.wnbt.metrics.MetricsRegistry;
+import com.wnbt.selector.model.SelectorDerivativeIndicatorModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description:一次选股中多个选股器共用的输入，每个key只加载一次
+ * <p>
+ * 1.SelectorScheduler运行选股器时把当次的SelectorInputs放在线程上下文里，选股器通过current()取得
+ * 2.多个选股器同时要同一个key时，只有第一个真正加载，其他的等它加载完成后拿同一个结果
+ * 3.单独调用选股器时没有上下文，derivativeIndicators等方法直接按页查库，边读边交给选股器，不在内存中保留整个结果
+ * 4.每次加载的耗时记为selector.input.load，标签input为key中冒号之前的部分
+ * <p>
+ * 共用的结果不要修改
+ */
+public class SelectorInputs {
+
+    private static final ThreadLocal<SelectorInputs> CURRENT = new ThreadLocal<>();
+
+    private final ConcurrentMap<String, FutureTask<Object>> inputs = new ConcurrentHashMap<>();
+
+    private final MetricsRegistry metricsRegistry;
+
+    public SelectorInputs() {
+        this(MetricsRegistry.NOOP);
+    }
+
+    public SelectorInputs(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * 当前线程所在的一次选股，不在SelectorScheduler中运行时返回null
+     *
+     * @return
+     */
+    public static SelectorInputs current() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(SelectorInputs selectorInputs) {
+        if (selectorInputs == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(selectorInputs);
+        }
+    }
+
+    /**
+     * 取共用的输入，还没有加载时在当前线程加载
+     *
+     * @param key
+     * @param loader
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(final String key, final Callable<T> loader) {
+        FutureTask<Object> task = inputs.get(key);
+        if (task == null) {
+            FutureTask<Object> newTask = new FutureTask<>(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    long start = System.nanoTime();
+                    try {
+                        return loader.call();
+                    } finally {
+                        int index = key.indexOf(':');
+                        metricsRegistry.timer("selector.input.load", "input", index < 0 ? key : key.substring(0, index))
+                                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    }
+                }
+            });
+            task = inputs.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            return (T) task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待共用输入被中断：" + key, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("共用输入加载失败：" + key, e.getCause());
+        }
+    }
+
+    /**
+     * 交易日date的ASHAREEODDERIVATIVEINDICATOR估值指标，按S_INFO_WINDCODE升序
+     * <p>
+     * 在SelectorScheduler中运行时同一天只查一次，结果共用；否则返回按页查询的Iterable，遍历时才查库
+     *
+     * @param source 借用它的getInfoDB
+     * @param date   yyyyMMdd
+     * @return
+     */
+    public static Iterable<SelectorDerivativeIndicatorModel> derivativeIndicators(final BaseSelectorService source, final String date) {
+        SelectorInputs selectorInputs = current();
+        if (selectorInputs == null) {
+            return pagedDerivativeIndicators(source, date);
+        }
+        return selectorInputs.get("ASHAREEODDERIVATIVEINDICATOR:" + date, new Callable<List<SelectorDerivativeIndicatorModel>>() {
+            @Override
+            public List<SelectorDerivativeIndicatorModel> call() {
+                List<SelectorDerivativeIndicatorModel> modelList = new ArrayList<>();
+                for (SelectorDerivativeIndicatorModel model : pagedDerivativeIndicators(source, date)) {
+                    modelList.add(model);
+                }
+                return modelList;
+            }
+        });
+    }
+
+    /**
+     * 交易日referenceData.getLastTradeDay()的估值截面，在SelectorScheduler中运行时同一天、同一版参考数据只建一次
+     *
+     * @param source        借用它的getInfoDB
+     * @param referenceData
+     * @return
+     */
+    public static SelectorValuationMatrix valuationMatrix(final BaseSelectorService source, final SelectorReferenceData referenceData) {
+        SelectorInputs selectorInputs = current();
+        if (selectorInputs == null) {
+            return SelectorValuationMatrix.build(referenceData, derivativeIndicators(source, referenceData.getLastTradeDay()));
+        }
+        return selectorInputs.get("VALUATION:" + referenceData.getLastTradeDay() + ":" + referenceData.getVersion(),
+                new Callable<SelectorValuationMatrix>() {
+                    @Override
+                    public SelectorValuationMatrix call() {
+                        return SelectorValuationMatrix.build(referenceData, derivativeIndicators(source, referenceData.getLastTradeDay()));
+                    }
+                });
+    }
+
+    private static KeysetQuery<SelectorDerivativeIndicatorModel> pagedDerivativeIndicators(final BaseSelectorService source, final String date) {
+        return new KeysetQuery<>(new KeysetQuery.Source() {
+            @Override
+            public Query create() {
+                return source.getInfoDB().from("ASHAREEODDERIVATIVEINDICATOR")
+                        .select("S_INFO_WINDCODE AS windCode, left(S_INFO_WINDCODE,6) AS stockCode, S_VAL_PB_NEW AS pb,"
+                                + " S_VAL_PE_TTM AS pe, S_VAL_PS_TTM AS ps, S_VAL_MV AS mv")
+                        .where("TRADE_DT", date);
+            }
+        }, SelectorDerivativeIndicatorModel.class, "S_INFO_WINDCODE", new KeysetQuery.Key<SelectorDerivativeIndicatorModel>() {
+            @Override
+            public Object of(SelectorDerivativeIndicatorModel row) {
+                return row.getWindCode();
+            }
+        });
+    }
+}
@@ -1,101 +1,438 @@
-package com.wnbt.selector.service.pb;
-
-import cn.huoqiu.base.lang.Lists;
-import com.wnbt.base.utils.DateUtil;
-import com.wnbt.base.utils.PinYinUtil;
-import com.wnbt.entity.AShareIndustriesClass;
-import com.wnbt.selector.model.ComparatorField;
-import com.wnbt.selector.model.pb.SelectorPbTop1OfIndustryModel;
-import com.wnbt.selector.service.BaseSelectorService;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Service;
-
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-/**
- * Created by chenchen on 2017/9/15 19:04
- * Description:市净率行业排名第一选股器service
- */
-@Service
-public class SelectorPbTop1OfIndustryService extends BaseSelectorService {
-    @Override
-    public Logger getLogger() {
-        return LoggerFactory.getLogger(SelectorPbTop1OfIndustryService.class);
-    }
-
-    @Override
-    public boolean isExecute() {
-        Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.DATE, -1);
-        return getaShareCalendarService().isTradeDate(new SimpleDateFormat("yyyyMMdd ").format(calendar.getTime()));
-    }
-
-    /**
-     * 计算：
-     * 1.先将ASHAREINDUSTRIESCLASS和ASHAREINDUSTRIESCODE两个表连接，取出所有股票的股票代码+行业代码+行业名
-     * 2.再取出上一个交易日的所有ASHAREEODDERIVATIVEINDICATOR
-     * 3.对第一步中选出的所有股票list进行循环，封装成一个map，行业代码为key，日行情估值指标的list为value
-     * 4.最后再分别对每一个行业的list进行进行市净率的倒序排序，并取出第一个，即最大值，塞进resultList
-     * <p>
-     * 表：stock_info.ASHAREINDUSTRIESCLASS，更新时间：09:00,18:00
-     * 表：stock_info.ASHAREEODDERIVATIVEINDICATOR，更新时间：16:00,17:00
-     * 表：stock_info.ASHAREINDUSTRIESCODE，更新时间：08:00
-     * <p>
-     *
-     * @return
-     */
-    @Override
-    public List<SelectorPbTop1OfIndustryModel> getSelectorData() {
-        String date = getaShareCalendarService().getLastTradeDay(String.valueOf(DateUtil.now()));
-        // 先将ASHAREINDUSTRIESCLASS和ASHAREINDUSTRIESCODE两个表连接，取出所有股票的股票代码+行业代码+行业名
-        List<AShareIndustriesClass> aShareIndustriesClassList = getInfoDB().from("ASHAREINDUSTRIESCLASS a LEFT JOIN ASHAREINDUSTRIESCODE b ON b.INDUSTRIESCODE=a.WIND_IND_CODE")
-                .select("DISTINCT a.WIND_IND_CODE AS windIndCode, left(a.S_INFO_WINDCODE,6) AS stockCode, b.INDUSTRIESNAME AS industriesName")
-                .where("a.CUR_SIGN", "1").all(AShareIndustriesClass.class);
-
-        // 再取出上一个交易日的所有ASHAREEODDERIVATIVEINDICATOR
-        List<SelectorPbTop1OfIndustryModel> modelList = getInfoDB().from("ASHAREEODDERIVATIVEINDICATOR").select("left(S_INFO_WINDCODE,6) AS stockCode,S_VAL_PB_NEW AS pb")
-                .where("TRADE_DT", date)
-                .isNotNull("S_VAL_PB_NEW").all(SelectorPbTop1OfIndustryModel.class);
-        Map<String, SelectorPbTop1OfIndustryModel> modelMap = new HashMap<>();
-        for (SelectorPbTop1OfIndustryModel model : modelList) {
-            modelMap.put(model.getStockCode(), model);
-        }
-
-        // 下面对所有股票进行循环，封装成一个map，行业代码为key，日行情估值指标的list为value
-        Map<String, List<SelectorPbTop1OfIndustryModel>> industriesModelMap = new HashMap<>();
-        for (AShareIndustriesClass aShareIndustriesClass : aShareIndustriesClassList) {
-            List<SelectorPbTop1OfIndustryModel> industriesModelList;
-            if (industriesModelMap.containsKey(aShareIndustriesClass.getWindIndCode())) {
-                industriesModelList = industriesModelMap.get(aShareIndustriesClass.getWindIndCode());
-            } else {
-                industriesModelList = Lists.newArrayList();
-            }
-
-            if (!modelMap.containsKey(aShareIndustriesClass.getStockCode())) {
-                continue;
-            }
-            SelectorPbTop1OfIndustryModel industriesModel = modelMap.get(aShareIndustriesClass.getStockCode());
-            if (industriesModel == null) {
-                continue;
-            }
-            industriesModel.setIndustriesName(aShareIndustriesClass.getIndustriesName());
-            industriesModel.setIndustriesNamePinYinFirstLetter(PinYinUtil.getPinYinHeadChar(aShareIndustriesClass.getIndustriesName()));
-            industriesModelList.add(industriesModel);
-            industriesModelMap.put(aShareIndustriesClass.getWindIndCode(), industriesModelList);
-        }
-
-        // 最后再分别对每一个行业的list进行进行市净率的倒序排序，并取出第一个，即最大值，塞进resultList
-        List<SelectorPbTop1OfIndustryModel> resultList = Lists.newArrayList();
-        for (Map.Entry<String, List<SelectorPbTop1OfIndustryModel>> entry : industriesModelMap.entrySet()) {
-            listComparator(entry.getValue(), new ComparatorField("pb", true));
-            resultList.add(entry.getValue().get(0));
-        }
-
-        return resultList;
-    }
-}
+package com.wnbt.selector.service.pb;
+
+import cn.huoqiu.base.db.Query;
+import cn.huoqiu.base.lang.Lists;
+import com.wnbt.selector.model.SelectorDerivativeIndicatorModel;
+import com.wnbt.selector.model.pb.SelectorPbTop1OfIndustryModel;
+import com.wnbt.selector.service.BaseSelectorService;
+import com.wnbt.selector.service.SelectorChangeSet;
+import com.wnbt.selector.service.SelectorInputs;
+import com.wnbt.selector.service.SelectorReferenceData;
+import com.wnbt.selector.service.SelectorReferenceDataHolder;
+import com.wnbt.selector.service.SelectorValuationMatrix;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Created by chenchen on 2017/9/15 19:04
+ * Description:市净率行业排名第一选股器service
+ */
+@Service
+public class SelectorPbTop1OfIndustryService extends BaseSelectorService {
+
+    /**
+     * 查询方式：
+     * memory：取出全部行业分类和估值指标，在内存中按行业取第一（默认）
+     * window：用ROW_NUMBER() OVER (PARTITION BY WIND_IND_CODE ...)在库里排名，只取回每个行业第一的行
+     * maxJoin：用GROUP BY求出每个行业的最大市净率再关联回来，用于不支持窗口函数的数据库
+     * <p>
+     * 各种方式（包括getSelectorChanges）在市净率相同时都取股票代码最小的，结果相同
+     */
+    public static final String QUERY_MODE_MEMORY = "memory";
+
+    public static final String QUERY_MODE_WINDOW = "window";
+
+    public static final String QUERY_MODE_MAX_JOIN = "maxJoin";
+
+    @Value("${selector.pbTop1OfIndustry.queryMode:memory}")
+    private String queryMode = QUERY_MODE_MEMORY;
+
+    // window查询报语法错误或不支持时置为true，之后直接用maxJoin；其他错误（连接、超时等）只在当次改用maxJoin
+    private volatile boolean windowUnsupported;
+
+    @Autowired(required = false)
+    private SelectorReferenceDataHolder referenceDataHolder;
+
+    // 上一次getSelectorChanges的快照
+    private volatile IncrementalState incrementalState;
+
+    @Override
+    public Logger getLogger() {
+        return LoggerFactory.getLogger(SelectorPbTop1OfIndustryService.class);
+    }
+
+    @Override
+    public boolean isExecute() {
+        return getReferenceData().isPreviousDayTradeDate();
+    }
+
+    /**
+     * 共用的参考数据快照，没有注入SelectorReferenceDataHolder时（比如单独new出来）每次自己加载
+     *
+     * @return
+     */
+    SelectorReferenceData getReferenceData() {
+        if (referenceDataHolder == null) {
+            return new SelectorReferenceDataHolder().reload(this, true);
+        }
+        return referenceDataHolder.get(this);
+    }
+
+    /**
+     * 计算：
+     * 1.先将ASHAREINDUSTRIESCLASS和ASHAREINDUSTRIESCODE两个表连接，取出所有股票的股票代码+行业代码+行业名
+     * 2.再取出上一个交易日的所有ASHAREEODDERIVATIVEINDICATOR
+     * 3.对第一步中选出的所有股票进行循环，按行业代码分组
+     * 4.每个行业只保留市净率最大的一个，塞进resultList
+     * <p>
+     * 表：stock_info.ASHAREINDUSTRIESCLASS，更新时间：09:00,18:00
+     * 表：stock_info.ASHAREEODDERIVATIVEINDICATOR，更新时间：16:00,17:00
+     * 表：stock_info.ASHAREINDUSTRIESCODE，更新时间：08:00
+     * <p>
+     *
+     * @return
+     */
+    @Override
+    public List<SelectorPbTop1OfIndustryModel> getSelectorData() {
+        SelectorReferenceData referenceData = getReferenceData();
+        String date = referenceData.getLastTradeDay();
+        if (QUERY_MODE_WINDOW.equals(queryMode) && !windowUnsupported) {
+            try {
+                return selectRanked(getInfoDB().from(windowQuery(date)), referenceData);
+            } catch (RuntimeException e) {
+                if (isUnsupported(e)) {
+                    windowUnsupported = true;
+                    getLogger().warn("数据库不支持窗口函数，之后改用maxJoin查询：{}", e.getMessage());
+                } else {
+                    getLogger().warn("窗口函数查询失败，本次改用maxJoin查询：{}", e.getMessage());
+                }
+            }
+        }
+        if (QUERY_MODE_WINDOW.equals(queryMode) || QUERY_MODE_MAX_JOIN.equals(queryMode)) {
+            return selectRanked(getInfoDB().from(maxJoinQuery(date)), referenceData);
+        }
+
+        // 行业分类（第1步）在共用的参考数据快照里，上一个交易日的ASHAREEODDERIVATIVEINDICATOR建成列式的估值截面，
+        // 在SelectorScheduler中运行时与其他估值选股器共用，每个行业取市净率第一
+        SelectorValuationMatrix matrix = SelectorInputs.valuationMatrix(this, referenceData);
+        List<SelectorPbTop1OfIndustryModel> resultList = Lists.newArrayList();
+        for (SelectorValuationMatrix.Ranked ranked : matrix.top(SelectorValuationMatrix.METRIC_PB, 1)) {
+            SelectorPbTop1OfIndustryModel model = new SelectorPbTop1OfIndustryModel();
+            model.setStockCode(ranked.getStockCode());
+            model.setPb(ranked.getValue());
+            model.setIndustriesName(referenceData.getIndustriesName(ranked.getWindIndCode()));
+            model.setIndustriesNamePinYinFirstLetter(referenceData.getIndustriesPinYin(ranked.getWindIndCode()));
+            resultList.add(model);
+        }
+        return resultList;
+    }
+
+    /**
+     * 增量选股：与上一次getSelectorChanges的结果比较，只返回变化的行业
+     * <p>
+     * 1.取出上一个交易日的市净率，与上一次的快照比较，找出市净率变化、新增、消失的股票
+     * 2.只对这些股票所属的行业重新取第一，其他行业沿用上一次的结果
+     * 3.第一次运行、交易日变了或者参考数据重新加载过时，所有行业重新计算，但仍然只返回与上一次相比的变化
+     * <p>
+     * 每个行业的选择规则与getSelectorData相同（市净率相同时取股票代码最小的）
+     *
+     * @return
+     */
+    public synchronized SelectorChangeSet<SelectorPbTop1OfIndustryModel> getSelectorChanges() {
+        SelectorReferenceData referenceData = getReferenceData();
+        String date = referenceData.getLastTradeDay();
+        Map<String, BigDecimal> pbMap = new HashMap<>();
+        for (SelectorDerivativeIndicatorModel indicator : SelectorInputs.derivativeIndicators(this, date)) {
+            if (indicator.getPb() != null) {
+                pbMap.put(indicator.getStockCode(), indicator.getPb());
+            }
+        }
+
+        IncrementalState state = incrementalState;
+        boolean full = state == null || !date.equals(state.date) || state.referenceVersion != referenceData.getVersion();
+        Map<String, SelectorPbTop1OfIndustryModel> oldWinners = state == null
+                ? Collections.<String, SelectorPbTop1OfIndustryModel>emptyMap() : state.winners;
+        Map<String, SelectorPbTop1OfIndustryModel> winners;
+        Set<String> industries;
+        if (full) {
+            winners = new HashMap<>();
+            industries = referenceData.getWindIndCodes();
+        } else {
+            winners = new HashMap<>(oldWinners);
+            industries = new HashSet<>();
+            for (Map.Entry<String, BigDecimal> entry : pbMap.entrySet()) {
+                BigDecimal oldPb = state.pbMap.get(entry.getKey());
+                if (oldPb == null || oldPb.compareTo(entry.getValue()) != 0) {
+                    industries.addAll(referenceData.getIndustryCodes(entry.getKey()));
+                }
+            }
+            for (String stockCode : state.pbMap.keySet()) {
+                if (!pbMap.containsKey(stockCode)) {
+                    industries.addAll(referenceData.getIndustryCodes(stockCode));
+                }
+            }
+        }
+
+        for (String windIndCode : industries) {
+            SelectorPbTop1OfIndustryModel winner = selectIndustry(referenceData, windIndCode, pbMap);
+            if (winner == null) {
+                winners.remove(windIndCode);
+            } else {
+                winners.put(windIndCode, winner);
+            }
+        }
+
+        SelectorChangeSet<SelectorPbTop1OfIndustryModel> changeSet = new SelectorChangeSet<>(date, full);
+        Set<String> windIndCodes = new TreeSet<>(oldWinners.keySet());
+        windIndCodes.addAll(winners.keySet());
+        for (String windIndCode : windIndCodes) {
+            SelectorPbTop1OfIndustryModel oldWinner = oldWinners.get(windIndCode);
+            SelectorPbTop1OfIndustryModel winner = winners.get(windIndCode);
+            if (oldWinner == null) {
+                changeSet.addAdded(winner);
+            } else if (winner == null) {
+                changeSet.addRemoved(oldWinner);
+            } else if (!oldWinner.getStockCode().equals(winner.getStockCode()) || oldWinner.getPb().compareTo(winner.getPb()) != 0
+                    || !equals(oldWinner.getIndustriesName(), winner.getIndustriesName())) {
+                changeSet.addChanged(winner);
+            }
+        }
+        incrementalState = new IncrementalState(date, referenceData.getVersion(), pbMap, winners);
+        getLogger().info("市净率行业排名第一增量选股：重新计算{}个行业，{}", industries.size(), changeSet);
+        return changeSet;
+    }
+
+    /**
+     * 丢弃增量选股的快照，下一次getSelectorChanges全部重新计算并把所有结果作为新增返回
+     */
+    public synchronized void resetSelectorChanges() {
+        incrementalState = null;
+    }
+
+    /**
+     * 一个行业中市净率最大的股票，并列时取股票代码最小的，没有市净率时返回null
+     *
+     * @param referenceData
+     * @param windIndCode
+     * @param pbMap
+     * @return
+     */
+    private static SelectorPbTop1OfIndustryModel selectIndustry(SelectorReferenceData referenceData, String windIndCode, Map<String, BigDecimal> pbMap) {
+        String stockCode = null;
+        BigDecimal pb = null;
+        for (String industryStockCode : referenceData.getStockCodes(windIndCode)) {
+            BigDecimal industryPb = pbMap.get(industryStockCode);
+            if (industryPb == null) {
+                continue;
+            }
+            int compare = pb == null ? 1 : industryPb.compareTo(pb);
+            if (compare > 0 || (compare == 0 && industryStockCode.compareTo(stockCode) < 0)) {
+                stockCode = industryStockCode;
+                pb = industryPb;
+            }
+        }
+        if (stockCode == null) {
+            return null;
+        }
+        SelectorPbTop1OfIndustryModel model = new SelectorPbTop1OfIndustryModel();
+        model.setStockCode(stockCode);
+        model.setPb(pb);
+        model.setIndustriesName(referenceData.getIndustriesName(windIndCode));
+        model.setIndustriesNamePinYinFirstLetter(referenceData.getIndustriesPinYin(windIndCode));
+        return model;
+    }
+
+    /**
+     * 异常链中有SQL语法错误（SQLState以42开头）或不支持的功能（SQLState以0A开头），说明数据库不支持窗口函数
+     *
+     * @param e
+     * @return
+     */
+    static boolean isUnsupported(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof SQLSyntaxErrorException || cause instanceof SQLFeatureNotSupportedException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                if (sqlState != null && (sqlState.startsWith("42") || sqlState.startsWith("0A"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    /**
+     * 每个行业市净率最大的一只股票（市净率相同取股票代码最小的），按行业代码排序
+     * <p>
+     * 外层再套一层子查询，是为了让Query的where作用在排名上
+     *
+     * @param date
+     * @return
+     */
+    static String windowQuery(String date) {
+        return "(SELECT c.WIND_IND_CODE AS windIndCode, c.stockCode, c.industriesName, d.S_VAL_PB_NEW AS pb,"
+                + " ROW_NUMBER() OVER (PARTITION BY c.WIND_IND_CODE ORDER BY d.S_VAL_PB_NEW DESC, c.stockCode ASC) AS rn"
+                + " FROM " + industriesSubQuery()
+                + " JOIN ASHAREEODDERIVATIVEINDICATOR d ON left(d.S_INFO_WINDCODE,6)=c.stockCode"
+                + " WHERE d.TRADE_DT='" + checkDate(date) + "' AND d.S_VAL_PB_NEW IS NOT NULL) t";
+    }
+
+    /**
+     * 不支持窗口函数时：先按行业求最大市净率，再关联回来，市净率并列时会返回多行，由selectRanked去重
+     *
+     * @param date
+     * @return
+     */
+    static String maxJoinQuery(String date) {
+        String rows = "(SELECT c.WIND_IND_CODE AS windIndCode, c.stockCode, c.industriesName, d.S_VAL_PB_NEW AS pb"
+                + " FROM " + industriesSubQuery()
+                + " JOIN ASHAREEODDERIVATIVEINDICATOR d ON left(d.S_INFO_WINDCODE,6)=c.stockCode"
+                + " WHERE d.TRADE_DT='" + checkDate(date) + "' AND d.S_VAL_PB_NEW IS NOT NULL)";
+        return "(SELECT r.windIndCode, r.stockCode, r.industriesName, r.pb, 1 AS rn FROM " + rows + " r"
+                + " JOIN (SELECT windIndCode, MAX(pb) AS maxPb FROM " + rows + " m0 GROUP BY windIndCode) m"
+                + " ON m.windIndCode=r.windIndCode AND m.maxPb=r.pb) t";
+    }
+
+    /**
+     * 与memory模式第1步相同的行业分类
+     *
+     * @return
+     */
+    private static String industriesSubQuery() {
+        return "(SELECT DISTINCT a.WIND_IND_CODE, left(a.S_INFO_WINDCODE,6) AS stockCode, b.INDUSTRIESNAME AS industriesName"
+                + " FROM ASHAREINDUSTRIESCLASS a LEFT JOIN ASHAREINDUSTRIESCODE b ON b.INDUSTRIESCODE=a.WIND_IND_CODE"
+                + " WHERE a.CUR_SIGN='1') c";
+    }
+
+    /**
+     * 日期直接拼进SQL，只允许yyyyMMdd
+     *
+     * @param date
+     * @return
+     */
+    private static String checkDate(String date) {
+        if (date == null || !date.matches("\\d{8}")) {
+            throw new IllegalArgumentException("交易日格式错误：" + date);
+        }
+        return date;
+    }
+
+    /**
+     * 取回排名第一的行，同一行业有多行时（maxJoin并列）取股票代码最小的，即按行业、股票代码排序后每个行业的第一行
+     *
+     * @param query from为windowQuery或maxJoinQuery
+     * @return
+     */
+    private List<SelectorPbTop1OfIndustryModel> selectRanked(Query query, SelectorReferenceData referenceData) {
+        List<RankedRow> rowList = query
+                .select("t.windIndCode AS windIndCode, t.stockCode AS stockCode, t.industriesName AS industriesName, t.pb AS pb")
+                .where("t.rn", 1)
+                .orderBy("t.windIndCode ASC, t.stockCode ASC")
+                .all(RankedRow.class);
+        Map<String, RankedRow> rowMap = new LinkedHashMap<>();
+        for (RankedRow row : rowList) {
+            if (!rowMap.containsKey(row.getWindIndCode())) {
+                rowMap.put(row.getWindIndCode(), row);
+            }
+        }
+        List<SelectorPbTop1OfIndustryModel> resultList = Lists.newArrayList();
+        for (RankedRow row : rowMap.values()) {
+            SelectorPbTop1OfIndustryModel model = new SelectorPbTop1OfIndustryModel();
+            model.setStockCode(row.getStockCode());
+            model.setPb(row.getPb());
+            model.setIndustriesName(row.getIndustriesName());
+            model.setIndustriesNamePinYinFirstLetter(referenceData.getIndustriesPinYin(row.getWindIndCode()));
+            resultList.add(model);
+        }
+        return resultList;
+    }
+
+    public String getQueryMode() {
+        return queryMode;
+    }
+
+    public void setQueryMode(String queryMode) {
+        this.queryMode = queryMode;
+        this.windowUnsupported = false;
+    }
+
+    /**
+     * 增量选股的快照：交易日、参考数据版本、每只股票的市净率、每个行业的第一，创建后不再修改
+     */
+    private static class IncrementalState {
+
+        private final String date;
+
+        private final long referenceVersion;
+
+        private final Map<String, BigDecimal> pbMap;
+
+        private final Map<String, SelectorPbTop1OfIndustryModel> winners;
+
+        private IncrementalState(String date, long referenceVersion, Map<String, BigDecimal> pbMap,
+                                 Map<String, SelectorPbTop1OfIndustryModel> winners) {
+            this.date = date;
+            this.referenceVersion = referenceVersion;
+            this.pbMap = pbMap;
+            this.winners = winners;
+        }
+    }
+
+    /**
+     * window、maxJoin查询返回的行
+     */
+    public static class RankedRow {
+
+        private String windIndCode;
+
+        private String stockCode;
+
+        private String industriesName;
+
+        private BigDecimal pb;
+
+        public String getWindIndCode() {
+            return windIndCode;
+        }
+
+        public void setWindIndCode(String windIndCode) {
+            this.windIndCode = windIndCode;
+        }
+
+        public String getStockCode() {
+            return stockCode;
+        }
+
+        public void setStockCode(String stockCode) {
+            this.stockCode = stockCode;
+        }
+
+        public String getIndustriesName() {
+            return industriesName;
+        }
+
+        public void setIndustriesName(String industriesName) {
+            this.industriesName = industriesName;
+        }
+
+        public BigDecimal getPb() {
+            return pb;
+        }
+
+        public void setPb(BigDecimal pb) {
+            this.pb = pb;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.wnbt.selector.service;
+
+import com.wnbt.base.utils.PinYinUtil;
+import com.wnbt.entity.AShareIndustriesClass;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Description:选股器共用的当天参考数据快照，创建后不再修改
+ * <p>
+ * 1.行业分类：ASHAREINDUSTRIESCLASS连接ASHAREINDUSTRIESCODE的结果（股票代码+行业代码+行业名）
+ * 2.股票->行业、行业->股票的索引，每个行业名的拼音首字母，只算一次
+ * 3.交易日历：上一个交易日，以及昨天是否交易日（isExecute用）
+ * <p>
+ * 由SelectorReferenceDataHolder加载和替换，version每次加载递增；industriesList里的对象不要修改
+ */
+public final class SelectorReferenceData {
+
+    private final long version;
+
+    private final long loadedAt;
+
+    private final String loadDate;
+
+    private final String lastTradeDay;
+
+    private final boolean previousDayTradeDate;
+
+    private final List<AShareIndustriesClass> industriesList;
+
+    private final Map<String, List<String>> stockIndustryCodes;
+
+    private final Map<String, List<String>> industryStockCodes;
+
+    private final Map<String, String> industriesNames;
+
+    private final Map<String, String> industriesPinYins;
+
+    /**
+     * @param version
+     * @param loadedAt             加载时间（毫秒）
+     * @param loadDate             加载当天，yyyyMMdd
+     * @param lastTradeDay         上一个交易日，yyyyMMdd
+     * @param previousDayTradeDate 昨天是否交易日
+     * @param industriesList       行业分类，windIndCode、stockCode、industriesName
+     */
+    public SelectorReferenceData(long version, long loadedAt, String loadDate, String lastTradeDay, boolean previousDayTradeDate,
+                                 List<AShareIndustriesClass> industriesList) {
+        this.version = version;
+        this.loadedAt = loadedAt;
+        this.loadDate = loadDate;
+        this.lastTradeDay = lastTradeDay;
+        this.previousDayTradeDate = previousDayTradeDate;
+        this.industriesList = Collections.unmodifiableList(new ArrayList<>(industriesList));
+
+        Map<String, List<String>> stockIndustryCodes = new HashMap<>();
+        Map<String, List<String>> industryStockCodes = new HashMap<>();
+        Map<String, String> industriesNames = new HashMap<>();
+        Map<String, String> industriesPinYins = new HashMap<>();
+        for (AShareIndustriesClass industriesClass : industriesList) {
+            List<String> industryCodes = stockIndustryCodes.get(industriesClass.getStockCode());
+            if (industryCodes == null) {
+                industryCodes = new ArrayList<>(1);
+                stockIndustryCodes.put(industriesClass.getStockCode(), industryCodes);
+            }
+            industryCodes.add(industriesClass.getWindIndCode());
+            List<String> stockCodes = industryStockCodes.get(industriesClass.getWindIndCode());
+            if (stockCodes == null) {
+                stockCodes = new ArrayList<>();
+                industryStockCodes.put(industriesClass.getWindIndCode(), stockCodes);
+            }
+            stockCodes.add(industriesClass.getStockCode());
+            if (!industriesNames.containsKey(industriesClass.getWindIndCode())) {
+                industriesNames.put(industriesClass.getWindIndCode(), industriesClass.getIndustriesName());
+                industriesPinYins.put(industriesClass.getWindIndCode(), industriesClass.getIndustriesName() == null ? null
+                        : PinYinUtil.getPinYinHeadChar(industriesClass.getIndustriesName()));
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : stockIndustryCodes.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        for (Map.Entry<String, List<String>> entry : industryStockCodes.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        this.stockIndustryCodes = Collections.unmodifiableMap(stockIndustryCodes);
+        this.industryStockCodes = Collections.unmodifiableMap(industryStockCodes);
+        this.industriesNames = Collections.unmodifiableMap(industriesNames);
+        this.industriesPinYins = Collections.unmodifiableMap(industriesPinYins);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    public String getLoadDate() {
+        return loadDate;
+    }
+
+    public String getLastTradeDay() {
+        return lastTradeDay;
+    }
+
+    public boolean isPreviousDayTradeDate() {
+        return previousDayTradeDate;
+    }
+
+    public List<AShareIndustriesClass> getIndustriesList() {
+        return industriesList;
+    }
+
+    /**
+     * 股票所属的行业代码，没有时返回空list
+     *
+     * @param stockCode 6位股票代码
+     * @return
+     */
+    public List<String> getIndustryCodes(String stockCode) {
+        List<String> industryCodes = stockIndustryCodes.get(stockCode);
+        return industryCodes == null ? Collections.<String>emptyList() : industryCodes;
+    }
+
+    /**
+     * 行业下的股票代码，与industriesList中的顺序相同，没有时返回空list
+     *
+     * @param windIndCode
+     * @return
+     */
+    public List<String> getStockCodes(String windIndCode) {
+        List<String> stockCodes = industryStockCodes.get(windIndCode);
+        return stockCodes == null ? Collections.<String>emptyList() : stockCodes;
+    }
+
+    /**
+     * 所有行业代码
+     *
+     * @return
+     */
+    public Set<String> getWindIndCodes() {
+        return industryStockCodes.keySet();
+    }
+
+    public String getIndustriesName(String windIndCode) {
+        return industriesNames.get(windIndCode);
+    }
+
+    public String getIndustriesPinYin(String windIndCode) {
+        return industriesPinYins.get(windIndCode);
+    }
+
+    @Override
+    public String toString() {
+        return "version=" + version + ", loadDate=" + loadDate + ", lastTradeDay=" + lastTradeDay
+                + ", stocks=" + stockIndustryCodes.size() + ", industries=" + industriesNames.size();
+    }
+}
@@ -0,0 +1,116 @@
+package com.wnbt.selector.service;
+
+import com.wnbt.base.utils.DateUtil;
+import com.wnbt.entity.AShareIndustriesClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Description:持有当前的SelectorReferenceData，所有选股器共用
+ * <p>
+ * 1.读取不加锁，直接取AtomicReference里的快照；快照过期时才加锁重新加载，加载完成后整体替换
+ * 2.过期条件：跨天，或者加载时间早于当天某个刷新时间点而现在已经过了这个时间点；
+ * 刷新时间点默认09:10和18:10，在ASHAREINDUSTRIESCLASS 09:00、18:00更新之后
+ * 3.加载需要查库和交易日历，借用调用方选股器的getInfoDB和getaShareCalendarService
+ */
+@Component
+public class SelectorReferenceDataHolder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SelectorReferenceDataHolder.class);
+
+    private final AtomicReference<SelectorReferenceData> current = new AtomicReference<>();
+
+    @Value("${selector.referenceData.refreshTimes:0910,1810}")
+    private String refreshTimes = "0910,1810";
+
+    /**
+     * 当前快照，还没有加载过时返回null
+     *
+     * @return
+     */
+    public SelectorReferenceData get() {
+        return current.get();
+    }
+
+    /**
+     * 当前快照，没有或者已经过期时用source重新加载
+     *
+     * @param source
+     * @return
+     */
+    public SelectorReferenceData get(BaseSelectorService source) {
+        SelectorReferenceData data = current.get();
+        if (data == null || isStale(data, System.currentTimeMillis())) {
+            data = reload(source, false);
+        }
+        return data;
+    }
+
+    /**
+     * 重新加载并替换快照
+     *
+     * @param source
+     * @param force  为false时如果其他线程已经加载了新的快照则直接返回
+     * @return
+     */
+    public synchronized SelectorReferenceData reload(BaseSelectorService source, boolean force) {
+        SelectorReferenceData data = current.get();
+        long now = System.currentTimeMillis();
+        if (!force && data != null && !isStale(data, now)) {
+            return data;
+        }
+
+        List<AShareIndustriesClass> industriesList = source.getInfoDB().from("ASHAREINDUSTRIESCLASS a LEFT JOIN ASHAREINDUSTRIESCODE b ON b.INDUSTRIESCODE=a.WIND_IND_CODE")
+                .select("DISTINCT a.WIND_IND_CODE AS windIndCode, left(a.S_INFO_WINDCODE,6) AS stockCode, b.INDUSTRIESNAME AS industriesName")
+                .where("a.CUR_SIGN", "1").all(AShareIndustriesClass.class);
+        String lastTradeDay = source.getaShareCalendarService().getLastTradeDay(String.valueOf(DateUtil.now()));
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.add(Calendar.DATE, -1);
+        boolean previousDayTradeDate = source.getaShareCalendarService().isTradeDate(new SimpleDateFormat("yyyyMMdd ").format(calendar.getTime()));
+
+        SelectorReferenceData newData = new SelectorReferenceData(data == null ? 1 : data.getVersion() + 1, now,
+                new SimpleDateFormat("yyyyMMdd").format(now), lastTradeDay, previousDayTradeDate, industriesList);
+        current.set(newData);
+        logger.info("选股参考数据已加载：{}，耗时{}ms", newData, System.currentTimeMillis() - now);
+        return newData;
+    }
+
+    /**
+     * 跨天，或者加载之后经过了某个刷新时间点
+     *
+     * @param data
+     * @param now
+     * @return
+     */
+    boolean isStale(SelectorReferenceData data, long now) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+        if (!dateFormat.format(now).equals(data.getLoadDate())) {
+            return true;
+        }
+        String loadedTime = new SimpleDateFormat("HHmm").format(data.getLoadedAt());
+        String nowTime = new SimpleDateFormat("HHmm").format(now);
+        for (String refreshTime : refreshTimes.split(",")) {
+            refreshTime = refreshTime.trim();
+            if (loadedTime.compareTo(refreshTime) < 0 && nowTime.compareTo(refreshTime) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getRefreshTimes() {
+        return refreshTimes;
+    }
+
+    public void setRefreshTimes(String refreshTimes) {
+        this.refreshTimes = refreshTimes;
+    }
+}
@@ -0,0 +1,17 @@
+package com.wnbt.selector.service;
+
+import java.util.List;
+
+/**
+ * Description:保存或推送选股器结果，SelectorScheduler在每个选股器getSelectorData成功后调用容器中所有的实现
+ * <p>
+ * 在选股器的线程中同步调用，抛出异常时这个选股器记为失败，依赖它的选股器跳过
+ */
+public interface SelectorResultHandler {
+
+    /**
+     * @param selector
+     * @param data     getSelectorData的结果
+     */
+    void handle(BaseSelectorService selector, List<?> data);
+}
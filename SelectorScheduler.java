@@ -0,0 +1,429 @@
+package com.wnbt.selector.service;
+
+import com.wnbt.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Description:把所有BaseSelectorService作为一个DAG并行运行
+ * <p>
+ * 1.选股器从Spring容器中发现，实现了SelectorDependent的选股器在它依赖的选股器成功后才运行，依赖失败时跳过
+ * 2.运行前先加载一次SelectorReferenceData快照，上一个交易日、行业分类、isExecute用的交易日历所有选股器共用
+ * 3.同一次运行的选股器共用一个SelectorInputs，比如上一个交易日的ASHAREEODDERIVATIVEINDICATOR只查一次
+ * 4.每个选股器记录isExecute、getSelectorData的耗时和结果，整体耗时接近最慢的一条依赖链，而不是所有选股器之和
+ * 5.埋点：selector.isExecute、selector.select的耗时，selector.rows结果条数，selector.errors失败次数（标签selector为类名），
+ * selector.run整体耗时，记到容器中的MetricsRegistry
+ * 6.每个选股器成功后把结果交给容器中所有的SelectorResultHandler保存或推送，没有SelectorResultHandler时只计算
+ * <p>
+ * 默认不自动运行，由调用方调用run；配置selector.scheduler.runTimes（比如0830,1830，HHmm，逗号分隔）后，
+ * 每分钟检查一次，每天经过其中一个时间点时运行一次所有选股器
+ */
+@Service
+public class SelectorScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SelectorScheduler.class);
+
+    @Autowired(required = false)
+    private List<BaseSelectorService> selectors = Collections.emptyList();
+
+    @Autowired(required = false)
+    private SelectorReferenceDataHolder referenceDataHolder;
+
+    @Autowired(required = false)
+    private MetricsRegistry metricsRegistry = MetricsRegistry.NOOP;
+
+    @Autowired(required = false)
+    private List<SelectorResultHandler> resultHandlers = Collections.emptyList();
+
+    @Value("${selector.scheduler.threads:4}")
+    private int threads = 4;
+
+    // 自动运行的时间点，为空时不自动运行
+    @Value("${selector.scheduler.runTimes:}")
+    private String runTimes = "";
+
+    private ExecutorService executor;
+
+    private ScheduledExecutorService timer;
+
+    // 上一次检查时间点的时刻
+    private long lastCheckedAt;
+
+    /**
+     * 配置了runTimes时启动定时检查
+     */
+    @PostConstruct
+    public synchronized void start() {
+        if (timer != null || runTimes == null || runTimes.trim().isEmpty()) {
+            return;
+        }
+        if (resultHandlers.isEmpty()) {
+            logger.warn("没有SelectorResultHandler，定时运行的选股器结果不会保存或推送");
+        }
+        lastCheckedAt = System.currentTimeMillis();
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "selector-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long now = System.currentTimeMillis();
+                    boolean due = isDue(lastCheckedAt, now);
+                    lastCheckedAt = now;
+                    if (due) {
+                        SelectorScheduler.this.run();
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("定时运行选股器失败", e);
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+        logger.info("选股器定时运行已启动：{}", runTimes);
+    }
+
+    /**
+     * 从lastCheckedAt到now之间是否经过了某个运行时间点，跨天时按now当天的时间点算
+     *
+     * @param lastCheckedAt
+     * @param now
+     * @return
+     */
+    boolean isDue(long lastCheckedAt, long now) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+        String lastTime = dateFormat.format(lastCheckedAt).equals(dateFormat.format(now))
+                ? new SimpleDateFormat("HHmm").format(lastCheckedAt) : "";
+        String nowTime = new SimpleDateFormat("HHmm").format(now);
+        for (String runTime : runTimes.split(",")) {
+            runTime = runTime.trim();
+            if (!runTime.isEmpty() && lastTime.compareTo(runTime) < 0 && nowTime.compareTo(runTime) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 运行所有选股器
+     *
+     * @return 选股器类名 -> 结果，按拓扑顺序
+     */
+    public Map<String, SelectorRunResult> run() {
+        return run(selectors);
+    }
+
+    /**
+     * 运行指定的选股器，依赖的选股器不在列表中时视为已满足
+     *
+     * @param selectorList
+     * @return 选股器类名 -> 结果，按拓扑顺序
+     */
+    public Map<String, SelectorRunResult> run(List<BaseSelectorService> selectorList) {
+        long start = System.currentTimeMillis();
+        List<BaseSelectorService> sorted = sort(selectorList);
+        if (sorted.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        if (referenceDataHolder != null) {
+            referenceDataHolder.get(sorted.get(0));
+        }
+
+        final SelectorInputs selectorInputs = new SelectorInputs(metricsRegistry);
+        ExecutorService executor = getExecutor();
+        Map<Class<?>, CompletableFuture<SelectorRunResult>> futures = new HashMap<>();
+        Map<String, CompletableFuture<SelectorRunResult>> resultFutures = new LinkedHashMap<>();
+        for (final BaseSelectorService selector : sorted) {
+            final List<CompletableFuture<SelectorRunResult>> dependencies = new ArrayList<>();
+            for (Class<?> dependency : getDependencies(selector)) {
+                CompletableFuture<SelectorRunResult> future = futures.get(dependency);
+                if (future != null) {
+                    dependencies.add(future);
+                }
+            }
+            CompletableFuture<SelectorRunResult> future = CompletableFuture
+                    .allOf(dependencies.toArray(new CompletableFuture[dependencies.size()]))
+                    .thenApplyAsync(new Function<Void, SelectorRunResult>() {
+                        @Override
+                        public SelectorRunResult apply(Void v) {
+                            for (CompletableFuture<SelectorRunResult> dependency : dependencies) {
+                                SelectorRunResult dependencyResult = dependency.join();
+                                if (dependencyResult.getError() != null) {
+                                    SelectorRunResult result = new SelectorRunResult(selectorName(selector));
+                                    result.setError(new IllegalStateException("依赖的选股器失败：" + dependencyResult.getName()));
+                                    return result;
+                                }
+                            }
+                            return runSelector(selector, selectorInputs);
+                        }
+                    }, executor);
+            futures.put(selector.getClass(), future);
+            resultFutures.put(selectorName(selector), future);
+        }
+
+        Map<String, SelectorRunResult> results = new LinkedHashMap<>();
+        long sum = 0;
+        for (Map.Entry<String, CompletableFuture<SelectorRunResult>> entry : resultFutures.entrySet()) {
+            SelectorRunResult result;
+            try {
+                result = entry.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待选股器结果被中断", e);
+            } catch (ExecutionException e) {
+                result = new SelectorRunResult(entry.getKey());
+                result.setError(e.getCause());
+            }
+            results.put(entry.getKey(), result);
+            sum += result.getExecuteMillis() + result.getSelectMillis();
+        }
+        metricsRegistry.timer("selector.run").record(System.currentTimeMillis() - start, TimeUnit.MILLISECONDS);
+        logger.info("选股器运行完成：{}个，耗时{}ms，各选股器耗时之和{}ms", results.size(), System.currentTimeMillis() - start, sum);
+        return results;
+    }
+
+    /**
+     * 在当前线程运行一个选股器，异常记在结果里不抛出
+     *
+     * @param selector
+     * @param selectorInputs
+     * @return
+     */
+    private SelectorRunResult runSelector(BaseSelectorService selector, SelectorInputs selectorInputs) {
+        SelectorRunResult result = new SelectorRunResult(selectorName(selector));
+        SelectorInputs.setCurrent(selectorInputs);
+        try {
+            long start = System.currentTimeMillis();
+            boolean execute = selector.isExecute();
+            long executed = System.currentTimeMillis();
+            result.setExecuteMillis(executed - start);
+            result.setExecuted(execute);
+            if (execute) {
+                result.setData(selector.getSelectorData());
+                result.setSelectMillis(System.currentTimeMillis() - executed);
+                for (SelectorResultHandler resultHandler : resultHandlers) {
+                    resultHandler.handle(selector, result.getData());
+                }
+            }
+            metricsRegistry.timer("selector.isExecute", "selector", result.getName()).record(result.getExecuteMillis(), TimeUnit.MILLISECONDS);
+            if (execute) {
+                metricsRegistry.timer("selector.select", "selector", result.getName()).record(result.getSelectMillis(), TimeUnit.MILLISECONDS);
+                metricsRegistry.summary("selector.rows", "selector", result.getName()).record(result.getData() == null ? 0 : result.getData().size());
+            }
+            selector.getLogger().info("选股器{}：isExecute={}，耗时{}ms，getSelectorData耗时{}ms，{}条",
+                    result.getName(), execute, result.getExecuteMillis(), result.getSelectMillis(),
+                    result.getData() == null ? 0 : result.getData().size());
+        } catch (RuntimeException e) {
+            result.setError(e);
+            metricsRegistry.counter("selector.errors", "selector", result.getName()).increment(1);
+            selector.getLogger().error("选股器" + result.getName() + "运行失败", e);
+        } finally {
+            SelectorInputs.setCurrent(null);
+        }
+        return result;
+    }
+
+    /**
+     * 按依赖拓扑排序，同一层保持原顺序；有循环依赖时抛出IllegalStateException
+     *
+     * @param selectorList
+     * @return
+     */
+    List<BaseSelectorService> sort(List<BaseSelectorService> selectorList) {
+        Map<Class<?>, BaseSelectorService> selectorMap = new LinkedHashMap<>();
+        for (BaseSelectorService selector : selectorList) {
+            selectorMap.put(selector.getClass(), selector);
+        }
+        List<BaseSelectorService> sorted = new ArrayList<>(selectorMap.size());
+        Map<Class<?>, Integer> states = new HashMap<>(); // 1：访问中，2：已排序
+        for (BaseSelectorService selector : selectorMap.values()) {
+            visit(selector, selectorMap, states, sorted);
+        }
+        return sorted;
+    }
+
+    private void visit(BaseSelectorService selector, Map<Class<?>, BaseSelectorService> selectorMap,
+                       Map<Class<?>, Integer> states, List<BaseSelectorService> sorted) {
+        Integer state = states.get(selector.getClass());
+        if (state != null) {
+            if (state == 1) {
+                throw new IllegalStateException("选股器存在循环依赖：" + selectorName(selector));
+            }
+            return;
+        }
+        states.put(selector.getClass(), 1);
+        for (Class<?> dependency : getDependencies(selector)) {
+            BaseSelectorService dependencySelector = selectorMap.get(dependency);
+            if (dependencySelector != null) {
+                visit(dependencySelector, selectorMap, states, sorted);
+            }
+        }
+        states.put(selector.getClass(), 2);
+        sorted.add(selector);
+    }
+
+    private static List<Class<? extends BaseSelectorService>> getDependencies(BaseSelectorService selector) {
+        if (selector instanceof SelectorDependent) {
+            List<Class<? extends BaseSelectorService>> dependencies = ((SelectorDependent) selector).getDependencies();
+            if (dependencies != null) {
+                return dependencies;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private static String selectorName(BaseSelectorService selector) {
+        return selector.getClass().getSimpleName();
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "selector-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    public List<BaseSelectorService> getSelectors() {
+        return selectors;
+    }
+
+    public void setSelectors(List<BaseSelectorService> selectors) {
+        this.selectors = selectors;
+    }
+
+    public List<SelectorResultHandler> getResultHandlers() {
+        return resultHandlers;
+    }
+
+    public void setResultHandlers(List<SelectorResultHandler> resultHandlers) {
+        this.resultHandlers = resultHandlers;
+    }
+
+    public String getRunTimes() {
+        return runTimes;
+    }
+
+    public void setRunTimes(String runTimes) {
+        this.runTimes = runTimes;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * 一个选股器的运行结果
+     */
+    public static class SelectorRunResult {
+
+        private final String name;
+
+        private boolean executed;
+
+        private List<?> data;
+
+        private long executeMillis;
+
+        private long selectMillis;
+
+        private Throwable error;
+
+        public SelectorRunResult(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isExecuted() {
+            return executed;
+        }
+
+        public void setExecuted(boolean executed) {
+            this.executed = executed;
+        }
+
+        public List<?> getData() {
+            return data;
+        }
+
+        public void setData(List<?> data) {
+            this.data = data;
+        }
+
+        public long getExecuteMillis() {
+            return executeMillis;
+        }
+
+        public void setExecuteMillis(long executeMillis) {
+            this.executeMillis = executeMillis;
+        }
+
+        public long getSelectMillis() {
+            return selectMillis;
+        }
+
+        public void setSelectMillis(long selectMillis) {
+            this.selectMillis = selectMillis;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public void setError(Throwable error) {
+            this.error = error;
+        }
+    }
+}
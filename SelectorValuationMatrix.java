@@ -0,0 +1,543 @@
+package com.wnbt.selector.service;
+
+import com.wnbt.entity.AShareIndustriesClass;
+import com.wnbt.selector.model.SelectorDerivativeIndicatorModel;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Description:一个交易日全市场估值指标的列式截面，按行业一次算好每个指标的排名、百分位，供“行业内按估值排名”的一类选股器共用
+ * <p>
+ * 1.股票、行业都编成下标；行业成员按行业分段存成int数组（与行业分类中的顺序相同），每个指标一列，按股票下标存值
+ * 2.创建时每个指标在每个行业内从大到小排一次序，之后取前N、后N、排名、百分位都不需要再排序
+ * 3.排名从1开始，值最大的为1；值相同时股票代码小的排名靠前，取后N名时也是股票代码小的在前，与库里按“值 DESC, 股票代码 ASC”排名一致；
+ * 没有值的股票不参与排名
+ * 4.百分位为同行业中值严格小于它的股票数 / (有值的股票数 - 1)，只有一只股票时为1
+ * 5.增加一个估值选股器只需要增加一列：在SelectorDerivativeIndicatorModel中加字段和查询列，再加一个Column
+ * <p>
+ * 创建后不再修改，线程安全
+ */
+public final class SelectorValuationMatrix {
+
+    // 默认的列名
+    public static final String METRIC_PB = "pb";
+
+    public static final String METRIC_PE = "pe";
+
+    public static final String METRIC_PS = "ps";
+
+    public static final String METRIC_MV = "mv";
+
+    public static final Column PB = new Column() {
+        @Override
+        public BigDecimal of(SelectorDerivativeIndicatorModel row) {
+            return row.getPb();
+        }
+    };
+
+    public static final Column PE = new Column() {
+        @Override
+        public BigDecimal of(SelectorDerivativeIndicatorModel row) {
+            return row.getPe();
+        }
+    };
+
+    public static final Column PS = new Column() {
+        @Override
+        public BigDecimal of(SelectorDerivativeIndicatorModel row) {
+            return row.getPs();
+        }
+    };
+
+    public static final Column MV = new Column() {
+        @Override
+        public BigDecimal of(SelectorDerivativeIndicatorModel row) {
+            return row.getMv();
+        }
+    };
+
+    private static final Map<String, Column> DEFAULT_COLUMNS;
+
+    static {
+        Map<String, Column> columns = new LinkedHashMap<>();
+        columns.put(METRIC_PB, PB);
+        columns.put(METRIC_PE, PE);
+        columns.put(METRIC_PS, PS);
+        columns.put(METRIC_MV, MV);
+        DEFAULT_COLUMNS = Collections.unmodifiableMap(columns);
+    }
+
+    private final String date;
+
+    private final String[] stockCodes;
+
+    private final Map<String, Integer> stockIndexes;
+
+    private final String[] windIndCodes;
+
+    private final Map<String, Integer> industryIndexes;
+
+    // 第i个行业的成员为memberStocks[industryStart[i]..industryStart[i+1])
+    private final int[] industryStart;
+
+    private final int[] memberStocks;
+
+    private final Map<String, Metric> metrics;
+
+    private SelectorValuationMatrix(String date, String[] stockCodes, Map<String, Integer> stockIndexes, String[] windIndCodes,
+                                    Map<String, Integer> industryIndexes, int[] industryStart, int[] memberStocks, Map<String, Metric> metrics) {
+        this.date = date;
+        this.stockCodes = stockCodes;
+        this.stockIndexes = stockIndexes;
+        this.windIndCodes = windIndCodes;
+        this.industryIndexes = industryIndexes;
+        this.industryStart = industryStart;
+        this.memberStocks = memberStocks;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 用默认的pb、pe、ps、mv四列创建
+     *
+     * @param referenceData 行业分类
+     * @param indicators    一个交易日的估值指标
+     * @return
+     */
+    public static SelectorValuationMatrix build(SelectorReferenceData referenceData, Iterable<SelectorDerivativeIndicatorModel> indicators) {
+        return build(referenceData, indicators, DEFAULT_COLUMNS);
+    }
+
+    /**
+     * 遍历一次估值指标，取出各列的值，再按行业排序
+     *
+     * @param referenceData 行业分类
+     * @param indicators    一个交易日的估值指标，不在行业分类中的股票忽略
+     * @param columns       列名 -> 取值方式
+     * @return
+     */
+    public static SelectorValuationMatrix build(SelectorReferenceData referenceData, Iterable<SelectorDerivativeIndicatorModel> indicators,
+                                                Map<String, Column> columns) {
+        // 股票、行业按在行业分类中第一次出现的顺序编号
+        List<AShareIndustriesClass> industriesList = referenceData.getIndustriesList();
+        Map<String, Integer> stockIndexes = new HashMap<>();
+        Map<String, Integer> industryIndexes = new HashMap<>();
+        List<String> stockCodes = new ArrayList<>();
+        List<String> windIndCodes = new ArrayList<>();
+        List<int[]> industryMembers = new ArrayList<>();
+        int[] industrySizes = new int[16];
+        for (AShareIndustriesClass industriesClass : industriesList) {
+            Integer stock = stockIndexes.get(industriesClass.getStockCode());
+            if (stock == null) {
+                stock = stockCodes.size();
+                stockIndexes.put(industriesClass.getStockCode(), stock);
+                stockCodes.add(industriesClass.getStockCode());
+            }
+            Integer industry = industryIndexes.get(industriesClass.getWindIndCode());
+            if (industry == null) {
+                industry = windIndCodes.size();
+                industryIndexes.put(industriesClass.getWindIndCode(), industry);
+                windIndCodes.add(industriesClass.getWindIndCode());
+                if (industry == industrySizes.length) {
+                    industrySizes = Arrays.copyOf(industrySizes, industry * 2);
+                }
+            }
+            industrySizes[industry]++;
+            industryMembers.add(new int[]{industry, stock});
+        }
+        int industryCount = windIndCodes.size();
+        int[] industryStart = new int[industryCount + 1];
+        for (int i = 0; i < industryCount; i++) {
+            industryStart[i + 1] = industryStart[i] + industrySizes[i];
+        }
+        int[] memberStocks = new int[industryMembers.size()];
+        int[] memberPositions = new int[industryMembers.size()]; // 在行业分类中的位置
+        int[] next = Arrays.copyOf(industryStart, industryCount);
+        for (int position = 0; position < industryMembers.size(); position++) {
+            int[] member = industryMembers.get(position);
+            memberPositions[next[member[0]]] = position;
+            memberStocks[next[member[0]]++] = member[1];
+        }
+
+        // 每列按股票下标存值
+        int stockCount = stockCodes.size();
+        List<String> names = new ArrayList<>(columns.keySet());
+        BigDecimal[][] values = new BigDecimal[names.size()][stockCount];
+        double[][] doubles = new double[names.size()][stockCount];
+        for (double[] column : doubles) {
+            Arrays.fill(column, Double.NaN);
+        }
+        Column[] extractors = columns.values().toArray(new Column[0]);
+        for (SelectorDerivativeIndicatorModel indicator : indicators) {
+            Integer stock = stockIndexes.get(indicator.getStockCode());
+            if (stock == null) {
+                continue;
+            }
+            for (int c = 0; c < extractors.length; c++) {
+                BigDecimal value = extractors[c].of(indicator);
+                if (value != null) {
+                    values[c][stock] = value;
+                    doubles[c][stock] = value.doubleValue();
+                }
+            }
+        }
+
+        Map<String, Metric> metrics = new LinkedHashMap<>();
+        for (int c = 0; c < names.size(); c++) {
+            metrics.put(names.get(c), new Metric(values[c], doubles[c], stockCodes.toArray(new String[0]), industryStart, memberStocks, memberPositions));
+        }
+        return new SelectorValuationMatrix(referenceData.getLastTradeDay(), stockCodes.toArray(new String[0]), stockIndexes,
+                windIndCodes.toArray(new String[0]), industryIndexes, industryStart, memberStocks, metrics);
+    }
+
+    /**
+     * 每个行业值最大的前n只股票
+     *
+     * @param metric 列名
+     * @param n
+     * @return 行业按第一只有值的股票在行业分类中出现的顺序，行业内按排名从前到后；没有值的行业不返回
+     */
+    public List<Ranked> top(String metric, int n) {
+        return select(metric, n, true);
+    }
+
+    /**
+     * 每个行业值最小的n只股票
+     *
+     * @param metric 列名
+     * @param n
+     * @return 行业顺序同top，行业内值最小的在前
+     */
+    public List<Ranked> bottom(String metric, int n) {
+        return select(metric, n, false);
+    }
+
+    /**
+     * 一只股票在行业内的排名，值最大的为1
+     *
+     * @param metric
+     * @param windIndCode
+     * @param stockCode
+     * @return 没有值或者不在这个行业时为0
+     */
+    public int getRank(String metric, String windIndCode, String stockCode) {
+        int member = member(windIndCode, stockCode);
+        return member < 0 ? 0 : metric(metric).rank[member];
+    }
+
+    /**
+     * 一只股票在行业内的百分位，0到1，越大估值越高
+     *
+     * @param metric
+     * @param windIndCode
+     * @param stockCode
+     * @return 没有值或者不在这个行业时为NaN
+     */
+    public double getPercentile(String metric, String windIndCode, String stockCode) {
+        int member = member(windIndCode, stockCode);
+        return member < 0 ? Double.NaN : metric(metric).percentile[member];
+    }
+
+    /**
+     * 一只股票的值
+     *
+     * @param metric
+     * @param stockCode
+     * @return 没有时为null
+     */
+    public BigDecimal getValue(String metric, String stockCode) {
+        Integer stock = stockIndexes.get(stockCode);
+        return stock == null ? null : metric(metric).values[stock];
+    }
+
+    /**
+     * 行业中有值的股票数
+     *
+     * @param metric
+     * @param windIndCode
+     * @return
+     */
+    public int getCount(String metric, String windIndCode) {
+        Integer industry = industryIndexes.get(windIndCode);
+        return industry == null ? 0 : metric(metric).validCount[industry];
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public int getStockCount() {
+        return stockCodes.length;
+    }
+
+    public int getIndustryCount() {
+        return windIndCodes.length;
+    }
+
+    public List<String> getMetrics() {
+        return new ArrayList<>(metrics.keySet());
+    }
+
+    private List<Ranked> select(String metric, int n, boolean top) {
+        if (n < 1) {
+            throw new IllegalArgumentException("N至少为1：" + n);
+        }
+        Metric column = metric(metric);
+        List<Ranked> resultList = new ArrayList<>();
+        for (int industry : column.industryOrder) {
+            int start = industryStart[industry];
+            int count = column.validCount[industry];
+            for (int i = 0; i < Math.min(n, count); i++) {
+                int member = top ? column.sorted[start + i] : column.ascending[start + i];
+                int stock = memberStocks[member];
+                resultList.add(new Ranked(windIndCodes[industry], stockCodes[stock], column.values[stock], column.rank[member], count,
+                        column.percentile[member]));
+            }
+        }
+        return resultList;
+    }
+
+    private int member(String windIndCode, String stockCode) {
+        Integer industry = industryIndexes.get(windIndCode);
+        Integer stock = stockIndexes.get(stockCode);
+        if (industry == null || stock == null) {
+            return -1;
+        }
+        for (int member = industryStart[industry]; member < industryStart[industry + 1]; member++) {
+            if (memberStocks[member] == stock) {
+                return member;
+            }
+        }
+        return -1;
+    }
+
+    private Metric metric(String metric) {
+        Metric column = metrics.get(metric);
+        if (column == null) {
+            throw new IllegalArgumentException("没有这一列：" + metric + "，可用的列：" + metrics.keySet());
+        }
+        return column;
+    }
+
+    /**
+     * 从估值指标中取出一列的值
+     */
+    public interface Column {
+        BigDecimal of(SelectorDerivativeIndicatorModel row);
+    }
+
+    /**
+     * 一列及其按行业排好的结果，下标为成员（行业分段中的位置）
+     */
+    private static final class Metric {
+
+        private final BigDecimal[] values;
+
+        private final double[] doubles;
+
+        // 按股票下标，值相同时排序用
+        private final String[] stockCodes;
+
+        // 每个行业分段内，有值的成员从大到小排在前validCount个
+        private final int[] sorted;
+
+        // 同上，从小到大，值相同时仍按股票代码从小到大
+        private final int[] ascending;
+
+        private final int[] validCount;
+
+        private final int[] rank;
+
+        private final double[] percentile;
+
+        // 有值的行业，按第一只有值的股票在行业分类中出现的顺序
+        private final int[] industryOrder;
+
+        Metric(BigDecimal[] values, double[] doubles, String[] stockCodes, int[] industryStart, int[] memberStocks, int[] memberPositions) {
+            this.values = values;
+            this.doubles = doubles;
+            this.stockCodes = stockCodes;
+            int industryCount = industryStart.length - 1;
+            sorted = new int[memberStocks.length];
+            ascending = new int[memberStocks.length];
+            validCount = new int[industryCount];
+            rank = new int[memberStocks.length];
+            percentile = new double[memberStocks.length];
+            Arrays.fill(percentile, Double.NaN);
+            int[] tmp = new int[memberStocks.length];
+            int[] firstValid = new int[industryCount];
+            int withValues = 0;
+            for (int industry = 0; industry < industryCount; industry++) {
+                int start = industryStart[industry];
+                int count = 0;
+                firstValid[industry] = -1;
+                for (int member = start; member < industryStart[industry + 1]; member++) {
+                    if (values[memberStocks[member]] != null) {
+                        sorted[start + count++] = member;
+                        if (firstValid[industry] < 0) {
+                            firstValid[industry] = memberPositions[member];
+                        }
+                    }
+                }
+                validCount[industry] = count;
+                if (count == 0) {
+                    continue;
+                }
+                withValues++;
+                sortDesc(sorted, start, start + count, tmp, memberStocks);
+                for (int i = 0; i < count; i++) {
+                    rank[sorted[start + i]] = i + 1;
+                }
+                // 从小到大，并列的一组百分位相同
+                int smaller = 0;
+                for (int i = count - 1; i >= 0; ) {
+                    int j = i;
+                    while (j > 0 && compare(sorted[start + j - 1], sorted[start + i], memberStocks) == 0) {
+                        j--;
+                    }
+                    double value = count == 1 ? 1 : (double) smaller / (count - 1);
+                    for (int k = j; k <= i; k++) {
+                        percentile[sorted[start + k]] = value;
+                        ascending[start + smaller + k - j] = sorted[start + k];
+                    }
+                    smaller += i - j + 1;
+                    i = j - 1;
+                }
+            }
+
+            // 行业按第一只有值的成员在行业分类中的位置排序
+            industryOrder = new int[withValues];
+            Integer[] order = new Integer[withValues];
+            int n = 0;
+            for (int industry = 0; industry < industryCount; industry++) {
+                if (firstValid[industry] >= 0) {
+                    order[n++] = industry;
+                }
+            }
+            final int[] firstValidPosition = firstValid;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return Integer.compare(firstValidPosition[o1], firstValidPosition[o2]);
+                }
+            });
+            for (int i = 0; i < withValues; i++) {
+                industryOrder[i] = order[i];
+            }
+        }
+
+        /**
+         * 从大到小比较两个成员的值，相同时返回0
+         */
+        private int compare(int member1, int member2, int[] memberStocks) {
+            int stock1 = memberStocks[member1];
+            int stock2 = memberStocks[member2];
+            int compare = Double.compare(doubles[stock2], doubles[stock1]);
+            if (compare == 0 && values[stock1].compareTo(values[stock2]) != 0) { // double相同但BigDecimal不同时以BigDecimal为准
+                compare = values[stock2].compareTo(values[stock1]);
+            }
+            return compare;
+        }
+
+        /**
+         * 排序用的比较：从大到小，值相同时股票代码小的在前
+         */
+        private int order(int member1, int member2, int[] memberStocks) {
+            int compare = compare(member1, member2, memberStocks);
+            return compare != 0 ? compare : stockCodes[memberStocks[member1]].compareTo(stockCodes[memberStocks[member2]]);
+        }
+
+        /**
+         * 归并排序，值相同时按股票代码从小到大
+         */
+        private void sortDesc(int[] a, int from, int to, int[] tmp, int[] memberStocks) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sortDesc(a, from, mid, tmp, memberStocks);
+            sortDesc(a, mid, to, tmp, memberStocks);
+            if (order(a[mid - 1], a[mid], memberStocks) <= 0) {
+                return;
+            }
+            System.arraycopy(a, from, tmp, from, to - from);
+            int i = from;
+            int j = mid;
+            for (int k = from; k < to; k++) {
+                if (j >= to || (i < mid && order(tmp[i], tmp[j], memberStocks) <= 0)) {
+                    a[k] = tmp[i++];
+                } else {
+                    a[k] = tmp[j++];
+                }
+            }
+        }
+    }
+
+    /**
+     * 一只股票在一个行业中的排名结果
+     */
+    public static final class Ranked {
+
+        private final String windIndCode;
+
+        private final String stockCode;
+
+        private final BigDecimal value;
+
+        private final int rank;
+
+        private final int count;
+
+        private final double percentile;
+
+        Ranked(String windIndCode, String stockCode, BigDecimal value, int rank, int count, double percentile) {
+            this.windIndCode = windIndCode;
+            this.stockCode = stockCode;
+            this.value = value;
+            this.rank = rank;
+            this.count = count;
+            this.percentile = percentile;
+        }
+
+        public String getWindIndCode() {
+            return windIndCode;
+        }
+
+        public String getStockCode() {
+            return stockCode;
+        }
+
+        public BigDecimal getValue() {
+            return value;
+        }
+
+        public int getRank() {
+            return rank;
+        }
+
+        /**
+         * 行业中有值的股票数
+         *
+         * @return
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public double getPercentile() {
+            return percentile;
+        }
+
+        @Override
+        public String toString() {
+            return windIndCode + ":" + stockCode + "=" + value + "(" + rank + "/" + count + ")";
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareCci;
+import com.wnbt.entity.AshareEodPrices;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Description:改用AshareCciEngine之前AshareCciService的CCI计算，逐行照搬原来的calcStock和getCci，只去掉了查库和写库，
+ * 作为AshareTechEquivalenceCheck的回归基准，不要修改
+ * <p>
+ * 原来的行为：typ按4位小数HALF_UP，前13天没有CCI，平均绝对偏差为0时除0异常被吞掉、CCI为空，收盘价为空时抛出异常；
+ * 增量计算时库里已有的记录不足13条就什么都不算
+ */
+final class AshareCciReference {
+
+    private AshareCciReference() {
+    }
+
+    /**
+     * 初始化：库里没有记录时，从第一条行情开始计算
+     *
+     * @param aShareEODPricesList 已过滤停牌、按交易日升序
+     * @return 每条行情一行，前13行没有CCI
+     */
+    static List<AshareCci> init(List<AshareEodPrices> aShareEODPricesList) {
+        List<AshareCci> modelList = new ArrayList<>();
+        for (int i = 0; i < aShareEODPricesList.size(); i++) {
+            AshareCci model = newModel(aShareEODPricesList.get(i));
+            if (i > 12) {
+                model.setCci(getCci(modelList.subList(i - 13, i), model.getTyp()));
+            }
+            modelList.add(model);
+        }
+        return modelList;
+    }
+
+    /**
+     * 增量：用库里最后13条记录接着计算
+     *
+     * @param lastModels          库里最后的记录，按交易日升序
+     * @param aShareEODPricesList lastModels之后的行情
+     * @return 新的行，lastModels不足13条时为空
+     */
+    static List<AshareCci> incremental(List<AshareCci> lastModels, List<AshareEodPrices> aShareEODPricesList) {
+        List<AshareCci> modelList = new ArrayList<>(lastModels.subList(Math.max(lastModels.size() - 13, 0), lastModels.size()));
+        if (modelList.size() < 13) {
+            return new ArrayList<>();
+        }
+        for (int i = 0; i < aShareEODPricesList.size(); i++) {
+            AshareCci model = newModel(aShareEODPricesList.get(i));
+            model.setCci(getCci(modelList.subList(i, i + 13), model.getTyp()));
+            modelList.add(model);
+        }
+        return new ArrayList<>(modelList.subList(13, modelList.size()));
+    }
+
+    private static AshareCci newModel(AshareEodPrices ashareEodPrices) {
+        AshareCci model = new AshareCci();
+        model.setStockCode(ashareEodPrices.getsInfoWindcode().substring(0, 6));
+        model.setTradeDt(ashareEodPrices.getTradeDt());
+        BigDecimal sDqAdjhigh = ashareEodPrices.getsDqAdjhigh();
+        BigDecimal sDqAdjlow = ashareEodPrices.getsDqAdjlow();
+        BigDecimal sDqAdjclose = ashareEodPrices.getsDqAdjclose();
+        BigDecimal typParam1 = sDqAdjhigh == null ? sDqAdjclose : sDqAdjhigh; // 计算typ所需要的参数1
+        BigDecimal typParam2 = sDqAdjlow == null ? sDqAdjclose : sDqAdjlow; // 计算typ所需要的参数2
+        BigDecimal typ = typParam1.add(typParam2).add(sDqAdjclose).divide(new BigDecimal(3), 4, BigDecimal.ROUND_HALF_UP);
+        model.setTyp(typ);
+        return model;
+    }
+
+    private static BigDecimal getCci(List<AshareCci> ashareCciList, BigDecimal typToday) {
+        if (ashareCciList.size() != 13) {
+            return null;
+        }
+
+        BigDecimal sumTyp = BigDecimal.ZERO;
+        BigDecimal avgTyp;
+        BigDecimal sumAvgTyp = BigDecimal.ZERO;
+        for (AshareCci ashareCci : ashareCciList) {
+            sumTyp = sumTyp.add(ashareCci.getTyp());
+        }
+        sumTyp = sumTyp.add(typToday);
+
+        avgTyp = sumTyp.divide(new BigDecimal(14), 4, BigDecimal.ROUND_HALF_UP);
+        for (AshareCci ashareCci : ashareCciList) {
+            sumAvgTyp = sumAvgTyp.add(ashareCci.getTyp().subtract(avgTyp).abs());
+        }
+        sumAvgTyp = sumAvgTyp.add(typToday.subtract(avgTyp).abs());
+
+        try {
+            return (typToday.multiply(new BigDecimal(14)).subtract(sumTyp)).divide(new BigDecimal(0.015).multiply(sumAvgTyp), 2, BigDecimal.ROUND_HALF_UP);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
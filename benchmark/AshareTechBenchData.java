@@ -0,0 +1,137 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AShareIndustriesClass;
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.selector.model.SelectorDerivativeIndicatorModel;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Description:基准测试用的模拟数据，同样的参数总是生成同样的数据
+ * <p>
+ * 1.行情：从2000年开始的工作日，收盘价随机游走，每天涨跌不超过10%，价格保留4位小数
+ * 2.约0.2%的交易日开始一段1到60天的停牌，停牌日不生成行情（与各service过滤停牌后的结果一致）
+ * 3.约0.5%的行情最高价、最低价为空
+ * 4.行业和市净率：按股票代码随机分配行业，约5%的股票当天没有市净率
+ * 5.估值截面：市净率、市盈率、市销率、总市值各自独立生成，约10%的市盈率为负（亏损股），约5%的股票没有估值
+ * <p>
+ * 放在benchmark目录，只给基准测试和一致性检查用，不打进生产包
+ */
+public final class AshareTechBenchData {
+
+    private static final BigDecimal MIN_PRICE = new BigDecimal("0.0100");
+
+    private AshareTechBenchData() {
+    }
+
+    /**
+     * 6位股票代码，上海和深圳交替
+     *
+     * @param index
+     * @return
+     */
+    public static String stockCode(int index) {
+        return index % 2 == 0 ? String.valueOf(600000 + index / 2) : String.format("%06d", index / 2 + 1);
+    }
+
+    /**
+     * 一只股票days个交易日的行情（不含停牌日），按TRADE_DT升序
+     *
+     * @param index 股票序号，同时作为随机种子
+     * @param days
+     * @return
+     */
+    public static List<AshareEodPrices> prices(int index, int days) {
+        String stockCode = stockCode(index);
+        String windCode = stockCode + (stockCode.startsWith("6") ? ".SH" : ".SZ");
+        Random random = new Random(index);
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2000, Calendar.JANUARY, 3);
+        double close = 5 + random.nextDouble() * 45;
+        int suspendDays = 0;
+        List<AshareEodPrices> prices = new ArrayList<>(days);
+        while (prices.size() < days) {
+            calendar.add(Calendar.DATE, 1);
+            int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
+            if (dayOfWeek == Calendar.SATURDAY || dayOfWeek == Calendar.SUNDAY) {
+                continue;
+            }
+            if (suspendDays > 0) {
+                suspendDays--;
+                continue;
+            }
+            if (random.nextDouble() < 0.002) {
+                suspendDays = 1 + random.nextInt(60);
+                continue;
+            }
+            close = close * (1 + Math.max(-0.1, Math.min(0.1, random.nextGaussian() * 0.02)));
+            AshareEodPrices price = new AshareEodPrices();
+            price.setsInfoWindcode(windCode);
+            price.setTradeDt(String.format("%04d%02d%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DATE)));
+            BigDecimal closeDecimal = price(close);
+            price.setsDqAdjclose(closeDecimal);
+            if (random.nextDouble() >= 0.005) {
+                price.setsDqAdjhigh(price(close * (1 + Math.abs(random.nextGaussian()) * 0.01)));
+                price.setsDqAdjlow(price(close * (1 - Math.abs(random.nextGaussian()) * 0.01)));
+            }
+            prices.add(price);
+        }
+        return prices;
+    }
+
+    private static BigDecimal price(double value) {
+        BigDecimal price = new BigDecimal(value).setScale(4, BigDecimal.ROUND_HALF_UP);
+        return price.compareTo(MIN_PRICE) < 0 ? MIN_PRICE : price;
+    }
+
+    /**
+     * stocks只股票的行业分类，行业代码为8位数字
+     *
+     * @param stocks
+     * @param industries
+     * @return
+     */
+    public static List<AShareIndustriesClass> industries(int stocks, int industries) {
+        Random random = new Random(stocks);
+        List<AShareIndustriesClass> list = new ArrayList<>(stocks);
+        for (int i = 0; i < stocks; i++) {
+            int industry = random.nextInt(industries);
+            AShareIndustriesClass industriesClass = new AShareIndustriesClass();
+            industriesClass.setStockCode(stockCode(i));
+            industriesClass.setWindIndCode(String.valueOf(62000000 + industry));
+            industriesClass.setIndustriesName("行业" + industry);
+            list.add(industriesClass);
+        }
+        return list;
+    }
+
+    /**
+     * stocks只股票当天的估值，约5%的股票没有
+     *
+     * @param stocks
+     * @return
+     */
+    public static List<SelectorDerivativeIndicatorModel> indicatorModels(int stocks) {
+        Random random = new Random(31L * stocks);
+        List<SelectorDerivativeIndicatorModel> list = new ArrayList<>(stocks);
+        for (int i = 0; i < stocks; i++) {
+            if (random.nextDouble() < 0.05) {
+                continue;
+            }
+            SelectorDerivativeIndicatorModel model = new SelectorDerivativeIndicatorModel();
+            model.setStockCode(stockCode(i));
+            model.setPb(new BigDecimal(0.3 + random.nextDouble() * 20).setScale(4, BigDecimal.ROUND_HALF_UP));
+            double pe = 5 + random.nextDouble() * 95;
+            model.setPe(new BigDecimal(random.nextDouble() < 0.1 ? -pe : pe).setScale(4, BigDecimal.ROUND_HALF_UP));
+            model.setPs(new BigDecimal(0.1 + random.nextDouble() * 30).setScale(4, BigDecimal.ROUND_HALF_UP));
+            model.setMv(new BigDecimal(1e9 + random.nextDouble() * 5e11).setScale(4, BigDecimal.ROUND_HALF_UP));
+            list.add(model);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,202 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.entity.AshareRsi;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Description:技术指标计算的基准测试，用AshareTechBenchData的模拟数据，不访问数据库
+ * <p>
+ * 运行：java com.wnbt.calc.tech.service.AshareTechBenchmark [股票数，默认5000] [交易日数，默认5000]
+ * <p>
+ * 1.单只股票：分别对CCI、RSI、MTM的精确模式和快速模式做初始化（全部历史）计算，精确模式另测每日增量（1天）计算
+ * 2.全市场：逐只生成行情后计算三个指标，只统计计算的时间和分配
+ * 3.每项先预热再计时，输出每秒次数和每次分配的字节数（线程分配计数，需要HotSpot）
+ * <p>
+ * 结果只用于同一台机器上前后对比，改动计算代码前后各跑一次，基线见AshareTechBenchmark.baseline.txt
+ * <p>
+ * benchmark目录下的类只依赖主代码，不打进生产包，运行时把benchmark目录和主代码一起编译
+ */
+public final class AshareTechBenchmark {
+
+    // 防止计算结果被JIT优化掉
+    private static volatile Object sink;
+
+    private AshareTechBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int stocks = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        System.out.println("股票数：" + stocks + "，交易日数：" + days + "，" + System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+        System.out.println(Result.HEADER);
+
+        final AshareCciService cciService = new AshareCciService();
+        final AshareRsiService rsiService = new AshareRsiService();
+        final AshareMtmService mtmService = new AshareMtmService();
+        final List<AshareEodPrices> prices = AshareTechBenchData.prices(0, days);
+        final List<AshareEodPrices> lastDay = prices.subList(prices.size() - 1, prices.size());
+        final List<AshareEodPrices> lastTwoDays = prices.subList(prices.size() - 2, prices.size());
+        final List<AshareEodPrices> lastThirteenDays = prices.subList(prices.size() - 13, prices.size());
+        final List<BigDecimal> preTyps = new ArrayList<>();
+        for (AshareEodPrices price : prices.subList(prices.size() - 14, prices.size() - 1)) {
+            preTyps.add(AshareCciEngine.typ(price.getsDqAdjhigh(), price.getsDqAdjlow(), price.getsDqAdjclose()));
+        }
+        final List<BigDecimal> preMtms = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            preMtms.add(new BigDecimal("0.123"));
+        }
+        final AshareRsi initRsi = AshareRsiService.newInitModel(AshareTechBenchData.stockCode(0), prices.get(0).getTradeDt());
+
+        System.out.println(measure("cci.init.exact", 20, new Runnable() {
+            @Override
+            public void run() {
+                sink = cciService.calcExact(prices, null);
+            }
+        }));
+        System.out.println(measure("cci.init.fast", 20, new Runnable() {
+            @Override
+            public void run() {
+                sink = cciService.calcFast(prices, null);
+            }
+        }));
+        System.out.println(measure("cci.daily.exact", 200000, new Runnable() {
+            @Override
+            public void run() {
+                sink = cciService.calcExact(lastDay, preTyps);
+            }
+        }));
+        System.out.println(measure("rsi.init.exact", 20, new Runnable() {
+            @Override
+            public void run() {
+                sink = rsiService.calcExact(prices, initRsi);
+            }
+        }));
+        System.out.println(measure("rsi.init.fast", 20, new Runnable() {
+            @Override
+            public void run() {
+                sink = rsiService.calcFast(prices, initRsi);
+            }
+        }));
+        System.out.println(measure("rsi.daily.exact", 200000, new Runnable() {
+            @Override
+            public void run() {
+                sink = rsiService.calcExact(lastTwoDays, initRsi);
+            }
+        }));
+        System.out.println(measure("mtm.init.exact", 20, new Runnable() {
+            @Override
+            public void run() {
+                sink = mtmService.calcExact(prices, null);
+            }
+        }));
+        System.out.println(measure("mtm.init.fast", 20, new Runnable() {
+            @Override
+            public void run() {
+                sink = mtmService.calcFast(prices, null);
+            }
+        }));
+        System.out.println(measure("mtm.daily.exact", 200000, new Runnable() {
+            @Override
+            public void run() {
+                sink = mtmService.calcExact(lastThirteenDays, preMtms);
+            }
+        }));
+
+        System.out.println(universe("universe.init.exact", stocks, days, cciService, rsiService, mtmService, false));
+        System.out.println(universe("universe.init.fast", stocks, days, cciService, rsiService, mtmService, true));
+    }
+
+    /**
+     * 预热iterations次后再计时iterations次
+     *
+     * @param name
+     * @param iterations
+     * @param operation
+     * @return
+     */
+    public static Result measure(String name, int iterations, Runnable operation) {
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long bytes = AshareTechRunSummary.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long nanos = System.nanoTime() - start;
+        return new Result(name, iterations, nanos, AshareTechRunSummary.allocatedBytes() - bytes);
+    }
+
+    private static Result universe(String name, int stocks, int days, AshareCciService cciService, AshareRsiService rsiService,
+                                   AshareMtmService mtmService, boolean fast) {
+        // 预热用前几只股票
+        for (int i = 0; i < Math.min(stocks, 20); i++) {
+            calcAll(AshareTechBenchData.prices(i, days), cciService, rsiService, mtmService, fast);
+        }
+        long nanos = 0;
+        long bytes = 0;
+        for (int i = 0; i < stocks; i++) {
+            List<AshareEodPrices> prices = AshareTechBenchData.prices(i, days);
+            long startBytes = AshareTechRunSummary.allocatedBytes();
+            long start = System.nanoTime();
+            calcAll(prices, cciService, rsiService, mtmService, fast);
+            nanos += System.nanoTime() - start;
+            bytes += AshareTechRunSummary.allocatedBytes() - startBytes;
+        }
+        return new Result(name, stocks, nanos, bytes);
+    }
+
+    private static void calcAll(List<AshareEodPrices> prices, AshareCciService cciService, AshareRsiService rsiService,
+                                AshareMtmService mtmService, boolean fast) {
+        AshareRsi initRsi = AshareRsiService.newInitModel(prices.get(0).getsInfoWindcode().substring(0, 6), prices.get(0).getTradeDt());
+        if (fast) {
+            sink = cciService.calcFast(prices, null);
+            sink = rsiService.calcFast(prices, initRsi);
+            sink = mtmService.calcFast(prices, null);
+        } else {
+            sink = cciService.calcExact(prices, null);
+            sink = rsiService.calcExact(prices, initRsi);
+            sink = mtmService.calcExact(prices, null);
+        }
+    }
+
+    /**
+     * 一项测试的结果
+     */
+    public static class Result {
+
+        static final String HEADER = String.format("%-24s %12s %14s %16s", "名称", "次数", "每秒次数", "每次分配字节");
+
+        private final String name;
+
+        private final int iterations;
+
+        private final long nanos;
+
+        private final long bytes;
+
+        Result(String name, int iterations, long nanos, long bytes) {
+            this.name = name;
+            this.iterations = iterations;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        public double getOpsPerSecond() {
+            return iterations * 1e9 / nanos;
+        }
+
+        public long getBytesPerOp() {
+            return bytes / iterations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-24s %12d %14.1f %16d", name, iterations, getOpsPerSecond(), getBytesPerOp());
+        }
+    }
+}
@@ -0,0 +1,588 @@
+package com.wnbt.calc.tech.service;
+
+import com.wnbt.entity.AshareCci;
+import com.wnbt.entity.AshareEodPrices;
+import com.wnbt.entity.AshareMtm;
+import com.wnbt.entity.AshareRsi;
+import com.wnbt.entity.AshareTechVariant;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Description:新的CCI、RSI、MTM计算方式上线前的一致性检查，与现有service的精确模式逐行比较，不访问数据库
+ * <p>
+ * 运行（与AshareTechBenchmark一样在benchmark目录）：java com.wnbt.calc.tech.service.AshareTechEquivalenceCheck [股票数，默认200] [交易日数，默认2500]
+ * <p>
+ * 1.行情：在AshareTechBenchData的基础上生成含停牌行的原始行情，同样的参数总是生成同样的数据，并覆盖现有代码处理的边界情况：
+ * 约1%的行S_DQ_TRADESTATUS为停牌或为空（价格故意偏离，漏过滤时结果会不同）、最高价或最低价为空、
+ * 收盘价为0（RSI的max()返回空，这只股票的RSI计算失败）、收盘价为空（所有指标计算失败）、
+ * 连续多天价格不变（CCI为空）、不足13条行情
+ * 2.基准：与readPrices一样过滤停牌后，用AshareCciService、AshareRsiService、AshareMtmService的精确模式按初始化的方式计算
+ * 3.比较的计算方式：fast为各service的快速模式，variant为AshareTechVariantEngine（CCI:14,RSI:6,RSI:12,RSI:24,MTM:12/6），
+ * store为原始行情分多次追加到临时目录的AshareEodPriceStore后读出再用精确模式计算，
+ * legacy为改写前的CCI计算（AshareCciReference），只比较typ、cci
+ * 4.每个字段按写库的小数位舍入后比较，必须逐位相同，报告里的误差以最后一位为单位；基准计算失败时比较的一方也必须失败
+ * 5.耗时和分配只统计计算（store含读本地文件），前20只股票先预热一遍
+ * <p>
+ * 有任何一种计算方式不一致时退出码为1。快速模式、指标变体都按精确模式的小数位和舍入方式做整数运算，
+ * 不设允许误差；以后引入有误差的算法时，应按字段单独规定允许的误差并写在这里
+ */
+public final class AshareTechEquivalenceCheck {
+
+    private static final String TRADING = "交易";
+
+    private static final String SUSPENDED = "停牌";
+
+    private static final String EXACT = "exact";
+
+    private static final String FAST = "fast";
+
+    private static final String VARIANT = "variant";
+
+    private static final String STORE = "store";
+
+    private static final String LEGACY = "legacy";
+
+    private static final String VARIANT_CONFIG = "CCI:" + AshareCciEngine.DEFAULT_PERIOD + ",RSI:6,RSI:12,RSI:24,MTM:12/6";
+
+    // 字段 -> 写库的小数位
+    private static final Map<String, Integer> SCALES = new LinkedHashMap<>();
+
+    // 字段 -> 所属指标，一个指标计算失败时它的字段都没有值
+    private static final Map<String, String> INDICATORS = new LinkedHashMap<>();
+
+    // variant的 指标:params -> 字段
+    private static final Map<String, String> VARIANT_FIELDS = new LinkedHashMap<>();
+
+    private static final int MAX_SAMPLES = 5;
+
+    static {
+        field("typ", AshareTechVariantEngine.CCI, 4);
+        field("cci", AshareTechVariantEngine.CCI, 2);
+        field("avgInc6d", AshareTechVariantEngine.RSI, 6);
+        field("avgDec6d", AshareTechVariantEngine.RSI, 6);
+        field("rsi6d", AshareTechVariantEngine.RSI, 2);
+        field("avgInc12d", AshareTechVariantEngine.RSI, 6);
+        field("avgDec12d", AshareTechVariantEngine.RSI, 6);
+        field("rsi12d", AshareTechVariantEngine.RSI, 2);
+        field("avgInc24d", AshareTechVariantEngine.RSI, 6);
+        field("avgDec24d", AshareTechVariantEngine.RSI, 6);
+        field("rsi24d", AshareTechVariantEngine.RSI, 2);
+        field("mtm", AshareTechVariantEngine.MTM, 3);
+        field("mamtm", AshareTechVariantEngine.MTM, 3);
+        VARIANT_FIELDS.put(AshareTechVariantEngine.CCI + ":" + AshareCciEngine.DEFAULT_PERIOD, "cci");
+        for (String period : new String[]{"6", "12", "24"}) {
+            VARIANT_FIELDS.put(AshareTechVariantEngine.RSI_AVGINC + ":" + period, "avgInc" + period + "d");
+            VARIANT_FIELDS.put(AshareTechVariantEngine.RSI_AVGDEC + ":" + period, "avgDec" + period + "d");
+            VARIANT_FIELDS.put(AshareTechVariantEngine.RSI + ":" + period, "rsi" + period + "d");
+        }
+        VARIANT_FIELDS.put(AshareTechVariantEngine.MTM + ":12", "mtm");
+        VARIANT_FIELDS.put(AshareTechVariantEngine.MAMTM + ":12,6", "mamtm");
+    }
+
+    private final AshareCciService cciService = new AshareCciService();
+
+    private final AshareRsiService rsiService = new AshareRsiService();
+
+    private final AshareMtmService mtmService = new AshareMtmService();
+
+    private final AshareTechVariantEngine variantEngine = new AshareTechVariantEngine(AshareTechVariantEngine.parse(VARIANT_CONFIG));
+
+    private final AshareEodPriceStore priceStore = new AshareEodPriceStore();
+
+    // 计算方式 -> 字段 -> 比较结果
+    private final Map<String, Map<String, Diff>> diffs = new LinkedHashMap<>();
+
+    // 计算方式 -> {耗时纳秒, 分配字节}
+    private final Map<String, long[]> costs = new LinkedHashMap<>();
+
+    private AshareTechEquivalenceCheck(String storeDir) {
+        this.priceStore.setDir(storeDir);
+        for (String engine : new String[]{EXACT, FAST, VARIANT, STORE, LEGACY}) {
+            costs.put(engine, new long[2]);
+        }
+        for (String engine : new String[]{FAST, VARIANT, STORE, LEGACY}) {
+            diffs.put(engine, new LinkedHashMap<String, Diff>());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int stocks = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 2500;
+        System.out.println("股票数：" + stocks + "，交易日数：" + days + "，"
+                + System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+
+        File dir = Files.createTempDirectory("ashare-tech-check").toFile();
+        try {
+            AshareTechEquivalenceCheck check = new AshareTechEquivalenceCheck(dir.getPath());
+            // 预热用不参与比较的股票，避免写入同一只股票的本地行情
+            for (int i = 0; i < Math.min(stocks, 20); i++) {
+                check.checkStock(stocks + i, days, false);
+            }
+            for (int i = 0; i < stocks; i++) {
+                check.checkStock(i, days, true);
+            }
+            System.out.print(check.getReport(stocks));
+            System.exit(check.getFailedEngines().isEmpty() ? 0 : 1);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * 一只股票含停牌行的原始行情，按TRADE_DT升序，同样的参数总是生成同样的数据
+     * <p>
+     * 序号除以20余11的股票不足13条行情，除以10余3的股票约5%的行最高价或最低价为空，
+     * 除以50余7的股票中间一天收盘价为0，除以50余17的股票有连续20个交易日价格不变（CCI的平均绝对偏差为0），
+     * 除以50余27的股票有一天收盘价为空
+     *
+     * @param index 股票序号
+     * @param days
+     * @return
+     */
+    static List<AshareEodPrices> fixture(int index, int days) {
+        Random random = new Random(31L * index + 7);
+        int size = index % 20 == 11 ? 1 + index % 12 : days;
+        List<AshareEodPrices> prices = AshareTechBenchData.prices(index, size);
+        for (int i = 0; i < prices.size(); i++) {
+            AshareEodPrices price = prices.get(i);
+            price.setsDqTradestatus(TRADING);
+            if (index % 10 == 3 && random.nextDouble() < 0.05) {
+                if (random.nextBoolean()) {
+                    price.setsDqAdjhigh(null);
+                } else {
+                    price.setsDqAdjlow(null);
+                }
+            }
+            if (index % 50 == 7 && i == prices.size() / 2) {
+                price.setsDqAdjhigh(BigDecimal.ZERO);
+                price.setsDqAdjlow(BigDecimal.ZERO);
+                price.setsDqAdjclose(BigDecimal.ZERO);
+            } else if (random.nextDouble() < 0.01) {
+                price.setsDqTradestatus(random.nextInt(5) == 0 ? null : SUSPENDED);
+                price.setsDqAdjclose(price.getsDqAdjclose().multiply(new BigDecimal(3)));
+                price.setsDqAdjhigh(null);
+            }
+        }
+        if (index % 50 == 17 && prices.size() > 40) {
+            AshareEodPrices flat = prices.get(prices.size() / 3);
+            for (int i = prices.size() / 3; i < prices.size() / 3 + 20; i++) {
+                AshareEodPrices price = prices.get(i);
+                price.setsDqTradestatus(TRADING);
+                price.setsDqAdjhigh(flat.getsDqAdjclose());
+                price.setsDqAdjlow(flat.getsDqAdjclose());
+                price.setsDqAdjclose(flat.getsDqAdjclose());
+            }
+        }
+        if (index % 50 == 27) {
+            AshareEodPrices price = prices.get(prices.size() * 2 / 3);
+            price.setsDqTradestatus(TRADING);
+            price.setsDqAdjclose(null);
+        }
+        return prices;
+    }
+
+    /**
+     * 与readPrices的查询条件not(S_DQ_TRADESTATUS, 停牌)一致，去掉停牌和交易状态为空的行
+     *
+     * @param prices
+     * @return
+     */
+    static List<AshareEodPrices> trading(List<AshareEodPrices> prices) {
+        List<AshareEodPrices> tradingPrices = new ArrayList<>(prices.size());
+        for (AshareEodPrices price : prices) {
+            if (price.getsDqTradestatus() != null && !SUSPENDED.equals(price.getsDqTradestatus())) {
+                tradingPrices.add(price);
+            }
+        }
+        return tradingPrices;
+    }
+
+    private void checkStock(int index, int days, boolean record) {
+        List<AshareEodPrices> prices = fixture(index, days);
+        String windCode = prices.get(0).getsInfoWindcode();
+        String stockCode = windCode.substring(0, 6);
+
+        long bytes = AshareTechRunSummary.allocatedBytes();
+        long start = System.nanoTime();
+        List<AshareEodPrices> tradingPrices = trading(prices);
+        Rows exact = calcServices(tradingPrices, false);
+        cost(EXACT, start, bytes, record);
+
+        bytes = AshareTechRunSummary.allocatedBytes();
+        start = System.nanoTime();
+        Rows fast = calcServices(tradingPrices, true);
+        cost(FAST, start, bytes, record);
+
+        bytes = AshareTechRunSummary.allocatedBytes();
+        start = System.nanoTime();
+        Rows variant = calcVariants(tradingPrices);
+        cost(VARIANT, start, bytes, record);
+
+        // 分多次追加，覆盖原地追加和扩容重写两种情况
+        Random random = new Random(index);
+        for (int from = 0; from < prices.size(); ) {
+            int to = Math.min(prices.size(), from + 1 + random.nextInt(400));
+            priceStore.append(windCode, prices.subList(from, to));
+            from = to;
+        }
+        bytes = AshareTechRunSummary.allocatedBytes();
+        start = System.nanoTime();
+        Rows store = calcServices(priceStore.getPrices(windCode, null, false), false);
+        cost(STORE, start, bytes, record);
+
+        bytes = AshareTechRunSummary.allocatedBytes();
+        start = System.nanoTime();
+        Rows legacy = calcLegacy(tradingPrices);
+        cost(LEGACY, start, bytes, record);
+
+        if (record) {
+            compare(FAST, stockCode, exact, fast);
+            compare(VARIANT, stockCode, exact, variant);
+            compare(STORE, stockCode, exact, store);
+            compare(LEGACY, stockCode, exact, legacy);
+        }
+    }
+
+    private void cost(String engine, long start, long bytes, boolean record) {
+        long nanos = System.nanoTime() - start;
+        long allocated = AshareTechRunSummary.allocatedBytes() - bytes;
+        if (record) {
+            long[] cost = costs.get(engine);
+            cost[0] += nanos;
+            cost[1] += allocated;
+        }
+    }
+
+    /**
+     * 按初始化的方式用各service计算，MTM与calcPrices一样不足13条时不计算
+     *
+     * @param prices 已过滤停牌
+     * @param fast
+     * @return
+     */
+    private Rows calcServices(List<AshareEodPrices> prices, boolean fast) {
+        Rows rows = new Rows();
+        if (prices.isEmpty()) {
+            return rows;
+        }
+        try {
+            rows.ccis = fast ? cciService.calcFast(prices, null) : cciService.calcExact(prices, null);
+        } catch (RuntimeException e) {
+            rows.fail(AshareTechVariantEngine.CCI);
+        }
+        try {
+            AshareRsi initRsi = AshareRsiService.newInitModel(prices.get(0).getsInfoWindcode().substring(0, 6), prices.get(0).getTradeDt());
+            rows.rsis = fast ? rsiService.calcFast(prices, initRsi) : rsiService.calcExact(prices, initRsi);
+        } catch (RuntimeException e) { // 收盘价为0时精确模式max()返回空，计算失败
+            rows.fail(AshareTechVariantEngine.RSI);
+        }
+        if (prices.size() >= 13) {
+            try {
+                rows.mtms = fast ? mtmService.calcFast(prices, null) : mtmService.calcExact(prices, null);
+            } catch (RuntimeException e) {
+                rows.fail(AshareTechVariantEngine.MTM);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 用AshareTechVariantEngine计算与现有指标相同周期的变体，值为空的行不输出，比较时按空值处理
+     * <p>
+     * 前一半行情从头计算，后一半按AshareTechVariantService的方式续算：只传入回看需要的行情，RSI从前一半最后的平均涨跌幅递推
+     *
+     * @param prices 已过滤停牌
+     * @return
+     */
+    private Rows calcVariants(List<AshareEodPrices> prices) {
+        Rows rows = new Rows();
+        Map<AshareTechVariantEngine.Spec, RuntimeException> failures = new HashMap<>();
+        rows.variants = variantEngine.calc(prices.subList(0, prices.size() / 2), null, true, failures);
+
+        Map<String, AshareTechVariant> lastRows = new HashMap<>();
+        for (AshareTechVariant variant : rows.variants) {
+            lastRows.put(variant.getIndicator() + ":" + variant.getParams(), variant);
+        }
+        String resumeDt = variantEngine.getResumeDt(lastRows);
+        List<AshareEodPrices> window = prices;
+        if (resumeDt != null) {
+            int from = Math.max(AshareBatchTechService.indexAfter(prices, resumeDt, false) - variantEngine.getLookback(), 0);
+            window = prices.subList(from, prices.size());
+        }
+        boolean fullHistory = resumeDt == null || !variantEngine.isEnough(window, lastRows);
+        rows.variants.addAll(variantEngine.calc(fullHistory ? prices : window, lastRows, fullHistory, failures));
+        for (AshareTechVariantEngine.Spec spec : failures.keySet()) {
+            if (!rows.isFailed(spec.getIndicator())) {
+                rows.fail(spec.getIndicator());
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 用改写前的CCI计算（AshareCciReference），前一半按初始化、后一半按原来的增量方式用前面最后13条记录接着算；
+     * 不超过13条行情时全部按初始化，原来的增量在库里不足13条时什么都不算，这一点新代码有意不同，不比较
+     *
+     * @param prices 已过滤停牌
+     * @return
+     */
+    private Rows calcLegacy(List<AshareEodPrices> prices) {
+        Rows rows = new Rows();
+        try {
+            int split = prices.size() <= 13 ? prices.size() : Math.max(prices.size() / 2, 13);
+            rows.ccis = AshareCciReference.init(prices.subList(0, split));
+            rows.ccis.addAll(AshareCciReference.incremental(rows.ccis, prices.subList(split, prices.size())));
+        } catch (RuntimeException e) {
+            rows.fail(AshareTechVariantEngine.CCI);
+        }
+        return rows;
+    }
+
+    private void compare(String engine, String stockCode, Rows exact, Rows rows) {
+        Map<String, Diff> engineDiffs = diffs.get(engine);
+        for (Map.Entry<String, Integer> entry : SCALES.entrySet()) {
+            String field = entry.getKey();
+            if (VARIANT.equals(engine) && !VARIANT_FIELDS.containsValue(field)) {
+                continue;
+            }
+            if (LEGACY.equals(engine) && !AshareTechVariantEngine.CCI.equals(INDICATORS.get(field))) {
+                continue;
+            }
+            Diff diff = engineDiffs.get(field);
+            if (diff == null) {
+                diff = new Diff(entry.getValue());
+                engineDiffs.put(field, diff);
+            }
+            String indicator = INDICATORS.get(field);
+            boolean exactFailed = exact.isFailed(indicator);
+            if (exactFailed || rows.isFailed(indicator)) {
+                diff.addFailed(stockCode, exactFailed, rows.isFailed(indicator));
+                continue;
+            }
+            Map<String, BigDecimal> exactValues = exact.get(field);
+            Map<String, BigDecimal> values = rows.get(field);
+            TreeMap<String, Boolean> tradeDts = new TreeMap<>();
+            for (String tradeDt : exactValues.keySet()) {
+                tradeDts.put(tradeDt, Boolean.TRUE);
+            }
+            for (String tradeDt : values.keySet()) {
+                tradeDts.put(tradeDt, Boolean.TRUE);
+            }
+            for (String tradeDt : tradeDts.keySet()) {
+                diff.add(stockCode, tradeDt, exactValues.get(tradeDt), values.get(tradeDt));
+            }
+        }
+    }
+
+    /**
+     * 有不一致的计算方式
+     *
+     * @return
+     */
+    public List<String> getFailedEngines() {
+        List<String> engines = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Diff>> entry : diffs.entrySet()) {
+            for (Diff diff : entry.getValue().values()) {
+                if (!diff.isPassed()) {
+                    engines.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return engines;
+    }
+
+    private String getReport(int stocks) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%n%-8s %-10s %10s %10s %12s %10s %10s %14s%n",
+                "方式", "字段", "比较条数", "不一致条数", "空值不一致条数", "都失败股票", "失败不一致", "最大误差(末位)"));
+        for (Map.Entry<String, Map<String, Diff>> entry : diffs.entrySet()) {
+            for (Map.Entry<String, Diff> fieldEntry : entry.getValue().entrySet()) {
+                report.append(String.format("%-8s %-10s %s%n", entry.getKey(), fieldEntry.getKey(), fieldEntry.getValue()));
+            }
+        }
+        for (Map.Entry<String, Map<String, Diff>> entry : diffs.entrySet()) {
+            for (Map.Entry<String, Diff> fieldEntry : entry.getValue().entrySet()) {
+                for (String sample : fieldEntry.getValue().samples) {
+                    report.append(entry.getKey()).append(' ').append(fieldEntry.getKey()).append(' ').append(sample).append('\n');
+                }
+            }
+        }
+
+        report.append(String.format("%n%s %10s%n", AshareTechBenchmark.Result.HEADER, "耗时倍数"));
+        long exactNanos = Math.max(1, costs.get(EXACT)[0]);
+        for (Map.Entry<String, long[]> entry : costs.entrySet()) {
+            AshareTechBenchmark.Result result = new AshareTechBenchmark.Result(entry.getKey(), stocks, Math.max(1, entry.getValue()[0]), entry.getValue()[1]);
+            report.append(String.format("%s %10.2f%n", result, entry.getValue()[0] / (double) exactNanos));
+        }
+
+        List<String> failedEngines = getFailedEngines();
+        report.append('\n').append(failedEngines.isEmpty() ? "全部一致" : "不一致：" + failedEngines).append('\n');
+        return report.toString();
+    }
+
+    private static void field(String field, String indicator, int scale) {
+        SCALES.put(field, scale);
+        INDICATORS.put(field, indicator);
+    }
+
+    /**
+     * 一种计算方式对一只股票的结果，比较时才按字段取出 交易日 -> 值，转换不计入耗时
+     */
+    private static class Rows {
+
+        private List<AshareCci> ccis = new ArrayList<>();
+
+        private List<AshareRsi> rsis = new ArrayList<>();
+
+        private List<AshareMtm> mtms = new ArrayList<>();
+
+        // 不为空时是AshareTechVariantEngine的结果
+        private List<AshareTechVariant> variants;
+
+        private final List<String> failed = new ArrayList<>(3);
+
+        Map<String, BigDecimal> get(String field) {
+            Map<String, BigDecimal> values = new LinkedHashMap<>();
+            String indicator = INDICATORS.get(field);
+            if (variants != null) {
+                for (AshareTechVariant variant : variants) {
+                    if (field.equals(VARIANT_FIELDS.get(variant.getIndicator() + ":" + variant.getParams()))) {
+                        values.put(variant.getTradeDt(), variant.getValue());
+                    }
+                }
+            } else if (AshareTechVariantEngine.CCI.equals(indicator)) {
+                for (AshareCci model : ccis) {
+                    values.put(model.getTradeDt(), "typ".equals(field) ? model.getTyp() : model.getCci());
+                }
+            } else if (AshareTechVariantEngine.RSI.equals(indicator)) {
+                for (AshareRsi model : rsis) {
+                    values.put(model.getTradeDt(), rsiValue(model, field));
+                }
+            } else {
+                for (AshareMtm model : mtms) {
+                    values.put(model.getTradeDt(), "mtm".equals(field) ? model.getMtm() : model.getMamtm());
+                }
+            }
+            return values;
+        }
+
+        private static BigDecimal rsiValue(AshareRsi model, String field) {
+            switch (field) {
+                case "avgInc6d":
+                    return model.getAvgInc6d();
+                case "avgDec6d":
+                    return model.getAvgDec6d();
+                case "rsi6d":
+                    return model.getRsi6d();
+                case "avgInc12d":
+                    return model.getAvgInc12d();
+                case "avgDec12d":
+                    return model.getAvgDec12d();
+                case "rsi12d":
+                    return model.getRsi12d();
+                case "avgInc24d":
+                    return model.getAvgInc24d();
+                case "avgDec24d":
+                    return model.getAvgDec24d();
+                default:
+                    return model.getRsi24d();
+            }
+        }
+
+        void fail(String indicator) {
+            failed.add(indicator);
+        }
+
+        boolean isFailed(String indicator) {
+            return failed.contains(indicator);
+        }
+    }
+
+    /**
+     * 一个字段的比较结果，没有的行按空值处理
+     */
+    private static class Diff {
+
+        private final int scale;
+
+        private long count;
+
+        private long mismatch;
+
+        private long nullMismatch;
+
+        private long bothFailed;
+
+        private long failMismatch;
+
+        private BigDecimal maxUnits = BigDecimal.ZERO;
+
+        private final List<String> samples = new ArrayList<>();
+
+        Diff(int scale) {
+            this.scale = scale;
+        }
+
+        void add(String stockCode, String tradeDt, BigDecimal exact, BigDecimal value) {
+            count++;
+            if (exact == null || value == null) {
+                if (exact != value) {
+                    nullMismatch++;
+                    sample(stockCode + "@" + tradeDt + " 精确=" + exact + " 比较=" + value);
+                }
+                return;
+            }
+            BigDecimal units = exact.setScale(scale, BigDecimal.ROUND_HALF_UP)
+                    .subtract(value.setScale(scale, BigDecimal.ROUND_HALF_UP)).abs().movePointRight(scale);
+            if (units.compareTo(maxUnits) > 0) {
+                maxUnits = units;
+            }
+            if (units.signum() > 0) {
+                mismatch++;
+                sample(stockCode + "@" + tradeDt + " 精确=" + exact + " 比较=" + value);
+            }
+        }
+
+        void addFailed(String stockCode, boolean exactFailed, boolean failed) {
+            if (exactFailed && failed) {
+                bothFailed++;
+            } else {
+                failMismatch++;
+                sample(stockCode + (exactFailed ? " 精确模式失败，比较的一方没有失败" : " 精确模式成功，比较的一方失败"));
+            }
+        }
+
+        boolean isPassed() {
+            return mismatch == 0 && nullMismatch == 0 && failMismatch == 0;
+        }
+
+        private void sample(String sample) {
+            if (samples.size() < MAX_SAMPLES) {
+                samples.add(sample);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%10d %10d %12d %10d %10d %14s", count, mismatch, nullMismatch, bothFailed, failMismatch, maxUnits.toPlainString());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.wnbt.selector.service.pb;
+
+import com.wnbt.calc.tech.service.AshareTechBenchData;
+import com.wnbt.calc.tech.service.AshareTechBenchmark;
+import com.wnbt.entity.AShareIndustriesClass;
+import com.wnbt.selector.model.SelectorDerivativeIndicatorModel;
+import com.wnbt.selector.service.SelectorReferenceData;
+import com.wnbt.selector.service.SelectorValuationMatrix;
+
+import java.util.List;
+
+/**
+ * Description:市净率行业排名第一选股器memory模式的基准测试，只测不查库的部分：
+ * 从已经建好的列式估值截面SelectorValuationMatrix取每个行业第一（截面由几个估值选股器共用时每个选股器的耗时），
+ * 以及建截面加取第一的耗时
+ * <p>
+ * 运行（benchmark目录和主代码一起编译）：java com.wnbt.selector.service.pb.SelectorPbTop1OfIndustryBenchmark [股票数，默认5000] [行业数，默认300]
+ * <p>
+ * 行业名的拼音首字母在创建参考数据快照时算好，不计入
+ */
+public final class SelectorPbTop1OfIndustryBenchmark {
+
+    // 防止计算结果被JIT优化掉
+    private static volatile Object sink;
+
+    private SelectorPbTop1OfIndustryBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int stocks = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int industries = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        List<AShareIndustriesClass> industriesClassList = AshareTechBenchData.industries(stocks, industries);
+        final SelectorReferenceData referenceData = new SelectorReferenceData(1, System.currentTimeMillis(), "20240105", "20240105", true, industriesClassList);
+        final List<SelectorDerivativeIndicatorModel> indicatorList = AshareTechBenchData.indicatorModels(stocks);
+        System.out.println("股票数：" + stocks + "，行业数：" + industries);
+        final SelectorValuationMatrix matrix = SelectorValuationMatrix.build(referenceData, indicatorList);
+        System.out.println(AshareTechBenchmark.measure("selector.pbTop1OfIndustry", 200, new Runnable() {
+            @Override
+            public void run() {
+                sink = matrix.top(SelectorValuationMatrix.METRIC_PB, 1);
+            }
+        }));
+
+        // 列式估值截面：建一次截面（pb、pe、ps、mv四列各自独立取值、全部按行业排序）再取每个行业第一
+        System.out.println(AshareTechBenchmark.measure("selector.valuationMatrix", 200, new Runnable() {
+            @Override
+            public void run() {
+                sink = SelectorValuationMatrix.build(referenceData, indicatorList).top(SelectorValuationMatrix.METRIC_PB, 1);
+            }
+        }));
+    }
+}